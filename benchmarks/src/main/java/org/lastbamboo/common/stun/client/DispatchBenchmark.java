@@ -0,0 +1,93 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitor;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures dispatching decoded responses through the
+ * {@link StunClientMessageVisitor} to the matching transaction, both for
+ * responses we're waiting on and for the unmatched duplicates we get from
+ * retransmissions.  A configurable number of other transactions are kept
+ * pending to see how lookups scale.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final StunTransactionListener LISTENER =
+        new StunTransactionListener() {
+            @Override
+            public Object onTransactionSucceeded(final StunMessage request,
+                final StunMessage response) {
+                return null;
+            }
+
+            @Override
+            public Object onTransactionFailed(final StunMessage request,
+                final StunMessage response) {
+                return null;
+            }
+        };
+
+    @Param({"0", "1000"})
+    public int m_pending;
+
+    private final InetSocketAddress m_local =
+        new InetSocketAddress("127.0.0.1", 40000);
+
+    private final InetSocketAddress m_remote =
+        new InetSocketAddress("127.0.0.1", 3478);
+
+    private ExpiringTransactionTracker m_tracker;
+
+    private StunMessageVisitor<StunMessage> m_visitor;
+
+    private BindingSuccessResponse m_unmatched;
+
+    @Setup
+    public void setUp() {
+        m_tracker = new ExpiringTransactionTracker();
+        m_visitor = new StunClientMessageVisitor<StunMessage>(m_tracker);
+        for (int i = 0; i < m_pending; i++) {
+            m_tracker.addTransaction(new BindingRequest(), LISTENER, m_local,
+                m_remote);
+        }
+        m_unmatched = new BindingSuccessResponse(
+            new BindingRequest().getTransactionId().getRawBytes(), m_local);
+    }
+
+    @Benchmark
+    public StunMessage dispatchMatched() {
+        final BindingRequest request = new BindingRequest();
+        m_tracker.addTransaction(request, LISTENER, m_local, m_remote);
+        final BindingSuccessResponse response = new BindingSuccessResponse(
+            request.getTransactionId().getRawBytes(), m_local);
+        return response.accept(m_visitor);
+    }
+
+    @Benchmark
+    public StunMessage dispatchUnmatched() {
+        return m_unmatched.accept(m_visitor);
+    }
+}
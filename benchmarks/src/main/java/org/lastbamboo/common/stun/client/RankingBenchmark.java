@@ -0,0 +1,91 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures picking and ranking STUN servers while other threads are
+ * constantly recording successes and failures against the same servers,
+ * as happens when many clients share them.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RankingBenchmark {
+
+    @Param({"8", "64"})
+    public int m_servers;
+
+    private List<RankedStunServer> m_ranked;
+
+    private StunServerRanking m_ranking;
+
+    @Setup
+    public void setUp() throws DNSSECException {
+        m_ranked = new ArrayList<RankedStunServer>(m_servers);
+        for (int i = 0; i < m_servers; i++) {
+            m_ranked.add(RankedStunServer.forAddress(
+                new InetSocketAddress("127.0.0.1", 20000 + i)));
+        }
+        m_ranking = new StunServerRanking(m_ranked);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public RankedStunServer pick() {
+        return m_ranking.pick(Collections.<RankedStunServer>emptySet());
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public List<RankedStunServer> getRanked() {
+        return m_ranking.getRanked();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void update() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final RankedStunServer server =
+            m_ranked.get(random.nextInt(m_ranked.size()));
+        if (random.nextInt(10) == 0) {
+            server.onFailure();
+        } else {
+            server.onSuccess(random.nextInt(5, 300));
+        }
+    }
+
+    @Benchmark
+    @Group("skipping")
+    public RankedStunServer pickSkipping() {
+        final Collection<RankedStunServer> skip =
+            m_ranked.subList(0, m_ranked.size() / 2);
+        return m_ranking.pick(skip);
+    }
+}
@@ -0,0 +1,28 @@
+package org.lastbamboo.common.stun.client;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the STUN client benchmarks with the gc profiler enabled so every
+ * run reports allocation rates along with throughput and latency
+ * percentiles.  This accepts all the usual JMH command line options, so
+ * for example passing <code>Dispatch</code> runs just the dispatch 
+ * benchmarks.
+ */
+public class StunClientBenchmarks {
+
+    public static void main(final String... args) 
+        throws RunnerException, CommandLineOptionException {
+        final Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
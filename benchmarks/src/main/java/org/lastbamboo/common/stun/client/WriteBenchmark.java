@@ -0,0 +1,79 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures full binding request round trips through {@link UdpStunClient}
+ * against an in-process {@link LoopbackStunServer}, so the numbers reflect
+ * the client's own overhead rather than the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_serverAddress;
+
+    private SharedUdpStunTransport m_transport;
+
+    private UdpStunClient m_client;
+
+    private UdpStunClient m_sharedClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        m_server = new LoopbackStunServer();
+        m_serverAddress = m_server.start();
+        m_client = new UdpStunClient(m_serverAddress);
+        m_client.connect();
+
+        m_transport = new SharedUdpStunTransport();
+        m_sharedClient = new UdpStunClient(m_transport, m_serverAddress);
+        m_sharedClient.connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_client.close();
+        m_sharedClient.close();
+        m_transport.close();
+        m_server.stop();
+    }
+
+    @Benchmark
+    public StunMessage write() throws IOException {
+        return m_client.write(new BindingRequest(), m_serverAddress);
+    }
+
+    @Benchmark
+    public StunMessage writeShared() throws IOException {
+        return m_sharedClient.write(new BindingRequest(), m_serverAddress);
+    }
+
+    @Benchmark
+    public InetSocketAddress serverReflexiveAddress() throws IOException {
+        return m_client.getServerReflexiveAddress();
+    }
+}
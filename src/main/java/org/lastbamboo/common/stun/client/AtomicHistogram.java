@@ -0,0 +1,135 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values.  As with HDR 
+ * histograms, buckets are log-linear: each power of two is split into 
+ * eight equal sub-buckets, so recorded values are accurate to within 12.5%
+ * across the full range of longs in a fixed 4KB of counters.  Recording is
+ * a single atomic increment.
+ */
+public class AtomicHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = 
+        (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder m_count = new LongAdder();
+
+    private final LongAdder m_sum = new LongAdder();
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records a value.  Negative values are recorded as zero.
+     * 
+     * @param value The value.
+     */
+    public void record(final long value) {
+        final long v = Math.max(0L, value);
+        m_counts.incrementAndGet(index(v));
+        m_count.increment();
+        m_sum.add(v);
+        long max = m_max.get();
+        while (v > max && !m_max.compareAndSet(max, v)) {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * 
+     * @return The number of values.
+     */
+    public long getCount() {
+        return m_count.sum();
+    }
+
+    /**
+     * Returns the mean of all recorded values.
+     * 
+     * @return The mean, or zero if nothing was recorded.
+     */
+    public double getMean() {
+        final long count = getCount();
+        return count == 0L ? 0.0 : (double) m_sum.sum() / count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     * 
+     * @return The maximum value.
+     */
+    public long getMax() {
+        return m_max.get();
+    }
+
+    /**
+     * Returns the value at the specified percentile.  This is the highest
+     * value in the bucket the percentile falls in, so it's never lower 
+     * than the exact value.
+     * 
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at the percentile, or zero if nothing was recorded.
+     */
+    public long getPercentile(final double percentile) {
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += m_counts.get(i);
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, 
+            (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getMax(), highestValue(i));
+            }
+        }
+        return getMax();
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return ((shift + 1) * SUB_BUCKETS) + sub;
+    }
+
+    static long lowestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index / SUB_BUCKETS) - 1;
+        final int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub)) << shift;
+    }
+
+    private static long highestValue(final int index) {
+        if (index + 1 >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValue(index + 1) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "AtomicHistogram [count=" + getCount() + " mean=" + getMean() +
+            " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + 
+            " max=" + getMax() + "]";
+    }
+}
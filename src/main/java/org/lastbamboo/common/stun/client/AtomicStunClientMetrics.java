@@ -0,0 +1,190 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low overhead, lock-free metrics.  Counters are {@link LongAdder}s and
+ * distributions are {@link AtomicHistogram}s, so recording never blocks 
+ * and scales with the number of recording threads.
+ */
+public class AtomicStunClientMetrics implements StunClientMetrics {
+
+    private final LongAdder m_started = new LongAdder();
+
+    private final LongAdder m_succeeded = new LongAdder();
+
+    private final LongAdder m_failed = new LongAdder();
+
+    private final LongAdder m_timedOut = new LongAdder();
+
+    private final LongAdder m_rankingChanges = new LongAdder();
+
+    private final LongAdder m_cacheHits = new LongAdder();
+
+    private final LongAdder m_cacheMisses = new LongAdder();
+
+    private final AtomicHistogram m_retransmissions = new AtomicHistogram();
+
+    private final AtomicHistogram m_rtt = new AtomicHistogram();
+
+    private final ConcurrentMap<InetSocketAddress, AtomicHistogram> 
+        m_serverRtts = 
+            new ConcurrentHashMap<InetSocketAddress, AtomicHistogram>();
+
+    private final ConcurrentMap<String, LongAdder> m_sources = 
+        new ConcurrentHashMap<String, LongAdder>();
+
+    @Override
+    public void onTransactionStarted(final InetSocketAddress server) {
+        m_started.increment();
+    }
+
+    @Override
+    public void onTransactionSucceeded(final InetSocketAddress server,
+        final int retransmissions) {
+        m_succeeded.increment();
+        m_retransmissions.record(retransmissions);
+    }
+
+    @Override
+    public void onTransactionFailed(final InetSocketAddress server,
+        final int retransmissions) {
+        m_failed.increment();
+        m_retransmissions.record(retransmissions);
+    }
+
+    @Override
+    public void onTransactionTimedOut(final InetSocketAddress server) {
+        m_timedOut.increment();
+    }
+
+    @Override
+    public void onRtt(final InetSocketAddress server, final long rtt) {
+        m_rtt.record(rtt);
+        AtomicHistogram histogram = m_serverRtts.get(server);
+        if (histogram == null) {
+            final AtomicHistogram created = new AtomicHistogram();
+            histogram = m_serverRtts.putIfAbsent(server, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(rtt);
+    }
+
+    @Override
+    public void onRankingChanged(final RankedStunServer previous,
+        final RankedStunServer current) {
+        m_rankingChanges.increment();
+    }
+
+    @Override
+    public void onPublicIpCacheHit() {
+        m_cacheHits.increment();
+    }
+
+    @Override
+    public void onPublicIpCacheMiss() {
+        m_cacheMisses.increment();
+    }
+
+    @Override
+    public void onPublicIpSource(final String source) {
+        LongAdder count = m_sources.get(source);
+        if (count == null) {
+            final LongAdder created = new LongAdder();
+            count = m_sources.putIfAbsent(source, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.increment();
+    }
+
+    public long getTransactionsStarted() {
+        return m_started.sum();
+    }
+
+    public long getTransactionsSucceeded() {
+        return m_succeeded.sum();
+    }
+
+    public long getTransactionsFailed() {
+        return m_failed.sum();
+    }
+
+    public long getTransactionsTimedOut() {
+        return m_timedOut.sum();
+    }
+
+    public long getRankingChanges() {
+        return m_rankingChanges.sum();
+    }
+
+    public long getPublicIpCacheHits() {
+        return m_cacheHits.sum();
+    }
+
+    public long getPublicIpCacheMisses() {
+        return m_cacheMisses.sum();
+    }
+
+    /**
+     * Accessor for the distribution of retransmissions per completed 
+     * transaction.
+     * 
+     * @return The retransmissions histogram.
+     */
+    public AtomicHistogram getRetransmissions() {
+        return m_retransmissions;
+    }
+
+    /**
+     * Accessor for the distribution of round-trip times to all servers.
+     * 
+     * @return The RTT histogram, in milliseconds.
+     */
+    public AtomicHistogram getRtt() {
+        return m_rtt;
+    }
+
+    /**
+     * Returns the distribution of round-trip times to each server.
+     * 
+     * @return The RTT histograms for each server we've measured.
+     */
+    public Map<InetSocketAddress, AtomicHistogram> getServerRtts() {
+        return Collections.unmodifiableMap(m_serverRtts);
+    }
+
+    /**
+     * Returns the number of times each technique found our public IP.
+     * 
+     * @return The counts by source.
+     */
+    public Map<String, Long> getPublicIpSources() {
+        final Map<String, Long> sources = new HashMap<String, Long>();
+        for (final Map.Entry<String, LongAdder> e : m_sources.entrySet()) {
+            sources.put(e.getKey(), e.getValue().sum());
+        }
+        return sources;
+    }
+
+    @Override
+    public String toString() {
+        return "AtomicStunClientMetrics [started=" + getTransactionsStarted() +
+            " succeeded=" + getTransactionsSucceeded() + " failed=" + 
+            getTransactionsFailed() + " timedOut=" + getTransactionsTimedOut() +
+            " rankingChanges=" + getRankingChanges() + " cacheHits=" + 
+            getPublicIpCacheHits() + " cacheMisses=" + 
+            getPublicIpCacheMisses() + " sources=" + getPublicIpSources() + 
+            " rtt=" + getRtt() + " retransmissions=" + 
+            getRetransmissions() + "]";
+    }
+}
@@ -0,0 +1,57 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+
+/**
+ * A binding request along with the address to send it to, as used for
+ * sending batches of requests such as ICE connectivity checks.
+ */
+public class BindingCheck {
+
+    private final BindingRequest m_request;
+    private final InetSocketAddress m_remoteAddress;
+
+    /**
+     * Creates a new check.
+     *
+     * @param request The binding request to send.
+     * @param remoteAddress The address to send the request to.
+     */
+    public BindingCheck(final BindingRequest request,
+        final InetSocketAddress remoteAddress) {
+        if (request == null) {
+            throw new NullPointerException("Null request");
+        }
+        if (remoteAddress == null) {
+            throw new NullPointerException("Null remote address");
+        }
+        this.m_request = request;
+        this.m_remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Accessor for the binding request.
+     *
+     * @return The binding request.
+     */
+    public BindingRequest getRequest() {
+        return m_request;
+    }
+
+    /**
+     * Accessor for the address to send the request to.
+     *
+     * @return The remote address.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return m_remoteAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "BindingCheck [request=" + m_request + " remote=" +
+            m_remoteAddress + "]";
+    }
+}
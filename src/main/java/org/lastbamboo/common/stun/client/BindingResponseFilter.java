@@ -0,0 +1,173 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunClientTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fast path for binding success responses that sits in front of the STUN
+ * codec.  We read the header and transaction ID straight out of the 
+ * received buffer and look up the transaction without allocating.  
+ * Responses nobody is waiting for, typically answers to retransmissions,
+ * are dropped right here.  Only when a transaction is waiting do we read 
+ * the mapped address and build the response.  Anything we don't fully 
+ * understand goes through the codec as usual.
+ */
+final class BindingResponseFilter extends IoFilterAdapter {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(BindingResponseFilter.class);
+
+    private static final int HEADER_LENGTH = 20;
+
+    private static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+
+    private static final int MAPPED_ADDRESS = 0x0001;
+
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    /**
+     * The pre-standard attribute type some older servers still use for
+     * XOR-MAPPED-ADDRESS.
+     */
+    private static final int XOR_MAPPED_ADDRESS_OLD = 0x8020;
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private static final ThreadLocal<TransactionKey> PROBES = 
+        new ThreadLocal<TransactionKey>() {
+            @Override
+            protected TransactionKey initialValue() {
+                return new TransactionKey();
+            }
+        };
+
+    private final ExpiringTransactionTracker m_tracker;
+
+    BindingResponseFilter(final ExpiringTransactionTracker tracker) {
+        this.m_tracker = tracker;
+    }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message) {
+        if (!(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        final ByteBuffer buf = (ByteBuffer) message;
+        final int start = buf.position();
+        if (buf.remaining() < HEADER_LENGTH || 
+            buf.getUnsignedShort(start) != BINDING_SUCCESS_RESPONSE ||
+            buf.getUnsignedShort(start + 2) + HEADER_LENGTH != 
+                buf.remaining()) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        final TransactionKey probe = PROBES.get().set(
+            buf.getLong(start + 4), buf.getLong(start + 12));
+        final StunClientTransaction<StunMessage> ct = 
+            this.m_tracker.getClientTransaction(probe);
+        if (ct == null) {
+            // This will happen fairly frequently with UDP because requests 
+            // are retransmitted.
+            buf.release();
+            return;
+        }
+        final InetSocketAddress mapped = readMappedAddress(buf, start);
+        if (mapped == null) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        final byte[] id = new byte[16];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = buf.get(start + 4 + i);
+        }
+        buf.release();
+        new BindingSuccessResponse(id, mapped).accept(ct);
+    }
+
+    /**
+     * Reads the mapped address from the binding response starting at the
+     * specified position, preferring XOR-MAPPED-ADDRESS over 
+     * MAPPED-ADDRESS.  This doesn't change the buffer's position.
+     * 
+     * @param buf The buffer.
+     * @param start The position of the start of the STUN header.
+     * @return The mapped address, or <code>null</code> if there isn't a 
+     * valid one.
+     */
+    static InetSocketAddress readMappedAddress(final ByteBuffer buf,
+        final int start) {
+        final int end = start + HEADER_LENGTH + buf.getUnsignedShort(start + 2);
+        int mapped = -1;
+        int xorMapped = -1;
+        int offset = start + HEADER_LENGTH;
+        while (offset + 4 <= end) {
+            final int type = buf.getUnsignedShort(offset);
+            final int length = buf.getUnsignedShort(offset + 2);
+            if (offset + 4 + length > end) {
+                return null;
+            }
+            if (type == MAPPED_ADDRESS) {
+                mapped = offset;
+            } else if (type == XOR_MAPPED_ADDRESS || 
+                type == XOR_MAPPED_ADDRESS_OLD) {
+                xorMapped = offset;
+            }
+            // Attributes are padded to four bytes.
+            offset += 4 + ((length + 3) & ~3);
+        }
+        if (xorMapped != -1) {
+            return readAddress(buf, start, xorMapped, true);
+        }
+        if (mapped != -1) {
+            return readAddress(buf, start, mapped, false);
+        }
+        return null;
+    }
+
+    private static InetSocketAddress readAddress(final ByteBuffer buf,
+        final int start, final int offset, final boolean xor) {
+        final int length = buf.getUnsignedShort(offset + 2);
+        final int value = offset + 4;
+        final int family = buf.get(value + 1);
+        final byte[] address;
+        if (family == 1 && length >= 8) {
+            address = new byte[4];
+        } else if (family == 2 && length >= 20) {
+            address = new byte[16];
+        } else {
+            return null;
+        }
+        int port = buf.getUnsignedShort(value + 2);
+        if (xor) {
+            port ^= MAGIC_COOKIE >>> 16;
+        }
+        for (int i = 0; i < address.length; i++) {
+            address[i] = buf.get(value + 4 + i);
+            if (xor) {
+                // The address is XORed with the magic cookie followed by
+                // the transaction ID, which is exactly the 16 bytes after
+                // the type and length in the header.
+                address[i] ^= buf.get(start + 4 + i);
+            }
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), 
+                port);
+        } catch (final UnknownHostException e) {
+            LOG.debug("Bad address length?", e);
+            return null;
+        }
+    }
+}
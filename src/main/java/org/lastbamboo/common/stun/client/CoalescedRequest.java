@@ -0,0 +1,96 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * A single on-the-wire binding transaction shared by everyone who asked 
+ * the same server the same question at the same time.  Each caller gets 
+ * their own future with a response carrying their own transaction ID.  
+ * The shared transaction is only cancelled once every caller has given up
+ * on it.
+ */
+final class CoalescedRequest {
+
+    private final CompletableFuture<StunMessage> m_shared;
+
+    private int m_waiters;
+
+    private boolean m_closed;
+
+    /**
+     * Creates a new shared transaction.
+     * 
+     * @param shared The future for the transaction on the wire.
+     */
+    CoalescedRequest(final CompletableFuture<StunMessage> shared) {
+        this.m_shared = shared;
+    }
+
+    /**
+     * Adds a caller waiting on the shared transaction.
+     * 
+     * @param request The caller's own request.
+     * @return The future for the caller's response, or <code>null</code> 
+     * if the shared transaction is already finished and the caller should
+     * send their own request.
+     */
+    CompletableFuture<StunMessage> addWaiter(final BindingRequest request) {
+        synchronized (this) {
+            if (m_closed || m_shared.isDone()) {
+                return null;
+            }
+            m_waiters++;
+        }
+        final CompletableFuture<StunMessage> waiter =
+            new CompletableFuture<StunMessage>();
+        m_shared.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                if (t != null) {
+                    waiter.completeExceptionally(t);
+                } else {
+                    waiter.complete(forWaiter(request, response));
+                }
+            }
+        });
+        waiter.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                leave();
+            }
+        });
+        return waiter;
+    }
+
+    private void leave() {
+        synchronized (this) {
+            m_waiters--;
+            if (m_waiters > 0) {
+                return;
+            }
+            m_closed = true;
+        }
+        // Nobody's waiting any more, so stop retransmitting.
+        m_shared.cancel(false);
+    }
+
+    /**
+     * Gives the response the waiter's transaction ID so it matches the
+     * request they sent.
+     */
+    private static StunMessage forWaiter(final BindingRequest request,
+        final StunMessage response) {
+        if (!(response instanceof BindingSuccessResponse) ||
+            response.getTransactionId().equals(request.getTransactionId())) {
+            return response;
+        }
+        return new BindingSuccessResponse(
+            request.getTransactionId().getRawBytes(),
+            ((BindingSuccessResponse) response).getMappedAddress());
+    }
+}
@@ -0,0 +1,237 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunClientTransaction;
+import org.littleshoot.stun.stack.transaction.StunClientTransactionImpl;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction tracker that never grows without bound.  Transactions are 
+ * removed as soon as a response is consumed, when the client explicitly
+ * removes them on timeouts and cancellations, and otherwise once they're 
+ * older than a TTL.  Expired transactions are swept lazily as new ones are
+ * added, so there's no timer task holding on to the tracker.
+ * <p>
+ * Transactions are keyed by a compact {@link TransactionKey} rather than
+ * by <code>UUID</code>, and lookups for unknown transactions, which are
+ * common with UDP retransmissions, are cheap.
+ */
+public class ExpiringTransactionTracker implements 
+    StunTransactionTracker<StunMessage>, StunTransactionListener {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(ExpiringTransactionTracker.class);
+
+    /**
+     * The minimum time between sweeps for expired transactions.
+     */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<TransactionKey, Entry> m_transactions =
+        new ConcurrentHashMap<TransactionKey, Entry>();
+
+    private final long m_ttl;
+
+    private final AtomicLong m_nextSweep = 
+        new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+
+    private final AtomicLong m_added = new AtomicLong();
+
+    private final AtomicLong m_completed = new AtomicLong();
+
+    private final AtomicLong m_removed = new AtomicLong();
+
+    private final AtomicLong m_expired = new AtomicLong();
+
+    /**
+     * Creates a new tracker using the TTL from 
+     * {@link StunClientConfig#getTransactionTtl()}.
+     */
+    public ExpiringTransactionTracker() {
+        this(StunClientConfig.getTransactionTtl());
+    }
+
+    /**
+     * Creates a new tracker.
+     * 
+     * @param ttl The time after which we forget about transactions we 
+     * never got a response for, in milliseconds.
+     */
+    public ExpiringTransactionTracker(final long ttl) {
+        this.m_ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    @Override
+    public void addTransaction(final StunMessage request,
+        final StunTransactionListener listener, 
+        final InetSocketAddress localAddress,
+        final InetSocketAddress remoteAddress) {
+        final List<StunTransactionListener> listeners = 
+            new ArrayList<StunTransactionListener>(2);
+        listeners.add(listener);
+        listeners.add(this);
+        final StunClientTransaction<StunMessage> ct =
+            new StunClientTransactionImpl(request, listeners, remoteAddress);
+        final long now = System.nanoTime();
+        this.m_transactions.put(TransactionKey.forMessage(request), 
+            new Entry(ct, now + this.m_ttl));
+        this.m_added.incrementAndGet();
+        sweepIfDue(now);
+    }
+
+    @Override
+    public StunClientTransaction<StunMessage> getClientTransaction(
+        final StunMessage message) {
+        return getClientTransaction(TransactionKey.forMessage(message));
+    }
+
+    /**
+     * Returns the transaction with the specified key.
+     * 
+     * @param key The key for the transaction ID.
+     * @return The transaction, or <code>null</code> if we don't know about 
+     * it.
+     */
+    StunClientTransaction<StunMessage> getClientTransaction(
+        final TransactionKey key) {
+        final Entry entry = this.m_transactions.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.m_transaction;
+    }
+
+    /**
+     * Stops tracking the transaction for the specified request, typically
+     * because it timed out or was cancelled.
+     * 
+     * @param request The request.
+     * @return <code>true</code> if we were still tracking the transaction.
+     */
+    public boolean removeTransaction(final StunMessage request) {
+        if (this.m_transactions.remove(
+            TransactionKey.forMessage(request)) != null) {
+            this.m_removed.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object onTransactionSucceeded(final StunMessage request,
+        final StunMessage response) {
+        return onComplete(request);
+    }
+
+    @Override
+    public Object onTransactionFailed(final StunMessage request,
+        final StunMessage response) {
+        return onComplete(request);
+    }
+
+    private Object onComplete(final StunMessage request) {
+        if (this.m_transactions.remove(
+            TransactionKey.forMessage(request)) != null) {
+            this.m_completed.incrementAndGet();
+        }
+        return null;
+    }
+
+    private void sweepIfDue(final long now) {
+        final long next = this.m_nextSweep.get();
+        if (now - next < 0L || 
+            !this.m_nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        for (final Map.Entry<TransactionKey, Entry> e : 
+            this.m_transactions.entrySet()) {
+            if (now - e.getValue().m_expires >= 0L && 
+                this.m_transactions.remove(e.getKey(), e.getValue())) {
+                LOG.debug("Expired transaction: {}", e.getKey());
+                this.m_expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of transactions we're currently tracking.
+     * 
+     * @return The number of transactions.
+     */
+    public int size() {
+        return this.m_transactions.size();
+    }
+
+    /**
+     * Returns the total number of transactions ever added.
+     * 
+     * @return The number of transactions added.
+     */
+    public long getTransactionsAdded() {
+        return this.m_added.get();
+    }
+
+    /**
+     * Returns the number of transactions removed because we got a 
+     * response.
+     * 
+     * @return The number of completed transactions.
+     */
+    public long getTransactionsCompleted() {
+        return this.m_completed.get();
+    }
+
+    /**
+     * Returns the number of transactions explicitly removed, typically on
+     * timeouts and cancellations.
+     * 
+     * @return The number of removed transactions.
+     */
+    public long getTransactionsRemoved() {
+        return this.m_removed.get();
+    }
+
+    /**
+     * Returns the number of transactions we forgot about because they 
+     * outlived the TTL.
+     * 
+     * @return The number of expired transactions.
+     */
+    public long getTransactionsExpired() {
+        return this.m_expired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiringTransactionTracker [size=" + size() + " added=" + 
+            getTransactionsAdded() + " completed=" + 
+            getTransactionsCompleted() + " removed=" + 
+            getTransactionsRemoved() + " expired=" + 
+            getTransactionsExpired() + "]";
+    }
+
+    private static final class Entry {
+
+        private final StunClientTransaction<StunMessage> m_transaction;
+
+        private final long m_expires;
+
+        private Entry(final StunClientTransaction<StunMessage> transaction,
+            final long expires) {
+            this.m_transaction = transaction;
+            this.m_expires = expires;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.lang.StringUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up our public IP address from an HTTP service.  All HTTP providers
+ * share a pool of keep-alive connections, and every request is bounded by
+ * {@link StunClientConfig#getHttpConnectTimeout()} and 
+ * {@link StunClientConfig#getHttpReadTimeout()} as they are when the 
+ * request starts.  Subclasses just pull the address out of the response 
+ * body.
+ */
+public abstract class HttpPublicIpProvider implements PublicIpProvider {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(HttpPublicIpProvider.class);
+
+    private static final HttpClient HTTP = newHttpClient();
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("Public-IP-HTTP"));
+
+    private final String m_name;
+
+    private final String m_url;
+
+    /**
+     * Creates a new provider.
+     * 
+     * @param name The name of the provider.
+     * @param url The URL to request.
+     */
+    protected HttpPublicIpProvider(final String name, final String url) {
+        this.m_name = name;
+        this.m_url = url;
+    }
+
+    /**
+     * Creates a provider for ifconfig.me.
+     * 
+     * @return The provider.
+     */
+    public static HttpPublicIpProvider ifConfig() {
+        return new HttpPublicIpProvider("ifconfig", "http://ifconfig.me") {
+            @Override
+            protected void configure(final GetMethod get) {
+                // The service returns just the IP if we pretend we're curl.
+                get.setRequestHeader("User-Agent", 
+                    "curl/7.19.7 (universal-apple-darwin10.0) libcurl/7.19.7 OpenSSL/0.9.8r zlib/1.2.3");
+            }
+
+            @Override
+            protected InetAddress parse(final String body) throws IOException {
+                return InetAddress.getByName(body.trim());
+            }
+        };
+    }
+
+    /**
+     * Creates a provider for Wikimedia's geo IP lookup.
+     * 
+     * @return The provider.
+     */
+    public static HttpPublicIpProvider wikiMedia() {
+        return new HttpPublicIpProvider("wikimedia", 
+            "http://geoiplookup.wikimedia.org/") {
+            @Override
+            protected InetAddress parse(final String body) throws IOException {
+                final String jsonStr = 
+                    StringUtils.substringAfter(body, "=").trim();
+                final JSONObject json = (JSONObject) JSONValue.parse(jsonStr);
+                final String inet = (String) json.get("IP");
+                return InetAddress.getByName(inet);
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Pulls our address out of the response body.
+     * 
+     * @param body The response body.
+     * @return The address.
+     * @throws IOException If the body doesn't contain an address.
+     */
+    protected abstract InetAddress parse(String body) throws IOException;
+
+    /**
+     * Lets subclasses customize the request, such as by adding headers.
+     * 
+     * @param get The request.
+     */
+    protected void configure(final GetMethod get) {
+    }
+
+    /**
+     * Creates the client and connection pool every provider shares.  The 
+     * pool is configured once, here, and never touched again, so 
+     * concurrent lookups can't race on its settings.
+     * 
+     * @return The client.
+     */
+    private static HttpClient newHttpClient() {
+        final MultiThreadedHttpConnectionManager connections =
+            new MultiThreadedHttpConnectionManager();
+        connections.getParams().setConnectionTimeout(
+            (int) StunClientConfig.getHttpConnectTimeout());
+        final HttpClient http = new HttpClient(connections);
+        http.getParams().setConnectionManagerTimeout(
+            StunClientConfig.getHttpConnectTimeout());
+        return http;
+    }
+
+    @Override
+    public CompletableFuture<InetAddress> lookupAsync() {
+        final GetMethod get = new GetMethod(m_url);
+        get.setFollowRedirects(true);
+        get.getParams().setSoTimeout(
+            (int) StunClientConfig.getHttpReadTimeout());
+        configure(get);
+        final CompletableFuture<InetAddress> future = 
+            new CompletableFuture<InetAddress>();
+        // This bounds the whole request with the current settings, even 
+        // if they've changed since we configured the pool.
+        final ScheduledFuture<?> deadline = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                if (future.complete(null)) {
+                    LOG.debug("Deadline passed for {}", m_name);
+                    get.abort();
+                }
+            }
+        }, StunClientConfig.getHttpConnectTimeout() + 
+            StunClientConfig.getHttpReadTimeout());
+        future.whenComplete(new BiConsumer<InetAddress, Throwable>() {
+            @Override
+            public void accept(final InetAddress ip, final Throwable t) {
+                deadline.cancel(false);
+                if (future.isCancelled()) {
+                    get.abort();
+                }
+            }
+        });
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    final int response = HTTP.executeMethod(get);
+                    if (response < 200 || response > 299) {
+                        LOG.warn("Got non-200 level response: "+response);
+                        return;
+                    }
+                    final String body = 
+                        new String(get.getResponseBody(), "UTF-8");
+                    LOG.debug("Got response body:\n{}", body);
+                    future.complete(parse(body));
+                } catch (final HttpException e) {
+                    LOG.warn("HTTP error?", e);
+                } catch (final IOException e) {
+                    if (!future.isDone()) {
+                        LOG.warn("Error connecting?", e);
+                    }
+                } catch (final Exception e) {
+                    LOG.warn("Some other error?", e);
+                } finally {
+                    get.releaseConnection();
+                    future.complete(null);
+                }
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpPublicIpProvider [name=" + m_name + " url=" + m_url + "]";
+    }
+}
@@ -0,0 +1,436 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptor;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.stun.stack.StunIoHandler;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessageVisitor;
+import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
+import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal in-process STUN server that answers binding requests on the
+ * loopback interface.  This is useful for testing and benchmarking clients
+ * without touching the network.
+ * <p>
+ * The server can simulate a bad network by delaying, dropping, duplicating
+ * and reordering responses.  With no impairments configured responses are
+ * written straight from the I/O thread, so the server keeps up with very
+ * high packet rates.  Delayed responses go through a single timer thread.
+ * <p>
+ * The server can also answer over TCP.  TCP is reliable, so responses over
+ * TCP only ever see the configured latency, which makes it easy to test
+ * falling back to TCP when UDP is lossy.
+ */
+public class LoopbackStunServer {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(LoopbackStunServer.class);
+
+    private final ExecutorService m_ioExecutor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runner) {
+                final Thread thread =
+                    new Thread(runner, "Loopback-STUN-Server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final DatagramAcceptor m_acceptor =
+        new DatagramAcceptor(m_ioExecutor);
+
+    private final SocketAcceptor m_tcpAcceptor =
+        new SocketAcceptor(1, m_ioExecutor);
+
+    private final ScheduledExecutorService m_delayExecutor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runner) {
+                final Thread thread =
+                    new Thread(runner, "Loopback-STUN-Server-Delay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final AtomicLong m_requests = new AtomicLong();
+
+    private final AtomicLong m_responses = new AtomicLong();
+
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    private volatile InetSocketAddress m_address;
+
+    private volatile InetSocketAddress m_tcpAddress;
+
+    private volatile long m_latency;
+
+    private volatile long m_jitter;
+
+    private volatile double m_lossRate;
+
+    private volatile double m_duplicationRate;
+
+    private volatile double m_reorderRate;
+
+    private volatile Random m_random;
+
+    private volatile InetSocketAddress m_mappedAddress;
+
+    /**
+     * Runs a standalone server for load testing clients.  The arguments are
+     * all optional, in order: the port, the latency in milliseconds, the
+     * loss rate, the duplication rate and the reorder rate.
+     *
+     * @param args The arguments.
+     * @throws IOException If we could not bind the server socket.
+     * @throws InterruptedException If we're interrupted while running.
+     */
+    public static void main(final String... args)
+        throws IOException, InterruptedException {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 3478;
+        if (args.length > 1) {
+            server.setLatency(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            server.setLossRate(Double.parseDouble(args[2]));
+        }
+        if (args.length > 3) {
+            server.setDuplicationRate(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            server.setReorderRate(Double.parseDouble(args[4]));
+        }
+        final InetSocketAddress address = server.start(new InetSocketAddress(
+            InetAddress.getByName("127.0.0.1"), port));
+        System.out.println("Loopback STUN server listening on: " + address);
+        long last = 0L;
+        while (true) {
+            Thread.sleep(1000);
+            final long requests = server.getRequestsReceived();
+            System.out.println((requests - last) + " requests/s " + server);
+            last = requests;
+        }
+    }
+
+    /**
+     * Sets the time to wait before answering each request.
+     *
+     * @param latency The latency in milliseconds.
+     */
+    public void setLatency(final long latency) {
+        this.m_latency = Math.max(0L, latency);
+    }
+
+    /**
+     * Sets the maximum random delay added on top of the latency for each
+     * response.
+     *
+     * @param jitter The maximum jitter in milliseconds.
+     */
+    public void setJitter(final long jitter) {
+        this.m_jitter = Math.max(0L, jitter);
+    }
+
+    /**
+     * Sets the fraction of requests we never answer.
+     *
+     * @param lossRate The loss rate, between zero and one.
+     */
+    public void setLossRate(final double lossRate) {
+        this.m_lossRate = lossRate;
+    }
+
+    /**
+     * Sets the fraction of responses we send twice.
+     *
+     * @param duplicationRate The duplication rate, between zero and one.
+     */
+    public void setDuplicationRate(final double duplicationRate) {
+        this.m_duplicationRate = duplicationRate;
+    }
+
+    /**
+     * Sets the fraction of responses we hold back so that later responses
+     * overtake them.  Held back responses are delayed by an extra RTT's 
+     * worth of latency, or 10ms if there's no latency configured.
+     *
+     * @param reorderRate The reorder rate, between zero and one.
+     */
+    public void setReorderRate(final double reorderRate) {
+        this.m_reorderRate = reorderRate;
+    }
+
+    /**
+     * Sets the address we report back to clients in place of the address
+     * their requests actually came from, as a server that sees clients 
+     * through a different NAT would.
+     *
+     * @param mappedAddress The address to report, or <code>null</code> to
+     * report the real one.
+     */
+    public void setMappedAddress(final InetSocketAddress mappedAddress) {
+        this.m_mappedAddress = mappedAddress;
+    }
+
+    /**
+     * Starts the server on an ephemeral port on the loopback interface.
+     *
+     * @return The address the server is listening on.
+     * @throws IOException If we could not bind the server socket.
+     */
+    public InetSocketAddress start() throws IOException {
+        return start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+            0));
+    }
+
+    /**
+     * Starts the server on the specified address.
+     *
+     * @param address The address to listen on.  Use port zero for an
+     * ephemeral port.
+     * @return The address the server is listening on.
+     * @throws IOException If we could not bind the server socket.
+     */
+    public InetSocketAddress start(final InetSocketAddress address)
+        throws IOException {
+        final DatagramAcceptorConfig cfg = m_acceptor.getDefaultConfig();
+        cfg.getSessionConfig().setReuseAddress(true);
+
+        // We answer directly on the I/O thread since we never block.
+        cfg.setThreadModel(ThreadModel.MANUAL);
+        m_acceptor.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        m_acceptor.bind(address, new StunIoHandler<Void>(
+            new StunMessageVisitorFactory<Void>() {
+                @Override
+                public StunMessageVisitor<Void> createVisitor(
+                    final IoSession session) {
+                    return new BindingVisitor(session, true);
+                }
+            }));
+
+        // We may have bound to an ephemeral port, so find the address we
+        // actually ended up with.
+        for (final SocketAddress bound :
+            m_acceptor.getManagedServiceAddresses()) {
+            m_address = (InetSocketAddress) bound;
+        }
+        LOG.debug("Loopback STUN server listening on: {}", m_address);
+        return m_address;
+    }
+
+    /**
+     * Starts answering over TCP on the specified address.  This is 
+     * independent of the UDP server, so either or both can run.
+     *
+     * @param address The address to listen on.  Use port zero for an
+     * ephemeral port.
+     * @return The address the server is listening on for TCP.
+     * @throws IOException If we could not bind the server socket.
+     */
+    public InetSocketAddress startTcp(final InetSocketAddress address)
+        throws IOException {
+        final SocketAcceptorConfig cfg = m_tcpAcceptor.getDefaultConfig();
+        cfg.setReuseAddress(true);
+        cfg.getSessionConfig().setTcpNoDelay(true);
+        cfg.setThreadModel(ThreadModel.MANUAL);
+        m_tcpAcceptor.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        m_tcpAcceptor.bind(address, new StunIoHandler<Void>(
+            new StunMessageVisitorFactory<Void>() {
+                @Override
+                public StunMessageVisitor<Void> createVisitor(
+                    final IoSession session) {
+                    return new BindingVisitor(session, false);
+                }
+            }));
+        for (final SocketAddress bound :
+            m_tcpAcceptor.getManagedServiceAddresses()) {
+            m_tcpAddress = (InetSocketAddress) bound;
+        }
+        LOG.debug("Loopback STUN server listening for TCP on: {}", 
+            m_tcpAddress);
+        return m_tcpAddress;
+    }
+
+    /**
+     * Stops answering over TCP, closing any open connections.
+     */
+    public void stopTcp() {
+        m_tcpAcceptor.unbindAll();
+    }
+
+    /**
+     * Accessor for the address the server is listening on for TCP.
+     *
+     * @return The address, or <code>null</code> if we're not listening 
+     * for TCP.
+     */
+    public InetSocketAddress getTcpAddress() {
+        return m_tcpAddress;
+    }
+
+    /**
+     * Accessor for the address the server is listening on.
+     *
+     * @return The address, or <code>null</code> if the server isn't started.
+     */
+    public InetSocketAddress getAddress() {
+        return m_address;
+    }
+
+    /**
+     * Returns the number of binding requests the server has received.
+     *
+     * @return The number of requests received.
+     */
+    public long getRequestsReceived() {
+        return m_requests.get();
+    }
+
+    /**
+     * Returns the number of responses the server has sent, including
+     * duplicates.
+     *
+     * @return The number of responses sent.
+     */
+    public long getResponsesSent() {
+        return m_responses.get();
+    }
+
+    /**
+     * Returns the number of requests the server deliberately didn't answer.
+     *
+     * @return The number of requests dropped.
+     */
+    public long getRequestsDropped() {
+        return m_dropped.get();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        m_acceptor.unbindAll();
+        m_tcpAcceptor.unbindAll();
+        m_delayExecutor.shutdownNow();
+        m_ioExecutor.shutdown();
+    }
+
+    /**
+     * Makes the impairments repeatable.  With a seed, the same sequence of
+     * requests is always dropped, duplicated and delayed the same way, so
+     * tests don't depend on luck.
+     *
+     * @param seed The seed for the impairment random number generator.
+     */
+    public void setSeed(final long seed) {
+        this.m_random = new Random(seed);
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackStunServer [address=" + m_address + " requests=" +
+            m_requests + " responses=" + m_responses + " dropped=" +
+            m_dropped + "]";
+    }
+
+    private void respond(final IoSession session, 
+        final BindingRequest request) {
+        final Random random =
+            m_random != null ? m_random : ThreadLocalRandom.current();
+        if (m_lossRate > 0.0 && random.nextDouble() < m_lossRate) {
+            m_dropped.incrementAndGet();
+            return;
+        }
+        final BindingSuccessResponse response = new BindingSuccessResponse(
+            request.getTransactionId().getRawBytes(), mappedAddress(session));
+        final int copies =
+            m_duplicationRate > 0.0 && random.nextDouble() < m_duplicationRate
+            ? 2 : 1;
+        for (int i = 0; i < copies; i++) {
+            long delay = m_latency;
+            if (m_jitter > 0L) {
+                delay += (long) (random.nextDouble() * (m_jitter + 1));
+            }
+            if (m_reorderRate > 0.0 && random.nextDouble() < m_reorderRate) {
+                delay += Math.max(10L, m_latency);
+            }
+            send(session, response, delay);
+        }
+    }
+
+    private InetSocketAddress mappedAddress(final IoSession session) {
+        final InetSocketAddress mapped = m_mappedAddress;
+        return mapped != null ?
+            mapped : (InetSocketAddress) session.getRemoteAddress();
+    }
+
+    private void send(final IoSession session,
+        final BindingSuccessResponse response, final long delay) {
+        if (delay <= 0L) {
+            m_responses.incrementAndGet();
+            session.write(response);
+            return;
+        }
+        m_delayExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                m_responses.incrementAndGet();
+                session.write(response);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final class BindingVisitor extends StunMessageVisitorAdapter<Void> {
+
+        private final IoSession m_session;
+
+        private final boolean m_impaired;
+
+        private BindingVisitor(final IoSession session,
+            final boolean impaired) {
+            this.m_session = session;
+            this.m_impaired = impaired;
+        }
+
+        @Override
+        public Void visitBindingRequest(final BindingRequest request) {
+            m_requests.incrementAndGet();
+            if (m_impaired) {
+                respond(m_session, request);
+            } else {
+                send(m_session, new BindingSuccessResponse(
+                    request.getTransactionId().getRawBytes(),
+                    mappedAddress(m_session)), m_latency);
+            }
+            return null;
+        }
+    }
+}
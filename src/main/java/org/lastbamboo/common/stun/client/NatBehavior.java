@@ -0,0 +1,65 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * What we've learned about the NAT between us and the STUN servers.  
+ * Instances are immutable.
+ */
+public final class NatBehavior {
+
+    private final NatMapping m_mapping;
+
+    private final Map<InetSocketAddress, InetSocketAddress> m_mappedAddresses;
+
+    private final long m_timestamp;
+
+    /**
+     * Creates a new result.
+     * 
+     * @param mapping The mapping behaviour.
+     * @param mappedAddresses The mapped address each server reported.
+     */
+    NatBehavior(final NatMapping mapping, 
+        final Map<InetSocketAddress, InetSocketAddress> mappedAddresses) {
+        this.m_mapping = mapping;
+        this.m_mappedAddresses = Collections.unmodifiableMap(mappedAddresses);
+        this.m_timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Accessor for the NAT's mapping behaviour.
+     * 
+     * @return The mapping behaviour.
+     */
+    public NatMapping getMapping() {
+        return m_mapping;
+    }
+
+    /**
+     * Returns the mapped address each server reported for the same local
+     * port.
+     * 
+     * @return The mapped addresses keyed by server.
+     */
+    public Map<InetSocketAddress, InetSocketAddress> getMappedAddresses() {
+        return m_mappedAddresses;
+    }
+
+    /**
+     * Accessor for when we made the classification.
+     * 
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "NatBehavior [mapping=" + m_mapping + " mapped=" + 
+            m_mappedAddresses + "]";
+    }
+}
@@ -0,0 +1,507 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers how the NAT between us and the STUN servers behaves, along the
+ * lines of RFC 5780.  Results are cached for
+ * {@link StunClientConfig#getNatBehaviorTtl()} so callers can ask freely.
+ * <p>
+ * Our STUN stack can't send CHANGE-REQUEST or read OTHER-ADDRESS, so
+ * rather than asking one RFC 5780 server to answer from its alternate
+ * addresses we send binding requests from a single local port to several
+ * ordinary servers in parallel and compare the mappings they report.
+ * This classifies mapping behaviour but not filtering behaviour.
+ * <p>
+ * Binding lifetime discovery, as in RFC 5780 section 4.6, probes several
+ * intervals at once, each from its own local port, and narrows in on the
+ * lifetime in rounds.  A probe decides the binding expired if the mapped
+ * port changed, so NATs that hand the same port back after a binding
+ * expires look like they never expire bindings.
+ */
+public class NatBehaviorDiscovery {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(NatBehaviorDiscovery.class);
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("STUN-NAT-Discovery"));
+
+    /**
+     * The most servers we ask when classifying mapping behaviour.
+     */
+    private static final int MAX_SERVERS = 4;
+
+    /**
+     * The number of lifetime probes we run at once.
+     */
+    private static final int LIFETIME_PROBES = 4;
+
+    private final Collection<InetSocketAddress> m_servers;
+
+    private final AtomicReference<CompletableFuture<NatBehavior>>
+        m_behavior = new AtomicReference<CompletableFuture<NatBehavior>>();
+
+    private final AtomicReference<LifetimeSearch> m_lifetime =
+        new AtomicReference<LifetimeSearch>();
+
+    /**
+     * Creates a new discovery engine using the servers in the
+     * {@link StunServerRepository}.
+     */
+    public NatBehaviorDiscovery() {
+        this(null);
+    }
+
+    /**
+     * Creates a new discovery engine using the specified servers.
+     *
+     * @param servers The STUN servers to use.  These should have
+     * different IP addresses, and ideally include two ports on the same IP
+     * address.
+     */
+    public NatBehaviorDiscovery(final Collection<InetSocketAddress> servers) {
+        this.m_servers = servers;
+    }
+
+    /**
+     * Returns our NAT's behaviour, discovering it if we don't have a fresh
+     * result.  Concurrent callers share the same discovery.
+     *
+     * @return A future for the behaviour.
+     */
+    public CompletableFuture<NatBehavior> discoverAsync() {
+        while (true) {
+            final CompletableFuture<NatBehavior> current = m_behavior.get();
+            if (current != null && !current.isCompletedExceptionally() &&
+                (!current.isDone() ||
+                    isFresh(current.getNow(null).getTimestamp()))) {
+                return current;
+            }
+            final CompletableFuture<NatBehavior> next =
+                new CompletableFuture<NatBehavior>();
+            if (m_behavior.compareAndSet(current, next)) {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            next.complete(discover());
+                        } catch (final RuntimeException e) {
+                            LOG.warn("Error discovering NAT behaviour", e);
+
+                            // Let the next caller try again rather than
+                            // handing them our failure.
+                            m_behavior.compareAndSet(next, null);
+                            next.completeExceptionally(e);
+                        }
+                    }
+                });
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Returns the last behaviour we discovered, without discovering it
+     * again.
+     *
+     * @return The behaviour, or <code>null</code> if we don't have a fresh
+     * result.
+     */
+    public NatBehavior getCached() {
+        final CompletableFuture<NatBehavior> current = m_behavior.get();
+        if (current == null || current.isCompletedExceptionally()) {
+            return null;
+        }
+        final NatBehavior behavior = current.getNow(null);
+        if (behavior == null || !isFresh(behavior.getTimestamp())) {
+            return null;
+        }
+        return behavior;
+    }
+
+    /**
+     * Searches for the lifetime of our NAT bindings, using a fresh result
+     * if we have one from a search with the same bounds.  This takes 
+     * several multiples of the lifetime, as we have to leave bindings idle
+     * to see if they expire.
+     *
+     * @param maxLifetime The longest lifetime to test for, in
+     * milliseconds.
+     * @param resolution How precisely to find the lifetime, in
+     * milliseconds.
+     * @return A future for the longest idle interval we saw a binding
+     * survive, in milliseconds.  This is <code>maxLifetime</code> if
+     * bindings survived every interval we tried and zero if they never
+     * survived or we couldn't reach a server.
+     */
+    public CompletableFuture<Long> discoverBindingLifetimeAsync(
+        final long maxLifetime, final long resolution) {
+        while (true) {
+            final LifetimeSearch current = m_lifetime.get();
+            if (current != null &&
+                current.matches(maxLifetime, resolution) &&
+                (!current.m_future.isDone() || isFresh(current.m_timestamp))) {
+                return current.m_future;
+            }
+            final LifetimeSearch next =
+                new LifetimeSearch(maxLifetime, resolution);
+            if (m_lifetime.compareAndSet(current, next)) {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long lifetime = 0L;
+                        try {
+                            lifetime = searchLifetime(maxLifetime, resolution);
+                        } catch (final RuntimeException e) {
+                            LOG.warn("Error discovering binding lifetime", e);
+                            m_lifetime.compareAndSet(next, null);
+                        }
+                        next.m_timestamp = System.currentTimeMillis();
+                        next.m_future.complete(lifetime);
+                    }
+                });
+                return next.m_future;
+            }
+        }
+    }
+
+    private static boolean isFresh(final long timestamp) {
+        return System.currentTimeMillis() - timestamp <
+            StunClientConfig.getNatBehaviorTtl();
+    }
+
+    private NatBehavior discover() {
+        final Map<InetSocketAddress, InetSocketAddress> mapped =
+            new LinkedHashMap<InetSocketAddress, InetSocketAddress>();
+        final List<InetSocketAddress> servers = pickServers();
+        if (servers.isEmpty()) {
+            LOG.debug("No servers to discover NAT behaviour with");
+            return new NatBehavior(NatMapping.UNKNOWN, mapped);
+        }
+        UdpStunClient client = null;
+        try {
+            client = new UdpStunClient(servers);
+            client.connect();
+            final List<CompletableFuture<StunMessage>> futures =
+                new ArrayList<CompletableFuture<StunMessage>>();
+            for (final InetSocketAddress server : servers) {
+                futures.add(client.writeAsync(new BindingRequest(), server));
+            }
+            for (int i = 0; i < servers.size(); i++) {
+                final InetSocketAddress isa = futures.get(i).get().accept(
+                    UdpStunClient.MAPPED_ADDRESS_VISITOR);
+                if (isa != null) {
+                    mapped.put(servers.get(i), isa);
+                }
+            }
+            final NatMapping mapping =
+                classify(client.getHostAddress(), mapped);
+            LOG.debug("Classified NAT mapping as {}", mapping);
+            return new NatBehavior(mapping, mapped);
+        } catch (final IOException e) {
+            LOG.debug("Could not discover NAT behaviour", e);
+        } catch (final InterruptedException e) {
+            LOG.debug("Interrupted discovering NAT behaviour", e);
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            LOG.debug("Could not discover NAT behaviour", e);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+        return new NatBehavior(NatMapping.UNKNOWN, mapped);
+    }
+
+    /**
+     * Picks servers with as many different IP addresses as possible, along
+     * with a second port on the first IP address if there is one.
+     */
+    private List<InetSocketAddress> pickServers() {
+        final Collection<InetSocketAddress> candidates =
+            m_servers == null ? StunServerRepository.getServers() : m_servers;
+        final List<InetSocketAddress> resolved =
+            new ArrayList<InetSocketAddress>();
+        try {
+            StunServerResolver.prewarm(candidates).get(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            LOG.debug("Could not resolve servers", e);
+        } catch (final TimeoutException e) {
+            LOG.debug("Timed out resolving servers", e);
+        }
+        for (final InetSocketAddress isa : candidates) {
+            final InetSocketAddress r = StunServerResolver.getResolved(isa);
+            if (!r.isUnresolved() && !resolved.contains(r)) {
+                resolved.add(r);
+            }
+        }
+        final List<InetSocketAddress> picked =
+            new ArrayList<InetSocketAddress>();
+        for (final InetSocketAddress isa : resolved) {
+            if (picked.size() < MAX_SERVERS - 1 &&
+                !containsIp(picked, isa.getAddress())) {
+                picked.add(isa);
+            }
+        }
+        if (!picked.isEmpty()) {
+            final InetSocketAddress first = picked.get(0);
+            for (final InetSocketAddress isa : resolved) {
+                if (isa.getAddress().equals(first.getAddress()) &&
+                    isa.getPort() != first.getPort()) {
+                    picked.add(isa);
+                    break;
+                }
+            }
+        }
+        return picked;
+    }
+
+    private static boolean containsIp(final Collection<InetSocketAddress> isas,
+        final InetAddress ia) {
+        for (final InetSocketAddress isa : isas) {
+            if (isa.getAddress().equals(ia)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Classifies the mapping behaviour of our NAT given the addresses
+     * different servers mapped the same local port to.
+     *
+     * @param local Our local address.
+     * @param mapped The mapped address reported by each server.
+     * @return The mapping behaviour.
+     */
+    static NatMapping classify(final InetSocketAddress local,
+        final Map<InetSocketAddress, InetSocketAddress> mapped) {
+        if (mapped.isEmpty()) {
+            return NatMapping.UNKNOWN;
+        }
+        final InetSocketAddress first = mapped.values().iterator().next();
+        if (first.getPort() == local.getPort() &&
+            isLocalAddress(first.getAddress())) {
+            return NatMapping.NO_NAT;
+        }
+        boolean differentIp = false;
+        boolean differentIpChanged = false;
+        boolean differentPort = false;
+        boolean differentPortChanged = false;
+        final List<Map.Entry<InetSocketAddress, InetSocketAddress>> entries =
+            new ArrayList<Map.Entry<InetSocketAddress, InetSocketAddress>>(
+                mapped.entrySet());
+        for (int i = 0; i < entries.size(); i++) {
+            for (int j = i + 1; j < entries.size(); j++) {
+                final InetSocketAddress a = entries.get(i).getKey();
+                final InetSocketAddress b = entries.get(j).getKey();
+                final boolean changed = !entries.get(i).getValue().equals(
+                    entries.get(j).getValue());
+                if (!a.getAddress().equals(b.getAddress())) {
+                    differentIp = true;
+                    differentIpChanged |= changed;
+                } else if (a.getPort() != b.getPort()) {
+                    differentPort = true;
+                    differentPortChanged |= changed;
+                }
+            }
+        }
+        if (differentPortChanged) {
+            return NatMapping.ADDRESS_AND_PORT_DEPENDENT;
+        }
+        if (!differentIp) {
+            // We can't tell whether the mapping depends on the address.
+            return NatMapping.UNKNOWN;
+        }
+        if (!differentIpChanged) {
+            return NatMapping.ENDPOINT_INDEPENDENT;
+        }
+        // Without two ports on the same server we assume the worst.
+        return differentPort ? NatMapping.ADDRESS_DEPENDENT :
+            NatMapping.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    private static boolean isLocalAddress(final InetAddress ia) {
+        if (ia.isLoopbackAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(ia) != null;
+        } catch (final SocketException e) {
+            return false;
+        }
+    }
+
+    private long searchLifetime(final long maxLifetime,
+        final long resolution) {
+        final NatBehavior behavior = discoverAsync().join();
+        if (behavior.getMappedAddresses().isEmpty()) {
+            return 0L;
+        }
+        final InetSocketAddress server =
+            behavior.getMappedAddresses().keySet().iterator().next();
+        long survived = 0L;
+        long expired = maxLifetime + 1;
+        while (expired - survived > Math.max(1L, resolution)) {
+            // Probe evenly spaced intervals up to the shortest interval we
+            // know the binding expires within.
+            final long top = Math.min(expired - 1, maxLifetime);
+            final List<Long> intervals = new ArrayList<Long>();
+            final List<CompletableFuture<Boolean>> probes =
+                new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 1; i <= LIFETIME_PROBES; i++) {
+                final long interval =
+                    survived + ((top - survived) * i / LIFETIME_PROBES);
+                if (interval > survived && !intervals.contains(interval)) {
+                    intervals.add(interval);
+                    probes.add(probe(server, interval));
+                }
+            }
+            if (probes.isEmpty()) {
+                break;
+            }
+            boolean learned = false;
+            for (int i = 0; i < probes.size(); i++) {
+                final Boolean survivedInterval = probes.get(i).join();
+                if (survivedInterval == null) {
+                    continue;
+                }
+                learned = true;
+                final long interval = intervals.get(i);
+                if (survivedInterval.booleanValue()) {
+                    survived = Math.max(survived, interval);
+                } else {
+                    expired = Math.min(expired, interval);
+                }
+            }
+            if (!learned) {
+                LOG.debug("No lifetime probes got answers");
+                break;
+            }
+            if (survived >= maxLifetime) {
+                break;
+            }
+            if (survived >= expired) {
+                // Contradictory results, typically from a NAT with a
+                // lifetime that varies.  Trust the shorter interval.
+                survived = Math.min(survived, expired - 1);
+                break;
+            }
+            LOG.debug("Binding lifetime between {} and {}", survived, expired);
+        }
+        return survived;
+    }
+
+    /**
+     * Learns a mapping from a fresh local port, leaves it idle for the
+     * specified interval and then checks whether it's still there.
+     *
+     * @return A future that completes with whether the binding survived,
+     * or <code>null</code> if the server didn't answer.
+     */
+    private static CompletableFuture<Boolean> probe(
+        final InetSocketAddress server, final long interval) {
+        final CompletableFuture<Boolean> result =
+            new CompletableFuture<Boolean>();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final UdpStunClient client;
+                final InetSocketAddress before;
+                try {
+                    client = new UdpStunClient(server);
+                    client.connect();
+                    before = client.write(new BindingRequest(), server)
+                        .accept(UdpStunClient.MAPPED_ADDRESS_VISITOR);
+                } catch (final IOException e) {
+                    LOG.debug("Could not start lifetime probe", e);
+                    result.complete(null);
+                    return;
+                }
+                if (before == null) {
+                    client.close();
+                    result.complete(null);
+                    return;
+                }
+                StunTransactionTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        final CompletableFuture<StunMessage> after;
+                        try {
+                            after = client.writeAsync(new BindingRequest(),
+                                server);
+                        } catch (final IOException e) {
+                            client.close();
+                            result.complete(null);
+                            return;
+                        }
+                        after.whenComplete(
+                            new BiConsumer<StunMessage, Throwable>() {
+                            @Override
+                            public void accept(final StunMessage message,
+                                final Throwable t) {
+                                client.close();
+                                final InetSocketAddress isa = t != null ?
+                                    null : message.accept(
+                                        UdpStunClient.MAPPED_ADDRESS_VISITOR);
+                                result.complete(isa == null ?
+                                    null : Boolean.valueOf(isa.equals(before)));
+                            }
+                        });
+                    }
+                }, interval);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A binding lifetime search and the bounds it was run with, as a
+     * search with different bounds can give a different answer.
+     */
+    private static final class LifetimeSearch {
+
+        private final long m_maxLifetime;
+
+        private final long m_resolution;
+
+        private final CompletableFuture<Long> m_future =
+            new CompletableFuture<Long>();
+
+        private volatile long m_timestamp;
+
+        private LifetimeSearch(final long maxLifetime, final long resolution) {
+            this.m_maxLifetime = maxLifetime;
+            this.m_resolution = resolution;
+        }
+
+        private boolean matches(final long maxLifetime,
+            final long resolution) {
+            return m_maxLifetime == maxLifetime && m_resolution == resolution;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.lastbamboo.common.stun.client;
+
+/**
+ * How a NAT maps internal addresses to external addresses, as described in
+ * RFC 4787 section 4.1 and tested for in RFC 5780 section 4.3.
+ */
+public enum NatMapping {
+
+    /**
+     * There's no NAT between us and the STUN servers.
+     */
+    NO_NAT,
+
+    /**
+     * The NAT reuses the same mapping for all destinations.  This is the
+     * behaviour UDP hole punching relies on.
+     */
+    ENDPOINT_INDEPENDENT,
+
+    /**
+     * The NAT reuses mappings only for destinations with the same IP 
+     * address.
+     */
+    ADDRESS_DEPENDENT,
+
+    /**
+     * The NAT creates a new mapping for every destination IP and port.
+     */
+    ADDRESS_AND_PORT_DEPENDENT,
+
+    /**
+     * We couldn't get enough answers to tell.
+     */
+    UNKNOWN;
+
+    /**
+     * Returns whether or not peers can reach us at the mapped address we
+     * learn from a STUN server, which is what hole punching needs.
+     * 
+     * @return <code>true</code> if the mapped address works for any peer.
+     */
+    public boolean isMappedAddressReusable() {
+        return this == NO_NAT || this == ENDPOINT_INDEPENDENT;
+    }
+}
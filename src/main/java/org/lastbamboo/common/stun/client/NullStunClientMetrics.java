@@ -0,0 +1,49 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Metrics that ignore everything.  This is the default, so clients pay
+ * nothing for metrics unless they ask for them.
+ */
+public class NullStunClientMetrics implements StunClientMetrics {
+
+    @Override
+    public void onTransactionStarted(final InetSocketAddress server) {
+    }
+
+    @Override
+    public void onTransactionSucceeded(final InetSocketAddress server,
+        final int retransmissions) {
+    }
+
+    @Override
+    public void onTransactionFailed(final InetSocketAddress server,
+        final int retransmissions) {
+    }
+
+    @Override
+    public void onTransactionTimedOut(final InetSocketAddress server) {
+    }
+
+    @Override
+    public void onRtt(final InetSocketAddress server, final long rtt) {
+    }
+
+    @Override
+    public void onRankingChanged(final RankedStunServer previous,
+        final RankedStunServer current) {
+    }
+
+    @Override
+    public void onPublicIpCacheHit() {
+    }
+
+    @Override
+    public void onPublicIpCacheMiss() {
+    }
+
+    @Override
+    public void onPublicIpSource(final String source) {
+    }
+}
@@ -1,32 +1,23 @@
 package org.lastbamboo.common.stun.client;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.lang.StringUtils;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.littleshoot.util.PublicIp;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Generalized class that uses various techniques to obtain a public IP address.
+ * Each technique is a {@link PublicIpProvider}, and we ask the providers 
+ * that have answered fastest and most accurately first.
  * 
- * TODO: We need to add new methods for this -- Apache lookups and IRC 
+ * TODO: We need to add new providers for this -- Apache lookups and IRC 
  * lookups.
  * 
  * Google: 
@@ -40,150 +31,143 @@ import org.slf4j.LoggerFactory;
  */
 public class PublicIpAddress implements PublicIp {
 
-    private static final Logger LOG = 
-        LoggerFactory.getLogger(PublicIpAddress.class);
-    private static InetAddress publicIp;
-    private static long lastLookupTime;
+    private static final Object PROVIDERS_LOCK = new Object();
+
+    /**
+     * Our providers as an immutable list that's swapped on every change, 
+     * so a lookup always sees either the old providers or the new ones.
+     */
+    private static volatile List<PublicIpProvider> s_providers = 
+        Collections.unmodifiableList(Arrays.asList(
+            new StunPublicIpProvider(), HttpPublicIpProvider.wikiMedia(),
+            HttpPublicIpProvider.ifConfig()));
+
+    private static final PublicIpProviderRanking RANKING = 
+        new PublicIpProviderRanking();
+
+    /**
+     * The last address we looked up, which only needs one provider to 
+     * confirm it.
+     */
+    private static volatile InetAddress s_lastAddress;
+
+    private static final PublicIpCache CACHE = new PublicIpCache(
+        new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws InterruptedException {
+                return lookup();
+            }
+        }, StunExecutors.switchable(
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runner) {
+                final Thread thread = 
+                    new Thread(runner, "Public-IP-Lookup-Thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        })));
     
     private final long cacheTime;
 
-    private static final ExecutorService threadPool = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-            
-        private int count = 0;
-        @Override
-        public Thread newThread(final Runnable runner) {
-            final Thread thread = new Thread(runner, 
-                "Public-IP-Lookup-Thread-"+count);
-            thread.setDaemon(true);
-            count++;
-            return thread;
-        }
-    });
-    
+    /**
+     * Creates a new public IP lookup using the cache TTL from
+     * {@link StunClientConfig#getPublicIpCacheTtl()}.
+     */
     public PublicIpAddress() {
-        this.cacheTime = 100L;
+        this.cacheTime = -1L;
     }
     
+    /**
+     * Creates a new public IP lookup.  Note the cache itself is shared by
+     * all instances -- this just controls how fresh a cached address must
+     * be for this instance to use it.
+     * 
+     * @param cacheTime The time to consider a looked up address fresh, in
+     * seconds.
+     */
     public PublicIpAddress(final long cacheTime) {
         this.cacheTime = cacheTime;
     }
-    
+
     /**
-     * Determines the public IP address of this node.
+     * Adds a source for our public IP address.  By default we use STUN
+     * followed by a couple of HTTP services, but providers are always asked
+     * in order of how quickly and accurately they've answered before.
      * 
-     * @return The public IP address for this node.
+     * @param provider The provider to add.
      */
-    @Override
-    public InetAddress getPublicIpAddress() {
-        final long now = System.currentTimeMillis();
-        if (now - lastLookupTime < this.cacheTime * 1000 &&
-                (now - lastLookupTime < 2 * 1000 ||
-                        publicIp != null)) {
-            return publicIp;
-        }
-        
-        try {
-            publicIp = stunLookup();
-            return publicIp;
-        } catch (final InterruptedException e) {
-            LOG.error("Could not perform STUN lookup", e);
-        } catch (final ExecutionException e) {
-            LOG.error("Could not perform STUN lookup", e);
-        } catch (final TimeoutException e) {
-            LOG.error("Could not perform STUN lookup", e);
+    public static void addProvider(final PublicIpProvider provider) {
+        synchronized (PROVIDERS_LOCK) {
+            final List<PublicIpProvider> providers = 
+                new ArrayList<PublicIpProvider>(s_providers);
+            providers.add(provider);
+            s_providers = Collections.unmodifiableList(providers);
         }
+    }
 
-        publicIp = wikiMediaLookup();
-        if (publicIp != null) {
-            lastLookupTime = System.currentTimeMillis();
-            return publicIp;
-        }
-        publicIp = ifConfigLookup();
-        if (publicIp != null) {
-            lastLookupTime = System.currentTimeMillis();
-            return publicIp;
+    /**
+     * Removes a source for our public IP address.
+     * 
+     * @param provider The provider to remove.
+     */
+    public static void removeProvider(final PublicIpProvider provider) {
+        synchronized (PROVIDERS_LOCK) {
+            final List<PublicIpProvider> providers = 
+                new ArrayList<PublicIpProvider>(s_providers);
+            providers.remove(provider);
+            s_providers = Collections.unmodifiableList(providers);
         }
-        return null;
     }
 
-    private InetAddress stunLookup() throws InterruptedException, 
-        ExecutionException, TimeoutException {
-        final Collection<InetSocketAddress> servers = 
-            StunServerRepository.getServers();
-        final Collection<Callable<InetAddress>> tasks = 
-            new ArrayList<Callable<InetAddress>>(servers.size());
-        for (final InetSocketAddress sock : servers) {
-            final Callable<InetAddress> task = new Callable<InetAddress>() {
-                @Override
-                public InetAddress call() throws Exception {
-                    final StunClient stun = new UdpStunClient(sock);
-                    stun.connect();
-                    publicIp = stun.getServerReflexiveAddress().getAddress();
-                    lastLookupTime = System.currentTimeMillis();
-                    return publicIp;
-                }
-            };
-            tasks.add(task);
+    /**
+     * Replaces all our sources for our public IP address.
+     * 
+     * @param providers The providers to use.
+     */
+    public static void setProviders(
+        final Collection<? extends PublicIpProvider> providers) {
+        final List<PublicIpProvider> replacement = 
+            Collections.unmodifiableList(
+                new ArrayList<PublicIpProvider>(providers));
+        synchronized (PROVIDERS_LOCK) {
+            s_providers = replacement;
         }
-        return threadPool.invokeAny(tasks, 12, TimeUnit.SECONDS);
     }
 
-    private static InetAddress ifConfigLookup() {
-        final HttpClient client = new HttpClient();
-        final GetMethod get = new GetMethod("http://ifconfig.me");
-        // The service returns just the IP if we pretend we're curl.
-        get.setRequestHeader("User-Agent", 
-            "curl/7.19.7 (universal-apple-darwin10.0) libcurl/7.19.7 OpenSSL/0.9.8r zlib/1.2.3");
-        get.setFollowRedirects(true);
-        try {
-            final int response = client.executeMethod(get);
-            if (response < 200 || response > 299) {
-                LOG.warn("Got non-200 level response: "+response);
-                return null;
-            }
-            final String body = new String(get.getResponseBody(), "UTF-8");
-            LOG.info("Got response body:\n{}", body);
-            return InetAddress.getByName(body.trim());
-        } catch (final HttpException e) {
-            LOG.warn("HTTP error?", e);
-        } catch (final IOException e) {
-            LOG.warn("Error connecting?", e);
-        } catch (final Exception e) {
-            LOG.warn("Some other error?", e);
-        } finally {
-            get.releaseConnection();
-        }
-        return null;
+    /**
+     * Returns our sources for our public IP address, in the order we'll
+     * next ask them.
+     * 
+     * @return The providers, best first.
+     */
+    public static List<PublicIpProvider> getProviders() {
+        return RANKING.rank(s_providers);
+    }
+    
+    /**
+     * Determines the public IP address of this node.  Only the first callers
+     * ever wait on the network.  After that we return the cached address
+     * immediately, refreshing it in the background when it expires.
+     * 
+     * @return The public IP address for this node.
+     */
+    @Override
+    public InetAddress getPublicIpAddress() {
+        final long ttl = this.cacheTime < 0L ? 
+            StunClientConfig.getPublicIpCacheTtl() : this.cacheTime * 1000;
+        return CACHE.get(ttl, StunClientConfig.getPublicIpNegativeCacheTtl(),
+            StunClientConfig.getPublicIpMaxStale());
     }
 
-    private static InetAddress wikiMediaLookup() {
-        final HttpClient client = new HttpClient();
-        final GetMethod get = 
-            new GetMethod("http://geoiplookup.wikimedia.org/");
-        get.setFollowRedirects(true);
-        try {
-            final int response = client.executeMethod(get);
-            if (response < 200 || response > 299) {
-                LOG.warn("Got non-200 level response: "+response);
-                return null;
-            }
-            final String body = new String(get.getResponseBody(), "UTF-8");
-            LOG.info("Got response body:\n{}", body);
-            
-            final String jsonStr = StringUtils.substringAfter(body, "=").trim();
-            final JSONObject json = (JSONObject) JSONValue.parse(jsonStr);
-            final String inet = (String) json.get("IP");
-            return InetAddress.getByName(inet);
-        } catch (final HttpException e) {
-            LOG.warn("HTTP error?", e);
-        } catch (final IOException e) {
-            LOG.warn("Error connecting?", e);
-        } catch (final Exception e) {
-            LOG.warn("Some other error?", e);
-        } finally {
-            get.releaseConnection();
+    private static InetAddress lookup() throws InterruptedException {
+        final InetAddress ip = new PublicIpLookup(getProviders(), RANKING,
+            s_lastAddress, StunClientConfig.getPublicIpProviderQuorum(),
+            StunClientConfig.getPublicIpHedgeDelay()).run(
+                StunClientConfig.getPublicIpTimeout());
+        if (ip != null) {
+            s_lastAddress = ip;
         }
-        return null;
+        return ip;
     }
 }
@@ -0,0 +1,169 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the result of public IP lookups.  There's only ever a single
+ * lookup in flight, shared by all concurrent callers.  Once we have an
+ * address, callers get it immediately even after it expires while a
+ * background lookup refreshes it, so only the very first callers ever wait
+ * on the network.
+ */
+final class PublicIpCache {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PublicIpCache.class);
+
+    private final Callable<InetAddress> m_lookup;
+
+    private final Executor m_executor;
+
+    private volatile Entry m_entry;
+
+    private final AtomicReference<CompletableFuture<InetAddress>> m_inFlight =
+        new AtomicReference<CompletableFuture<InetAddress>>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param lookup The lookup to perform.  This should return
+     * <code>null</code> if it can't determine the address.
+     * @param executor The executor to run lookups on.
+     */
+    PublicIpCache(final Callable<InetAddress> lookup,
+        final Executor executor) {
+        this.m_lookup = lookup;
+        this.m_executor = executor;
+    }
+
+    /**
+     * Returns the cached address, looking it up if necessary.
+     *
+     * @param ttl How long to consider a successful lookup fresh, in
+     * milliseconds.
+     * @param negativeTtl How long to wait after a failed lookup before
+     * trying again, in milliseconds.
+     * @param maxStale How long past its TTL we'll return an address while we
+     * refresh it in the background, in milliseconds.
+     * @return The address, or <code>null</code> if we could not determine
+     * it.
+     */
+    InetAddress get(final long ttl, final long negativeTtl,
+        final long maxStale) {
+        final Entry entry = this.m_entry;
+        final long now = System.currentTimeMillis();
+        final StunClientMetrics metrics = StunClientConfig.getMetrics();
+        if (entry != null) {
+            if (entry.m_address != null && now - entry.m_resolved < ttl) {
+                metrics.onPublicIpCacheHit();
+                return entry.m_address;
+            }
+            if (now - entry.m_checked < negativeTtl) {
+                metrics.onPublicIpCacheHit();
+                return entry.m_address;
+            }
+            if (entry.m_address != null &&
+                now - entry.m_resolved < ttl + maxStale) {
+                LOG.debug("Returning stale address while refreshing");
+                refresh();
+                metrics.onPublicIpCacheHit();
+                return entry.m_address;
+            }
+        }
+        metrics.onPublicIpCacheMiss();
+        try {
+            return refresh().get();
+        } catch (final InterruptedException e) {
+            LOG.debug("Interrupted waiting for lookup");
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            LOG.warn("Lookup failed", e);
+        }
+        return entry == null ? null : entry.m_address;
+    }
+
+    /**
+     * Starts a lookup unless one is already in flight.
+     *
+     * @return The future for the lookup in flight.
+     */
+    CompletableFuture<InetAddress> refresh() {
+        while (true) {
+            final CompletableFuture<InetAddress> existing =
+                this.m_inFlight.get();
+            if (existing != null) {
+                return existing;
+            }
+            final CompletableFuture<InetAddress> lookup =
+                new CompletableFuture<InetAddress>();
+            if (this.m_inFlight.compareAndSet(null, lookup)) {
+                start(lookup);
+                return lookup;
+            }
+        }
+    }
+
+    private void start(final CompletableFuture<InetAddress> lookup) {
+        this.m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress address = null;
+                try {
+                    address = m_lookup.call();
+                } catch (final Exception e) {
+                    LOG.warn("Error looking up public IP", e);
+                } finally {
+                    update(address);
+                    m_inFlight.set(null);
+                    lookup.complete(address);
+                }
+            }
+        });
+    }
+
+    private void update(final InetAddress address) {
+        final long now = System.currentTimeMillis();
+        final Entry entry = this.m_entry;
+        if (address != null) {
+            this.m_entry = new Entry(address, now, now);
+        } else if (entry == null) {
+            this.m_entry = new Entry(null, 0L, now);
+        } else {
+            // Keep the last good address around to serve stale.
+            this.m_entry = new Entry(entry.m_address, entry.m_resolved, now);
+        }
+    }
+
+    private static final class Entry {
+
+        /**
+         * The last address we successfully looked up, if any.
+         */
+        private final InetAddress m_address;
+
+        /**
+         * When we looked up the address.
+         */
+        private final long m_resolved;
+
+        /**
+         * When we last finished a lookup, successful or not.
+         */
+        private final long m_checked;
+
+        private Entry(final InetAddress address, final long resolved,
+            final long checked) {
+            this.m_address = address;
+            this.m_resolved = resolved;
+            this.m_checked = checked;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single public IP lookup across a ranked list of providers.  We start
+ * with as many of the best providers as we need for a quorum, then bring 
+ * in the next provider whenever one fails, disagrees or hasn't answered
+ * within the hedge delay.  An address we already had only needs one 
+ * provider to confirm it, but a new address needs the full quorum, so a
+ * single lying or stale provider can't flap our address.
+ */
+final class PublicIpLookup {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PublicIpLookup.class);
+
+    private final List<PublicIpProvider> m_providers;
+
+    private final PublicIpProviderRanking m_ranking;
+
+    private final InetAddress m_previous;
+
+    private final int m_quorum;
+
+    private final long m_hedgeDelay;
+
+    private final CompletableFuture<InetAddress> m_result =
+        new CompletableFuture<InetAddress>();
+
+    private final List<CompletableFuture<InetAddress>> m_lookups =
+        new ArrayList<CompletableFuture<InetAddress>>();
+
+    private final Map<String, InetAddress> m_answers =
+        new HashMap<String, InetAddress>();
+
+    private final Map<InetAddress, Integer> m_votes =
+        new HashMap<InetAddress, Integer>();
+
+    private int m_next;
+
+    private int m_outstanding;
+
+    private ScheduledFuture<?> m_hedge;
+
+    /**
+     * Creates a new lookup.
+     *
+     * @param providers The providers to ask, best first.
+     * @param ranking Where we record what we learn about the providers.
+     * @param previous The address we currently have, if any.
+     * @param quorum The number of providers that must agree on a new
+     * address.
+     * @param hedgeDelay How long we wait for an answer before also asking
+     * the next provider.
+     */
+    PublicIpLookup(final List<PublicIpProvider> providers,
+        final PublicIpProviderRanking ranking, final InetAddress previous,
+        final int quorum, final long hedgeDelay) {
+        this.m_providers = providers;
+        this.m_ranking = ranking;
+        this.m_previous = previous;
+        this.m_quorum = Math.max(1, quorum);
+        this.m_hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Runs the lookup.
+     *
+     * @param timeout The longest to wait in milliseconds.
+     * @return The address, or <code>null</code> if we couldn't get enough
+     * providers to agree on one in time.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    InetAddress run(final long timeout) throws InterruptedException {
+        final ScheduledFuture<?> deadline = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                if (m_result.complete(null)) {
+                    LOG.warn("Timed out looking up public IP");
+                }
+            }
+        }, timeout);
+        synchronized (this) {
+            for (int i = 0; i < m_quorum; i++) {
+                startNext();
+            }
+            if (m_outstanding == 0) {
+                m_result.complete(null);
+            }
+        }
+        try {
+            return m_result.get();
+        } catch (final ExecutionException e) {
+            LOG.error("Could not look up public IP", e);
+            return null;
+        } finally {
+            deadline.cancel(false);
+            finish();
+        }
+    }
+
+    /**
+     * Starts the next provider, if there is one.  Must be called holding
+     * the lock.
+     */
+    private void startNext() {
+        cancelHedge();
+        if (m_result.isDone() || m_next >= m_providers.size()) {
+            return;
+        }
+        final PublicIpProvider provider = m_providers.get(m_next++);
+        LOG.debug("Asking {} for our public IP", provider.getName());
+        final long start = System.nanoTime();
+        final CompletableFuture<InetAddress> lookup;
+        try {
+            lookup = provider.lookupAsync();
+        } catch (final RuntimeException e) {
+            LOG.warn("Error starting " + provider.getName(), e);
+            m_ranking.onFailure(provider.getName());
+            startNext();
+            return;
+        }
+        m_lookups.add(lookup);
+        m_outstanding++;
+        lookup.whenComplete(new BiConsumer<InetAddress, Throwable>() {
+            @Override
+            public void accept(final InetAddress ip, final Throwable t) {
+                if (!lookup.isCancelled()) {
+                    onAnswer(provider, t == null ? ip : null,
+                        (System.nanoTime() - start) / 1000000L);
+                }
+            }
+        });
+        // If the provider answered straight away we've already moved on,
+        // possibly scheduling a hedge of our own.
+        if (!lookup.isDone() && m_next < m_providers.size()) {
+            cancelHedge();
+            m_hedge = StunTransactionTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PublicIpLookup.this) {
+                        startNext();
+                    }
+                }
+            }, m_hedgeDelay);
+        }
+    }
+
+    /**
+     * Cancels any pending hedge.  Must be called holding the lock.
+     */
+    private void cancelHedge() {
+        if (m_hedge != null) {
+            m_hedge.cancel(false);
+            m_hedge = null;
+        }
+    }
+
+    private void onAnswer(final PublicIpProvider provider,
+        final InetAddress ip, final long latency) {
+        final String name = provider.getName();
+        InetAddress accepted = null;
+        synchronized (this) {
+            m_outstanding--;
+            if (ip == null) {
+                LOG.debug("No answer from {}", name);
+                m_ranking.onFailure(name);
+                startNext();
+            } else {
+                m_ranking.onAnswer(name, latency);
+                m_answers.put(name, ip);
+                final Integer votes = m_votes.get(ip);
+                final int count = votes == null ? 1 : votes + 1;
+                m_votes.put(ip, count);
+                final int needed = ip.equals(m_previous) ? 1 : m_quorum;
+                if (count >= needed) {
+                    accepted = ip;
+                } else {
+                    LOG.debug("{} says {}, waiting for agreement", name, ip);
+                    startNext();
+                }
+            }
+            if (accepted == null && m_outstanding == 0 &&
+                m_next >= m_providers.size()) {
+                LOG.warn("Public IP providers did not agree: {}", m_answers);
+                m_result.complete(null);
+            }
+        }
+        if (accepted != null && m_result.complete(accepted)) {
+            StunClientConfig.getMetrics().onPublicIpSource(name);
+        }
+    }
+
+    /**
+     * Cancels any providers we haven't heard from and updates how accurate
+     * the ones we have heard from were.
+     */
+    private void finish() {
+        final InetAddress result = m_result.getNow(null);
+        synchronized (this) {
+            cancelHedge();
+            for (final CompletableFuture<InetAddress> lookup : m_lookups) {
+                lookup.cancel(false);
+            }
+            if (result != null) {
+                for (final Map.Entry<String, InetAddress> answer :
+                    m_answers.entrySet()) {
+                    m_ranking.onVerdict(answer.getKey(),
+                        result.equals(answer.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A source for our public IP address, such as STUN servers or an HTTP
+ * service that echoes back the address it sees.  Register providers with
+ * {@link PublicIpAddress#addProvider(PublicIpProvider)}.
+ */
+public interface PublicIpProvider {
+
+    /**
+     * Returns a short name for the provider, used to keep its stats and in
+     * metrics.  This should be unique among registered providers.
+     * 
+     * @return The name of the provider.
+     */
+    String getName();
+
+    /**
+     * Starts looking up our public IP address.  This must not block.  
+     * Cancelling the returned future should stop the lookup.
+     * 
+     * @return The future address.  This completes with <code>null</code>
+     * if the provider can't determine our address.
+     */
+    CompletableFuture<InetAddress> lookupAsync();
+}
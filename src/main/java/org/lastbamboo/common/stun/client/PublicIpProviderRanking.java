@@ -0,0 +1,169 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps what we've learned about each public IP provider so we can ask the
+ * best ones first.  Like {@link RankedStunServer}, providers are ranked by
+ * a cost that's their exponentially decayed latency plus penalties for how
+ * often they fail to answer and how often they disagree with the address
+ * we end up accepting.  Lower costs are better.
+ */
+final class PublicIpProviderRanking {
+
+    /**
+     * The weight given to each new sample in the moving averages.
+     */
+    private static final double ALPHA = 0.25;
+
+    /**
+     * The latency we assume for providers we haven't heard from yet.
+     */
+    private static final double UNKNOWN_LATENCY = 200.0;
+
+    /**
+     * The cost of a provider that never answers.
+     */
+    private static final double FAILURE_PENALTY = 10000.0;
+
+    /**
+     * The cost of a provider that always gives the wrong answer.  This is 
+     * higher than for failures, as a wrong answer is worse than none.
+     */
+    private static final double DISAGREEMENT_PENALTY = 20000.0;
+
+    private final ConcurrentMap<String, Stats> m_stats = 
+        new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Returns the specified providers ordered from best to worst.  
+     * Providers we know nothing about keep their relative order.
+     * 
+     * @param providers The providers.
+     * @return The providers, best first.
+     */
+    List<PublicIpProvider> rank(final List<PublicIpProvider> providers) {
+        // We take a snapshot of the costs first because they can change
+        // while we're sorting.
+        final List<Ranked> snapshot = new ArrayList<Ranked>(providers.size());
+        for (final PublicIpProvider provider : providers) {
+            snapshot.add(new Ranked(provider, getCost(provider.getName())));
+        }
+        Collections.sort(snapshot, new Comparator<Ranked>() {
+            @Override
+            public int compare(final Ranked r1, final Ranked r2) {
+                return Double.compare(r1.m_cost, r2.m_cost);
+            }
+        });
+        final List<PublicIpProvider> ranked =
+            new ArrayList<PublicIpProvider>(snapshot.size());
+        for (final Ranked r : snapshot) {
+            ranked.add(r.m_provider);
+        }
+        return ranked;
+    }
+
+    /**
+     * Records an answer from a provider.
+     * 
+     * @param name The name of the provider.
+     * @param latency How long the provider took to answer in milliseconds.
+     */
+    void onAnswer(final String name, final long latency) {
+        stats(name).onAnswer(latency);
+    }
+
+    /**
+     * Records a provider failing to answer.
+     * 
+     * @param name The name of the provider.
+     */
+    void onFailure(final String name) {
+        stats(name).onFailure();
+    }
+
+    /**
+     * Records whether a provider's answer matched the address we accepted.
+     * 
+     * @param name The name of the provider.
+     * @param agreed Whether the provider agreed.
+     */
+    void onVerdict(final String name, final boolean agreed) {
+        stats(name).onVerdict(agreed);
+    }
+
+    /**
+     * Returns the cost of a provider.
+     * 
+     * @param name The name of the provider.
+     * @return The cost.
+     */
+    double getCost(final String name) {
+        final Stats stats = m_stats.get(name);
+        return stats == null ? UNKNOWN_LATENCY : stats.getCost();
+    }
+
+    /**
+     * Forgets everything we've learned.
+     */
+    void clear() {
+        m_stats.clear();
+    }
+
+    private Stats stats(final String name) {
+        final Stats existing = m_stats.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final Stats stats = new Stats();
+        final Stats raced = m_stats.putIfAbsent(name, stats);
+        return raced == null ? stats : raced;
+    }
+
+    private static final class Stats {
+
+        private double m_latency = UNKNOWN_LATENCY;
+        private boolean m_answered;
+        private double m_failureRate;
+        private double m_disagreementRate;
+
+        private synchronized void onAnswer(final long latency) {
+            if (m_answered) {
+                m_latency += ALPHA * (latency - m_latency);
+            } else {
+                m_latency = latency;
+                m_answered = true;
+            }
+            m_failureRate -= ALPHA * m_failureRate;
+        }
+
+        private synchronized void onFailure() {
+            m_failureRate += ALPHA * (1.0 - m_failureRate);
+        }
+
+        private synchronized void onVerdict(final boolean agreed) {
+            m_disagreementRate += 
+                ALPHA * ((agreed ? 0.0 : 1.0) - m_disagreementRate);
+        }
+
+        private synchronized double getCost() {
+            return m_latency + FAILURE_PENALTY * m_failureRate +
+                DISAGREEMENT_PENALTY * m_disagreementRate;
+        }
+    }
+
+    private static final class Ranked {
+        private final PublicIpProvider m_provider;
+        private final double m_cost;
+
+        private Ranked(final PublicIpProvider provider, final double cost) {
+            this.m_provider = provider;
+            this.m_cost = cost;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+
+/**
+ * A STUN server along with what we've learned about it, namely how quickly
+ * it answers, how often it fails to answer at all and our estimate of the
+ * round-trip time to it.  There's a single instance per server address
+ * shared by all clients, so everything learned about a server benefits every
+ * later request to it.
+ * <p>
+ * Servers are ranked by their cost, which is the exponentially decayed
+ * latency plus a penalty proportional to the exponentially decayed loss
+ * rate.  Lower costs are better.
+ */
+public class RankedStunServer implements Comparable<RankedStunServer> {
+
+    private static final ConcurrentMap<InetSocketAddress, RankedStunServer>
+        SERVERS = new ConcurrentHashMap<InetSocketAddress, RankedStunServer>();
+
+    /**
+     * The weight given to each new sample in the moving averages.
+     */
+    private static final double ALPHA = 0.25;
+
+    /**
+     * The latency we assume for servers we haven't heard from yet.  This
+     * makes sure we try new servers before servers we know are slow.
+     */
+    private static final double UNKNOWN_LATENCY = 200.0;
+
+    /**
+     * The cost of a server that never answers, roughly the time we waste
+     * on a failed transaction before moving on.
+     */
+    private static final double LOSS_PENALTY = 10000.0;
+
+    /**
+     * The half life of the loss rate, so servers that failed a long time ago
+     * are gradually forgiven.
+     */
+    private static final long LOSS_HALF_LIFE = 10 * 60 * 1000L;
+
+    /**
+     * The loss rate above which we consider a server demoted.
+     */
+    private static final double DEMOTED_LOSS_RATE = 0.5;
+
+    /**
+     * How often we re-probe demoted servers to see if they've recovered.
+     */
+    private static final long REPROBE_INTERVAL = 60 * 1000L;
+
+    private final InetSocketAddress isa;
+
+    private double latency;
+    private double lossRate;
+    private int samples;
+    private long lossUpdated;
+    private long lastFailure;
+    private long lastAttempt;
+
+    /**
+     * Returns the ranked server for the specified address, creating it if
+     * necessary.  This never waits on DNS.  Host names are resolved, and 
+     * verified with DNSSEC if so configured, in the background by the 
+     * {@link StunServerResolver}.
+     *
+     * @param isa The address of the server.
+     * @return The ranked server.
+     * @throws DNSSECException If the server's address has already failed
+     * DNSSEC verification.
+     */
+    public static RankedStunServer forAddress(final InetSocketAddress isa)
+        throws DNSSECException {
+        if (StunServerResolver.isDnsSecFailure(isa)) {
+            throw new DNSSECException("Could not verify " + isa);
+        }
+        final RankedStunServer existing = SERVERS.get(isa);
+        if (existing != null) {
+            return existing;
+        }
+        final RankedStunServer rss = new RankedStunServer(isa);
+        final RankedStunServer raced = SERVERS.putIfAbsent(isa, rss);
+        return raced == null ? rss : raced;
+    }
+
+    /**
+     * Returns every server we've created.
+     *
+     * @return The servers.
+     */
+    static Collection<RankedStunServer> getAll() {
+        return new ArrayList<RankedStunServer>(SERVERS.values());
+    }
+
+    /**
+     * Forgets everything we've learned about every server.
+     */
+    static void clear() {
+        SERVERS.clear();
+    }
+
+    private RankedStunServer(final InetSocketAddress isa) {
+        this.isa = isa;
+    }
+
+    /**
+     * Accessor for the address of the server as it was given to us, which 
+     * is unresolved if it was given by name.
+     *
+     * @return The address as given.
+     */
+    InetSocketAddress getGivenAddress() {
+        return isa;
+    }
+
+    /**
+     * Accessor for the address of the server.  This is the most recently
+     * resolved address for the server, which may be unresolved if we
+     * haven't managed to resolve it yet.
+     *
+     * @return The address of the server.
+     */
+    public InetSocketAddress getAddress() {
+        return StunServerResolver.getResolved(isa);
+    }
+
+    /**
+     * Accessor for the round-trip time estimate for this server.  This is
+     * shared with all other clients using the same server.
+     *
+     * @return The round-trip time estimator.
+     */
+    public RttEstimator getRttEstimator() {
+        return RttEstimator.forServer(getAddress());
+    }
+
+    /**
+     * Returns the cost of using this server.  Lower is better.
+     *
+     * @return The cost, in roughly milliseconds of expected latency.
+     */
+    public synchronized double getCost() {
+        final double expectedLatency = samples == 0 ? UNKNOWN_LATENCY : latency;
+        return expectedLatency + (getLossRate() * LOSS_PENALTY);
+    }
+
+    /**
+     * Accessor for the decayed latency of successful transactions with this
+     * server.
+     *
+     * @return The latency in milliseconds, or zero if we've never
+     * successfully used this server.
+     */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the current loss rate, decayed according to how long ago the
+     * last failure was.
+     *
+     * @return The loss rate, between zero and one.
+     */
+    public synchronized double getLossRate() {
+        if (lossRate == 0.0) {
+            return 0.0;
+        }
+        final long age = System.currentTimeMillis() - lossUpdated;
+        return lossRate * Math.pow(0.5, (double) age / LOSS_HALF_LIFE);
+    }
+
+    /**
+     * Accessor for the time of the last failed transaction with this server.
+     *
+     * @return The time of the last failure in milliseconds since the epoch,
+     * or zero if the server has never failed.
+     */
+    public synchronized long getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Returns the number of successful transactions our latency is based
+     * on.
+     *
+     * @return The number of samples.
+     */
+    synchronized int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Restores what we learned about this server in an earlier run, unless
+     * we've already learned something about it in this one.
+     *
+     * @param latency The decayed latency.
+     * @param samples The number of samples the latency is based on.
+     * @param lossRate The loss rate as of the time given.
+     * @param lossUpdated The time the loss rate is for.
+     * @param lastFailure The time of the last failure, or zero.
+     * @return <code>true</code> if we restored the state.
+     */
+    synchronized boolean restore(final double latency, final int samples,
+        final double lossRate, final long lossUpdated, 
+        final long lastFailure) {
+        if (this.samples != 0 || this.lastFailure != 0L) {
+            return false;
+        }
+        this.latency = latency;
+        this.samples = samples;
+        this.lossRate = lossRate;
+        this.lossUpdated = lossUpdated;
+        this.lastFailure = lastFailure;
+        return true;
+    }
+
+    /**
+     * Returns whether or not this server has failed enough recently that we
+     * only use it as a last resort.
+     *
+     * @return <code>true</code> if the server is demoted.
+     */
+    public boolean isDemoted() {
+        return getLossRate() >= DEMOTED_LOSS_RATE;
+    }
+
+    /**
+     * Returns whether or not this server is demoted and hasn't been tried
+     * for long enough that we should probe it again.
+     *
+     * @return <code>true</code> if we should re-probe the server.
+     */
+    synchronized boolean isDueForReprobe() {
+        return isDemoted() &&
+            System.currentTimeMillis() - lastAttempt > REPROBE_INTERVAL;
+    }
+
+    /**
+     * Records that we're about to send a request to this server.
+     */
+    synchronized void onAttempt() {
+        lastAttempt = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a successful transaction with this server.
+     *
+     * @param millis The time the transaction took, including any
+     * retransmissions.
+     */
+    synchronized void onSuccess(final long millis) {
+        if (samples == 0) {
+            latency = millis;
+        } else {
+            latency = ((1 - ALPHA) * latency) + (ALPHA * millis);
+        }
+        samples++;
+        lossRate = (1 - ALPHA) * getLossRate();
+        lossUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a failed transaction with this server.
+     */
+    synchronized void onFailure() {
+        lossRate = ((1 - ALPHA) * getLossRate()) + ALPHA;
+        lastFailure = System.currentTimeMillis();
+        lossUpdated = lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "RankedStunServer [isa=" + isa + " cost="+getCost()+
+            " rto="+getRttEstimator().getRto()+"]";
+    }
+
+    @Override
+    public int compareTo(final RankedStunServer rss) {
+        return Double.compare(getCost(), rss.getCost());
+    }
+}
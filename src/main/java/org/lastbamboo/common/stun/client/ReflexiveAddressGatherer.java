@@ -0,0 +1,406 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers the server reflexive address of every local interface at once,
+ * for both IPv4 and IPv6.  Each local address gets its own socket on a 
+ * shared transport, and all of them send to all of their servers at the 
+ * same time, so gathering takes about as long as the slowest single round 
+ * trip no matter how many interfaces the host has.  The sockets stay bound
+ * between calls, so NAT bindings from one gather are usually still there 
+ * for the next.
+ * <p>
+ * Local addresses only talk to servers of the same family.  We resolve
+ * every address of each server name, both A and AAAA records, so a 
+ * dual-stack server covers both families.  With DNSSEC on we only use the
+ * single address that verifies.
+ * <p>
+ * Each local address keeps the same client from one gather to the next
+ * until its servers change.  Call {@link #close()} when done to release 
+ * them.
+ */
+public class ReflexiveAddressGatherer {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReflexiveAddressGatherer.class);
+
+    private final SharedUdpStunTransport m_transport;
+
+    private final boolean m_ownsTransport;
+
+    private final Collection<InetSocketAddress> m_stunServers;
+
+    private final Map<InetAddress, LocalClient> m_clients =
+        new HashMap<InetAddress, LocalClient>();
+
+    /**
+     * Creates a new gatherer with its own transport.
+     *
+     * @param stunServers The STUN servers to use.
+     */
+    public ReflexiveAddressGatherer(
+        final Collection<InetSocketAddress> stunServers) {
+        this(new SharedUdpStunTransport(), true, stunServers);
+    }
+
+    /**
+     * Creates a new gatherer.
+     *
+     * @param transport The shared transport to bind our sockets on.
+     * @param stunServers The STUN servers to use.
+     */
+    public ReflexiveAddressGatherer(final SharedUdpStunTransport transport,
+        final Collection<InetSocketAddress> stunServers) {
+        this(transport, false, stunServers);
+    }
+
+    private ReflexiveAddressGatherer(final SharedUdpStunTransport transport,
+        final boolean ownsTransport,
+        final Collection<InetSocketAddress> stunServers) {
+        this.m_transport = transport;
+        this.m_ownsTransport = ownsTransport;
+        this.m_stunServers = new ArrayList<InetSocketAddress>(stunServers);
+    }
+
+    /**
+     * Returns the addresses of all interfaces that are up, leaving out
+     * loopback and link-local addresses since those can never reach a STUN
+     * server.
+     *
+     * @return The local addresses.
+     * @throws SocketException If we can't list the interfaces.
+     */
+    public static List<InetAddress> getLocalAddresses() throws SocketException {
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+        final Enumeration<NetworkInterface> interfaces =
+            NetworkInterface.getNetworkInterfaces();
+        if (interfaces == null) {
+            return addresses;
+        }
+        for (final NetworkInterface ni : Collections.list(interfaces)) {
+            if (!ni.isUp() || ni.isLoopback()) {
+                continue;
+            }
+            for (final InetAddress address :
+                Collections.list(ni.getInetAddresses())) {
+                if (address.isLoopbackAddress() ||
+                    address.isLinkLocalAddress() ||
+                    address.isAnyLocalAddress() ||
+                    address.isMulticastAddress()) {
+                    continue;
+                }
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Gathers the server reflexive address of every local interface.
+     *
+     * @param timeout The longest to wait.
+     * @param unit The unit of the timeout.
+     * @return The server reflexive address of each local address we could 
+     * get one for, keyed by the local address and port we sent from.  If
+     * we time out this has the addresses we'd gathered by then.
+     * @throws IOException If we can't list the interfaces or we're 
+     * interrupted.
+     */
+    public Map<InetSocketAddress, InetSocketAddress> gather(
+        final long timeout, final TimeUnit unit) throws IOException {
+        return gather(getLocalAddresses(), timeout, unit);
+    }
+
+    /**
+     * Gathers the server reflexive addresses of the specified local 
+     * addresses.
+     *
+     * @param localAddresses The local addresses to gather from.
+     * @param timeout The longest to wait.
+     * @param unit The unit of the timeout.
+     * @return The server reflexive address of each local address we could 
+     * get one for, keyed by the local address and port we sent from.  If
+     * we time out this has the addresses we'd gathered by then.
+     * @throws IOException If we're interrupted.
+     */
+    public Map<InetSocketAddress, InetSocketAddress> gather(
+        final Collection<InetAddress> localAddresses, final long timeout, 
+        final TimeUnit unit) throws IOException {
+        final List<InetSocketAddress> hosts = 
+            new ArrayList<InetSocketAddress>();
+        final List<CompletableFuture<InetSocketAddress>> lookups =
+            new ArrayList<CompletableFuture<InetSocketAddress>>();
+        final CompletableFuture<Map<InetSocketAddress, InetSocketAddress>> 
+            future = gatherAsync(localAddresses, hosts, lookups);
+        try {
+            return future.get(timeout, unit);
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted gathering");
+        } catch (final ExecutionException e) {
+            throw new IOException("Could not gather addresses", e.getCause());
+        } catch (final TimeoutException e) {
+            LOG.debug("Timed out gathering reflexive addresses");
+            final Map<InetSocketAddress, InetSocketAddress> gathered =
+                collect(hosts, lookups);
+            future.cancel(false);
+            return gathered;
+        }
+    }
+
+    /**
+     * Gathers the server reflexive addresses of the specified local 
+     * addresses.
+     *
+     * @param localAddresses The local addresses to gather from.
+     * @return A future for the server reflexive address of each local 
+     * address we could get one for, keyed by the local address and port we
+     * sent from.  Cancelling it cancels all outstanding requests.
+     */
+    public CompletableFuture<Map<InetSocketAddress, InetSocketAddress>> 
+        gatherAsync(final Collection<InetAddress> localAddresses) {
+        return gatherAsync(localAddresses, new ArrayList<InetSocketAddress>(),
+            new ArrayList<CompletableFuture<InetSocketAddress>>());
+    }
+
+    /**
+     * Gathers into the specified lists, so callers can see the lookups we
+     * started before they all complete.  Both lists are guarded by the 
+     * lookups list, and the host at each index is the one we sent the 
+     * lookup at the same index from.
+     */
+    private CompletableFuture<Map<InetSocketAddress, InetSocketAddress>> 
+        gatherAsync(final Collection<InetAddress> localAddresses,
+        final List<InetSocketAddress> hosts,
+        final List<CompletableFuture<InetSocketAddress>> lookups) {
+        final CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>
+            result = resolveAll().thenCompose(
+            new Function<List<InetSocketAddress>, CompletableFuture<
+                Map<InetSocketAddress, InetSocketAddress>>>() {
+            @Override
+            public CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>
+                apply(final List<InetSocketAddress> resolved) {
+                return gatherResolved(localAddresses, resolved, hosts, 
+                    lookups);
+            }
+        });
+        result.whenComplete(
+            new BiConsumer<Map<InetSocketAddress, InetSocketAddress>, 
+                Throwable>() {
+            @Override
+            public void accept(
+                final Map<InetSocketAddress, InetSocketAddress> mappings,
+                final Throwable t) {
+                synchronized (lookups) {
+                    for (final CompletableFuture<InetSocketAddress> lookup :
+                        lookups) {
+                        lookup.cancel(false);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Map<InetSocketAddress, InetSocketAddress>> 
+        gatherResolved(final Collection<InetAddress> localAddresses,
+        final List<InetSocketAddress> resolved,
+        final List<InetSocketAddress> hosts,
+        final List<CompletableFuture<InetSocketAddress>> lookups) {
+        for (final InetAddress local : localAddresses) {
+            final List<InetSocketAddress> servers = 
+                serversFor(local, resolved);
+            if (servers.isEmpty()) {
+                LOG.debug("No STUN servers for {}", local);
+                continue;
+            }
+            try {
+                final UdpStunClient client = clientFor(local, servers);
+                synchronized (lookups) {
+                    hosts.add(client.getHostAddress());
+                    lookups.add(client.getServerReflexiveAddressAsync(1));
+                }
+            } catch (final IOException e) {
+                LOG.debug("Could not gather from {}", local, e);
+            }
+        }
+        final CompletableFuture<?>[] all;
+        synchronized (lookups) {
+            all = lookups.toArray(new CompletableFuture<?>[lookups.size()]);
+        }
+        return CompletableFuture.allOf(all).handle(
+            new BiFunction<Void, Throwable, 
+                Map<InetSocketAddress, InetSocketAddress>>() {
+            @Override
+            public Map<InetSocketAddress, InetSocketAddress> apply(
+                final Void done, final Throwable t) {
+                final Map<InetSocketAddress, InetSocketAddress> mappings =
+                    collect(hosts, lookups);
+                LOG.debug("Gathered reflexive addresses: {}", mappings);
+                return mappings;
+            }
+        });
+    }
+
+    /**
+     * Returns the mappings from the lookups that have succeeded so far.
+     */
+    private static Map<InetSocketAddress, InetSocketAddress> collect(
+        final List<InetSocketAddress> hosts,
+        final List<CompletableFuture<InetSocketAddress>> lookups) {
+        final Map<InetSocketAddress, InetSocketAddress> mappings =
+            new LinkedHashMap<InetSocketAddress, InetSocketAddress>();
+        synchronized (lookups) {
+            for (int i = 0; i < hosts.size(); i++) {
+                final CompletableFuture<InetSocketAddress> lookup =
+                    lookups.get(i);
+                if (!lookup.isDone() || lookup.isCompletedExceptionally()) {
+                    continue;
+                }
+                final InetSocketAddress mapped = lookup.getNow(null);
+                if (mapped != null) {
+                    mappings.put(hosts.get(i), mapped);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(mappings);
+    }
+
+    /**
+     * Closes the client for each local address.  If we created our own 
+     * transport this closes that too.
+     */
+    public void close() {
+        synchronized (m_clients) {
+            for (final LocalClient local : m_clients.values()) {
+                local.m_client.close();
+            }
+            m_clients.clear();
+        }
+        if (m_ownsTransport) {
+            m_transport.close();
+        }
+    }
+
+    /**
+     * Accessor for the client we gather from the specified local address
+     * with.
+     *
+     * @param local The local address.
+     * @return The client, or <code>null</code> if we don't have one.
+     */
+    UdpStunClient getClient(final InetAddress local) {
+        synchronized (m_clients) {
+            final LocalClient client = m_clients.get(local);
+            return client == null ? null : client.m_client;
+        }
+    }
+
+    /**
+     * Returns the client for the specified local address, creating it if
+     * we don't have one or its servers have changed.
+     */
+    private UdpStunClient clientFor(final InetAddress local,
+        final List<InetSocketAddress> servers) throws IOException {
+        synchronized (m_clients) {
+            final LocalClient existing = m_clients.get(local);
+            if (existing != null && existing.m_servers.equals(servers)) {
+                return existing.m_client;
+            }
+            if (existing != null) {
+                LOG.debug("STUN servers changed for {}", local);
+                existing.m_client.close();
+                m_clients.remove(local);
+            }
+            final UdpStunClient client = new UdpStunClient(m_transport,
+                new InetSocketAddress(local, 0), servers);
+            client.connect();
+            m_clients.put(local, new LocalClient(client, servers));
+            return client;
+        }
+    }
+
+    /**
+     * Resolves every address of all our servers at once, through the 
+     * shared resolver so we use its cache and keep its entries fresh.
+     */
+    private CompletableFuture<List<InetSocketAddress>> resolveAll() {
+        final List<CompletableFuture<List<InetSocketAddress>>> futures =
+            new ArrayList<CompletableFuture<List<InetSocketAddress>>>();
+        for (final InetSocketAddress server : m_stunServers) {
+            futures.add(StunServerResolver.resolveAllAsync(server));
+        }
+        return CompletableFuture.allOf(futures.toArray(
+            new CompletableFuture<?>[futures.size()])).thenApply(
+            new Function<Void, List<InetSocketAddress>>() {
+            @Override
+            public List<InetSocketAddress> apply(final Void done) {
+                final Set<InetSocketAddress> all = 
+                    new LinkedHashSet<InetSocketAddress>();
+                for (final CompletableFuture<List<InetSocketAddress>> future :
+                    futures) {
+                    all.addAll(future.join());
+                }
+                return new ArrayList<InetSocketAddress>(all);
+            }
+        });
+    }
+
+    /**
+     * Returns the servers in the same address family as the specified 
+     * local address.
+     */
+    private static List<InetSocketAddress> serversFor(
+        final InetAddress local, final List<InetSocketAddress> resolved) {
+        final boolean ipv6 = local instanceof Inet6Address;
+        final List<InetSocketAddress> servers =
+            new ArrayList<InetSocketAddress>();
+        for (final InetSocketAddress server : resolved) {
+            if ((server.getAddress() instanceof Inet6Address) == ipv6) {
+                servers.add(server);
+            }
+        }
+        return servers;
+    }
+
+    private static final class LocalClient {
+
+        private final UdpStunClient m_client;
+
+        private final List<InetSocketAddress> m_servers;
+
+        private LocalClient(final UdpStunClient client,
+            final List<InetSocketAddress> servers) {
+            this.m_client = client;
+            this.m_servers = servers;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Listener for changes to our server reflexive address as seen by a
+ * {@link ReflexiveAddressMonitor}.
+ */
+public interface ReflexiveAddressListener {
+
+    /**
+     * Called when our mapped address changes, including when we first 
+     * learn it and when we get it back after losing our binding.
+     * 
+     * @param oldAddress The previous mapped address, or <code>null</code> 
+     * if we didn't have one.
+     * @param newAddress The new mapped address.
+     */
+    void onMappedAddressChanged(InetSocketAddress oldAddress, 
+        InetSocketAddress newAddress);
+
+    /**
+     * Called when the STUN servers stop answering our keepalives, so we
+     * can no longer tell whether our binding is still there.
+     * 
+     * @param lastAddress The last mapped address we knew about.
+     */
+    void onBindingLost(InetSocketAddress lastAddress);
+}
@@ -0,0 +1,356 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches our server reflexive address from a single local port, sending
+ * keepalive binding requests often enough to hold our NAT binding open and
+ * telling listeners when the mapped address changes or we lose the
+ * binding altogether.  This replaces polling
+ * {@link UdpStunClient#getServerReflexiveAddress()}.
+ * <p>
+ * The keepalive interval adapts to the NAT.  It grows while the mapping
+ * survives each interval.  When the mapped port changes without our IP
+ * changing, the binding must have expired during the interval, so we
+ * bisect between the longest interval the binding survived and the one it
+ * didn't, converging on an interval just under the NAT's binding lifetime.
+ */
+public class ReflexiveAddressMonitor {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReflexiveAddressMonitor.class);
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("STUN-Keepalive"));
+
+    /**
+     * How much we grow the interval after each keepalive the binding
+     * survived.
+     */
+    private static final double GROWTH = 1.25;
+
+    private final UdpStunClient m_client;
+
+    private final List<ReflexiveAddressListener> m_listeners =
+        new CopyOnWriteArrayList<ReflexiveAddressListener>();
+
+    private final Object m_lock = new Object();
+
+    private volatile long m_minInterval = 15 * 1000L;
+
+    private volatile long m_maxInterval = 5 * 60 * 1000L;
+
+    private RankedStunServer m_server;
+
+    private InetSocketAddress m_mappedAddress;
+
+    private long m_interval;
+
+    /**
+     * The longest interval our binding has survived.
+     */
+    private long m_survived;
+
+    /**
+     * The shortest interval our binding has expired during, or zero if it
+     * never has.
+     */
+    private long m_expired;
+
+    private ScheduledFuture<?> m_timer;
+
+    private CompletableFuture<StunMessage> m_keepalive;
+
+    private boolean m_running;
+
+    /**
+     * Creates a new monitor using the specified STUN servers.
+     *
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't create the underlying client.
+     */
+    public ReflexiveAddressMonitor(final InetSocketAddress... stunServers)
+        throws IOException {
+        this(new UdpStunClient(stunServers));
+    }
+
+    /**
+     * Creates a new monitor that sends keepalives through the specified
+     * client.  The client should not use a shared transport, as the whole
+     * point is to keep the binding for its local port open.
+     *
+     * @param client The client to use.
+     */
+    public ReflexiveAddressMonitor(final UdpStunClient client) {
+        this.m_client = client;
+    }
+
+    /**
+     * Sets the shortest interval between keepalives.  We start at this
+     * interval and fall back to it whenever we lose our binding.
+     *
+     * @param minInterval The interval in milliseconds.
+     */
+    public void setMinInterval(final long minInterval) {
+        this.m_minInterval = Math.max(1L, minInterval);
+    }
+
+    /**
+     * Sets the longest interval between keepalives.
+     *
+     * @param maxInterval The interval in milliseconds.
+     */
+    public void setMaxInterval(final long maxInterval) {
+        this.m_maxInterval = Math.max(1L, maxInterval);
+    }
+
+    /**
+     * Adds a listener for changes to our mapped address.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(final ReflexiveAddressListener listener) {
+        this.m_listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for changes to our mapped address.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(final ReflexiveAddressListener listener) {
+        this.m_listeners.remove(listener);
+    }
+
+    /**
+     * Binds our local port and sends the first binding request.  Later
+     * keepalives happen in the background until we're stopped.
+     *
+     * @throws IOException If we can't bind the local port.
+     */
+    public void start() throws IOException {
+        synchronized (m_lock) {
+            if (m_running) {
+                return;
+            }
+            m_client.connect();
+            m_running = true;
+            m_interval = m_minInterval;
+            m_survived = 0L;
+            m_expired = 0L;
+        }
+        LOG.debug("Monitoring reflexive address from {}",
+            m_client.getHostAddress());
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                keepalive();
+            }
+        });
+    }
+
+    /**
+     * Stops sending keepalives and closes the client.
+     */
+    public void stop() {
+        synchronized (m_lock) {
+            if (!m_running) {
+                return;
+            }
+            m_running = false;
+            if (m_timer != null) {
+                m_timer.cancel(false);
+            }
+            if (m_keepalive != null) {
+                m_keepalive.cancel(false);
+            }
+        }
+        m_client.close();
+    }
+
+    /**
+     * Returns the last mapped address we saw.
+     *
+     * @return The mapped address, or <code>null</code> if we don't
+     * currently have one.
+     */
+    public InetSocketAddress getMappedAddress() {
+        synchronized (m_lock) {
+            return m_mappedAddress;
+        }
+    }
+
+    /**
+     * Returns the local address we're keeping a binding open for.
+     *
+     * @return The local address.
+     */
+    public InetSocketAddress getHostAddress() {
+        return m_client.getHostAddress();
+    }
+
+    /**
+     * Returns the current interval between keepalives.
+     *
+     * @return The interval in milliseconds.
+     */
+    public long getInterval() {
+        synchronized (m_lock) {
+            return m_interval;
+        }
+    }
+
+    private void keepalive() {
+        final RankedStunServer server;
+        synchronized (m_lock) {
+            if (!m_running) {
+                return;
+            }
+            if (m_server == null) {
+                // We stick with the same server for as long as it answers,
+                // as NATs may map our port differently for each server.
+                final List<RankedStunServer> servers = 
+                    m_client.getStunServers();
+                if (servers.isEmpty()) {
+                    // Our servers may be in the middle of being swapped.
+                    LOG.warn("No STUN servers for keepalive");
+                    schedule(m_minInterval);
+                    return;
+                }
+                m_server = servers.get(0);
+            }
+            server = m_server;
+        }
+        final long start = System.nanoTime();
+        final CompletableFuture<StunMessage> keepalive;
+        try {
+            keepalive =
+                m_client.writeAsync(new BindingRequest(), server.getAddress());
+        } catch (final IOException e) {
+            LOG.debug("Could not send keepalive", e);
+            onResponse(server, null, start);
+            return;
+        }
+        synchronized (m_lock) {
+            m_keepalive = keepalive;
+        }
+        keepalive.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                if (t != null) {
+                    // We were stopped.
+                    return;
+                }
+                onResponse(server,
+                    message.accept(UdpStunClient.MAPPED_ADDRESS_VISITOR),
+                    start);
+            }
+        });
+    }
+
+    private void onResponse(final RankedStunServer server,
+        final InetSocketAddress mapped, final long start) {
+        final InetSocketAddress previous;
+        synchronized (m_lock) {
+            if (!m_running) {
+                return;
+            }
+            previous = m_mappedAddress;
+            if (mapped == null) {
+                server.onFailure();
+                m_mappedAddress = null;
+                m_server = null;
+                m_interval = m_minInterval;
+            } else {
+                server.onSuccess((System.nanoTime() - start) / 1000000L);
+                m_mappedAddress = mapped;
+                adapt(previous, mapped);
+            }
+            schedule(m_interval);
+        }
+        if (mapped == null) {
+            if (previous != null) {
+                LOG.debug("Lost binding for {}", previous);
+                for (final ReflexiveAddressListener listener : m_listeners) {
+                    try {
+                        listener.onBindingLost(previous);
+                    } catch (final RuntimeException e) {
+                        LOG.warn("Error notifying listener", e);
+                    }
+                }
+            }
+        } else if (!mapped.equals(previous)) {
+            LOG.debug("Mapped address changed from {} to {}", previous,
+                mapped);
+            for (final ReflexiveAddressListener listener : m_listeners) {
+                try {
+                    listener.onMappedAddressChanged(previous, mapped);
+                } catch (final RuntimeException e) {
+                    LOG.warn("Error notifying listener", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules the next keepalive.  Must be called holding the lock.
+     */
+    private void schedule(final long delay) {
+        m_timer = StunTransactionTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        keepalive();
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    /**
+     * Adjusts the keepalive interval given what happened to our mapping
+     * over the last interval.  Must be called holding the lock.
+     */
+    private void adapt(final InetSocketAddress previous,
+        final InetSocketAddress mapped) {
+        if (previous == null) {
+            // Nothing to learn from our first response.
+            return;
+        }
+        if (mapped.equals(previous)) {
+            m_survived = Math.max(m_survived, m_interval);
+            long next = (long) (m_interval * GROWTH);
+            if (m_expired > 0L) {
+                // Never go past the midpoint of what we know works and
+                // what we know doesn't.
+                next = Math.min(next, (m_survived + m_expired) / 2);
+            }
+            m_interval = Math.max(m_interval, Math.min(next, m_maxInterval));
+        } else if (mapped.getAddress().equals(previous.getAddress())) {
+            // Same IP with a new port means the NAT dropped our binding
+            // while we waited.
+            m_expired = m_expired == 0L ?
+                m_interval : Math.min(m_expired, m_interval);
+            m_interval = Math.max(m_minInterval,
+                m_survived > 0L ? m_survived : m_interval / 2);
+            LOG.debug("Binding expired within {}ms, now using {}ms",
+                m_expired, m_interval);
+        }
+        // A new IP means the network changed rather than the binding
+        // expiring, so it tells us nothing about the NAT.
+    }
+}
@@ -0,0 +1,217 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimates the round-trip time to a single remote host and calculates the
+ * retransmission timeout (RTO) to use for it.  This follows the algorithm in
+ * RFC 2988 as recommended in RFC 5389 section 7.2.1, keeping a smoothed RTT
+ * and RTT variance fed by measured transaction round trips.
+ * <p>
+ * Estimators are shared by all clients talking to the same host, so one
+ * good measurement speeds up every later request to that host.
+ */
+public class RttEstimator {
+
+    /**
+     * The RTO we use before we have any measurements.  This is the value
+     * discussed in draft-ietf-behave-rfc3489bis-06.txt section 7.1.
+     */
+    public static final long DEFAULT_RTO = 100L;
+
+    private static final long MIN_RTO = 50L;
+
+    static final long MAX_RTO = 3000L;
+
+    /**
+     * The multiple of the RTO we wait for a response after the last
+     * request, as in Rm from RFC 5389 section 7.2.1.
+     */
+    private static final long FINAL_WAIT_MULTIPLIER = 16L;
+
+    /**
+     * The longest we ever wait after the last request, however slow the
+     * host.
+     */
+    private static final long MAX_FINAL_WAIT = 10000L;
+
+    /**
+     * The maximum number of hosts we keep estimates for.
+     */
+    private static final int MAX_ESTIMATORS = 1024;
+
+    private static final Map<InetSocketAddress, RttEstimator> ESTIMATORS =
+        new LinkedHashMap<InetSocketAddress, RttEstimator>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<InetSocketAddress, RttEstimator> eldest) {
+                return size() > MAX_ESTIMATORS;
+            }
+        };
+
+    private double m_srtt;
+
+    private double m_rttvar;
+
+    private long m_rto = DEFAULT_RTO;
+
+    private int m_samples;
+
+    /**
+     * Returns the estimator for the specified host, creating it if
+     * necessary.
+     *
+     * @param address The address of the remote host.
+     * @return The estimator for the host.
+     */
+    public static RttEstimator forServer(final InetSocketAddress address) {
+        synchronized (ESTIMATORS) {
+            RttEstimator estimator = ESTIMATORS.get(address);
+            if (estimator == null) {
+                estimator = new RttEstimator();
+                ESTIMATORS.put(address, estimator);
+            }
+            return estimator;
+        }
+    }
+
+    /**
+     * Forgets every estimate.
+     */
+    static void clear() {
+        synchronized (ESTIMATORS) {
+            ESTIMATORS.clear();
+        }
+    }
+
+    /**
+     * Restores an estimate from an earlier run, unless we've already 
+     * measured this host in this one.
+     *
+     * @param srtt The smoothed RTT in milliseconds.
+     * @param rttvar The RTT variance in milliseconds.
+     * @param rto The RTO in milliseconds.
+     * @param samples The number of measurements the estimate is based on.
+     * @return <code>true</code> if we restored the estimate.
+     */
+    synchronized boolean restore(final double srtt, final double rttvar,
+        final long rto, final int samples) {
+        if (m_samples != 0) {
+            return false;
+        }
+        m_srtt = srtt;
+        m_rttvar = rttvar;
+        m_rto = clamp(rto);
+        m_samples = samples;
+        return true;
+    }
+
+    /**
+     * Adds a new round-trip time measurement.  Callers should only add
+     * samples from transactions that were not retransmitted, as it's
+     * otherwise impossible to tell which request the response was for.
+     *
+     * @param rtt The measured round-trip time in milliseconds.
+     */
+    public synchronized void addSample(final long rtt) {
+        if (m_samples == 0) {
+            m_srtt = rtt;
+            m_rttvar = rtt / 2.0;
+        } else {
+            m_rttvar = (0.75 * m_rttvar) + (0.25 * Math.abs(m_srtt - rtt));
+            m_srtt = (0.875 * m_srtt) + (0.125 * rtt);
+        }
+        m_samples++;
+
+        // The 1 here is our clock granularity.
+        m_rto = clamp((long) Math.ceil(m_srtt + Math.max(1.0, 4 * m_rttvar)));
+    }
+
+    /**
+     * Accessor for the current retransmission timeout.
+     *
+     * @return The RTO in milliseconds.
+     */
+    public synchronized long getRto() {
+        return m_rto;
+    }
+
+    /**
+     * Returns the time to wait after the last request before deciding a
+     * transaction has failed.
+     *
+     * @return The final wait in milliseconds.
+     */
+    public long getFinalWait() {
+        return finalWait(getRto());
+    }
+
+    /**
+     * Accessor for the smoothed round-trip time.
+     *
+     * @return The smoothed RTT in milliseconds, or zero if we have no
+     * measurements.
+     */
+    public synchronized double getSmoothedRtt() {
+        return m_srtt;
+    }
+
+    /**
+     * Accessor for the round-trip time variance.
+     *
+     * @return The RTT variance in milliseconds, or zero if we have no
+     * measurements.
+     */
+    public synchronized double getRttVariance() {
+        return m_rttvar;
+    }
+
+    /**
+     * Returns the number of measurements this estimate is based on.
+     *
+     * @return The number of samples.
+     */
+    public synchronized int getSamples() {
+        return m_samples;
+    }
+
+    /**
+     * Returns the time to wait after the last request for the given RTO.
+     *
+     * @param rto The RTO in milliseconds.
+     * @return The final wait in milliseconds.
+     */
+    static long finalWait(final long rto) {
+        return Math.min(MAX_FINAL_WAIT, FINAL_WAIT_MULTIPLIER * rto);
+    }
+
+    /**
+     * Returns the time to wait after a request before retransmitting it.
+     * The wait doubles with each request, as in RFC 5389 section 7.2.1, 
+     * but never goes beyond the maximum RTO.  Backing off here rather than
+     * in the shared estimate means a server that stops answering doesn't
+     * slow down later transactions once it comes back.
+     *
+     * @param rto The RTO in milliseconds.
+     * @param requests The number of requests sent so far.
+     * @return The wait in milliseconds.
+     */
+    static long retransmitWait(final long rto, final int requests) {
+        final int shift = Math.min(Math.max(0, requests - 1), 16);
+        return Math.min(MAX_RTO, rto << shift);
+    }
+
+    private static long clamp(final long rto) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RttEstimator [srtt=" + m_srtt + " rttvar=" + m_rttvar +
+            " rto=" + m_rto + " samples=" + m_samples + "]";
+    }
+}
@@ -0,0 +1,90 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast we send to each STUN server with a token bucket per 
+ * server, shared by all clients.  Every request we put on the wire, 
+ * including retransmissions, takes a token.  Buckets refill at
+ * {@link StunClientConfig#getServerRate()} tokens per second and hold at
+ * most {@link StunClientConfig#getServerBurst()} tokens, so a short burst
+ * goes out at once while a sustained flood is spread out rather than 
+ * getting us rate limited or blackholed by public servers.
+ */
+final class ServerPacer {
+
+    /**
+     * The maximum number of servers we keep buckets for.
+     */
+    private static final int MAX_BUCKETS = 1024;
+
+    private static final Map<InetSocketAddress, ServerPacer> PACERS =
+        new LinkedHashMap<InetSocketAddress, ServerPacer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<InetSocketAddress, ServerPacer> eldest) {
+                return size() > MAX_BUCKETS;
+            }
+        };
+
+    private double m_tokens;
+
+    private long m_refilled;
+
+    private ServerPacer(final int burst) {
+        this.m_tokens = burst;
+        this.m_refilled = System.nanoTime();
+    }
+
+    /**
+     * Takes a token for sending to the specified server if one's available.
+     * 
+     * @param server The server we want to send to.
+     * @return Zero if we took a token and can send now, otherwise the 
+     * number of milliseconds until the next token is due.
+     */
+    static long acquire(final InetSocketAddress server) {
+        final double rate = StunClientConfig.getServerRate();
+        if (rate <= 0.0) {
+            return 0L;
+        }
+        final int burst = StunClientConfig.getServerBurst();
+        final ServerPacer pacer;
+        synchronized (PACERS) {
+            ServerPacer existing = PACERS.get(server);
+            if (existing == null) {
+                existing = new ServerPacer(burst);
+                PACERS.put(server, existing);
+            }
+            pacer = existing;
+        }
+        return pacer.acquire(rate, burst);
+    }
+
+    /**
+     * Forgets all our buckets.
+     */
+    static void clear() {
+        synchronized (PACERS) {
+            PACERS.clear();
+        }
+    }
+
+    private synchronized long acquire(final double rate, final int burst) {
+        final long now = System.nanoTime();
+        final double elapsed = (double) (now - m_refilled) / 
+            TimeUnit.SECONDS.toNanos(1);
+        m_tokens = Math.min(burst, m_tokens + (elapsed * rate));
+        m_refilled = now;
+        if (m_tokens >= 1.0) {
+            m_tokens -= 1.0;
+            return 0L;
+        }
+        return Math.max(1L, (long) Math.ceil((1.0 - m_tokens) * 1000 / rate));
+    }
+}
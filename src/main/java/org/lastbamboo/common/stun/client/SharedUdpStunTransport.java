@@ -0,0 +1,314 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoFilterChain;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptor;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptorConfig;
+import org.littleshoot.stun.stack.StunIoHandler;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
+import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UDP transport that many {@link UdpStunClient}s can share.  All clients
+ * send through one bound UDP socket per local address, with a single
+ * selector, codec chain and thread pool for the whole transport.  Responses
+ * are demultiplexed to the client that sent the request by transaction ID
+ * using a shared {@link StunTransactionTracker}.
+ */
+public class SharedUdpStunTransport {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SharedUdpStunTransport.class);
+
+    private static final AtomicInteger TRANSPORT_IDS = new AtomicInteger();
+
+    /**
+     * The key we use for sockets bound to the wildcard address on an
+     * ephemeral port.
+     */
+    private static final InetSocketAddress WILDCARD =
+        new InetSocketAddress(0);
+
+    private final DatagramAcceptor m_acceptor;
+
+    private final ThreadPoolExecutor m_ioExecutor;
+
+    private final ThreadPoolExecutor m_handlerExecutor;
+
+    private final ExpiringTransactionTracker m_transactionTracker =
+        new ExpiringTransactionTracker();
+
+    private final IoHandler m_ioHandler;
+
+    /**
+     * Maps both the requested local addresses and the actual bound addresses
+     * to the bound address of the socket serving them.
+     */
+    private final Map<InetSocketAddress, InetSocketAddress> m_boundAddresses =
+        new ConcurrentHashMap<InetSocketAddress, InetSocketAddress>();
+
+    private final Set<InetSocketAddress> m_sockets =
+        new HashSet<InetSocketAddress>();
+
+    /**
+     * Creates a new shared transport using two threads for processing
+     * incoming messages.
+     */
+    public SharedUdpStunTransport() {
+        this(2);
+    }
+
+    /**
+     * Creates a new shared transport.
+     *
+     * @param handlerThreads The fixed number of threads to use for
+     * processing incoming messages.
+     */
+    public SharedUdpStunTransport(final int handlerThreads) {
+        final String name =
+            getClass().getSimpleName() + "-" + TRANSPORT_IDS.incrementAndGet();
+        this.m_ioExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new DaemonThreadFactory(name + "-IO"));
+        this.m_handlerExecutor = new ThreadPoolExecutor(handlerThreads,
+            handlerThreads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new DaemonThreadFactory(name));
+
+        this.m_acceptor = new DatagramAcceptor(this.m_ioExecutor);
+        final DatagramAcceptorConfig cfg = this.m_acceptor.getDefaultConfig();
+        cfg.getSessionConfig().setReuseAddress(true);
+        cfg.setThreadModel(new PrivateThreadModel(this.m_handlerExecutor));
+
+        this.m_acceptor.getFilterChain().addLast("bindingFastPath",
+            new BindingResponseFilter(this.m_transactionTracker));
+        this.m_acceptor.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+
+        final StunMessageVisitorFactory<StunMessage> visitorFactory =
+            new StunClientMessageVisitorFactory<StunMessage>(
+                this.m_transactionTracker);
+        this.m_ioHandler = new StunIoHandler<StunMessage>(visitorFactory);
+    }
+
+    /**
+     * Accessor for the transaction tracker shared by all clients using this
+     * transport.
+     *
+     * @return The shared transaction tracker.
+     */
+    public StunTransactionTracker<StunMessage> getTransactionTracker() {
+        return m_transactionTracker;
+    }
+
+    /**
+     * Returns a session for sending from the specified local address to the
+     * specified remote address, binding a new socket for the local address
+     * if necessary.
+     *
+     * @param localAddress The local address, or <code>null</code> to use
+     * the shared socket on an ephemeral port.
+     * @param remoteAddress The remote address.
+     * @return The session.
+     * @throws IOException If we could not bind to the local address.
+     */
+    public IoSession getSession(final InetSocketAddress localAddress,
+        final InetSocketAddress remoteAddress) throws IOException {
+        final InetSocketAddress bound = bind(localAddress);
+        try {
+            return this.m_acceptor.newSession(remoteAddress, bound);
+        } catch (final IllegalArgumentException e) {
+            // This can happen if the socket was unbound on close.
+            throw new IOException("Could not create session from: " + bound);
+        }
+    }
+
+    /**
+     * Binds a socket to the specified local address if we haven't already.
+     *
+     * @param localAddress The local address, or <code>null</code> to use
+     * the shared socket on an ephemeral port.
+     * @return The address the socket is actually bound to.
+     * @throws IOException If we could not bind to the local address.
+     */
+    public InetSocketAddress bind(final InetSocketAddress localAddress)
+        throws IOException {
+        final InetSocketAddress key =
+            localAddress == null ? WILDCARD : localAddress;
+        final InetSocketAddress existing = this.m_boundAddresses.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this.m_sockets) {
+            if (this.m_boundAddresses.containsKey(key)) {
+                return this.m_boundAddresses.get(key);
+            }
+            final Set<SocketAddress> before =
+                new HashSet<SocketAddress>(
+                    this.m_acceptor.getManagedServiceAddresses());
+            this.m_acceptor.bind(key, this.m_ioHandler);
+
+            // We may have bound to an ephemeral port, so find the address
+            // we actually ended up with.
+            final Set<SocketAddress> after =
+                new HashSet<SocketAddress>(
+                    this.m_acceptor.getManagedServiceAddresses());
+            after.removeAll(before);
+            if (after.size() != 1) {
+                throw new IOException("Could not determine bound address for: "
+                    + key);
+            }
+            final InetSocketAddress bound =
+                (InetSocketAddress) after.iterator().next();
+            LOG.debug("Bound shared STUN socket to: {}", bound);
+            this.m_sockets.add(bound);
+            this.m_boundAddresses.put(key, bound);
+            this.m_boundAddresses.put(bound, bound);
+            return bound;
+        }
+    }
+
+    /**
+     * Adds a listener for events on the shared sockets.
+     *
+     * @param serviceListener The listener to add.
+     */
+    public void addIoServiceListener(final IoServiceListener serviceListener) {
+        this.m_acceptor.addListener(serviceListener);
+    }
+
+    /**
+     * Returns the number of UDP sockets this transport has open.
+     *
+     * @return The number of open sockets.
+     */
+    public int getOpenSockets() {
+        synchronized (this.m_sockets) {
+            return this.m_sockets.size();
+        }
+    }
+
+    /**
+     * Returns the number of selectors this transport has open.  Each 
+     * selector is run by its own worker on our I/O executor for as long as
+     * it's open, so this counts the running workers.  All sockets share a
+     * single selector, so this should never be more than one.
+     *
+     * @return The number of open selectors.
+     */
+    public int getOpenSelectors() {
+        return this.m_ioExecutor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of threads this transport is currently using,
+     * including both the I/O thread and the threads processing incoming
+     * messages.
+     *
+     * @return The number of live threads.
+     */
+    public int getThreadCount() {
+        return this.m_ioExecutor.getPoolSize() +
+            this.m_handlerExecutor.getPoolSize();
+    }
+
+    /**
+     * Returns the number of sessions, one per remote host, currently
+     * multiplexed over the shared sockets.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessionCount() {
+        int sessions = 0;
+        for (final SocketAddress address :
+            this.m_acceptor.getManagedServiceAddresses()) {
+            sessions += this.m_acceptor.getManagedSessions(address).size();
+        }
+        return sessions;
+    }
+
+    /**
+     * Closes all sockets and threads for this transport.  Any clients still
+     * using it will fail.
+     */
+    public void close() {
+        LOG.debug("Closing shared STUN transport");
+        synchronized (this.m_sockets) {
+            this.m_acceptor.unbindAll();
+            this.m_sockets.clear();
+            this.m_boundAddresses.clear();
+        }
+        this.m_handlerExecutor.shutdown();
+        this.m_ioExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "SharedUdpStunTransport [sockets=" + getOpenSockets() +
+            " selectors=" + getOpenSelectors() + " threads=" +
+            getThreadCount() + "]";
+    }
+
+    /**
+     * Runs callbacks on our own handler threads.  MINA's 
+     * {@link org.littleshoot.mina.common.ExecutorThreadModel} instances live
+     * in a global registry by name and are never removed, so using one 
+     * would leak it and hand a later transport with the same name an 
+     * executor we've already shut down.
+     */
+    private static final class PrivateThreadModel implements ThreadModel {
+
+        private final ExecutorFilter m_filter;
+
+        private PrivateThreadModel(final Executor executor) {
+            this.m_filter = new ExecutorFilter(executor);
+        }
+
+        @Override
+        public void buildFilterChain(final IoFilterChain chain) {
+            chain.addFirst(getClass().getName(), this.m_filter);
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+        private final String m_name;
+
+        private DaemonThreadFactory(final String name) {
+            this.m_name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runner) {
+            final Thread thread =
+                new Thread(runner, m_name + "-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -2,6 +2,10 @@ package org.lastbamboo.common.stun.client;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.littleshoot.stun.stack.StunAddressProvider;
 import org.littleshoot.stun.stack.message.BindingRequest;
@@ -21,6 +25,8 @@ public interface StunClient extends StunAddressProvider
      * @param request The STUN binding request.
      * @param remoteAddress The address to send the request to.
      * @return The response message.
+     * @throws java.io.InterruptedIOException If we're interrupted while
+     * waiting, in which case the transaction stops immediately.
      * @throws IOException If there's an IO error writing the message.
      */
     StunMessage write(BindingRequest request, InetSocketAddress remoteAddress) 
@@ -40,6 +46,123 @@ public interface StunClient extends StunAddressProvider
     StunMessage write(BindingRequest request, InetSocketAddress remoteAddress,
         long rto) throws IOException;
 
+    /**
+     * Writes a STUN binding request, giving up once the timeout passes 
+     * even if we'd otherwise still be retransmitting.  Interrupting the 
+     * calling thread also stops the transaction immediately.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @param timeout The longest to wait for a response.
+     * @param unit The unit of the timeout.
+     * @return The response message, or a 
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if we 
+     * didn't get one in time.
+     * @throws java.io.InterruptedIOException If we're interrupted while
+     * waiting.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    default StunMessage write(BindingRequest request, 
+        InetSocketAddress remoteAddress, long timeout, TimeUnit unit) 
+        throws IOException {
+        return StunClientSupport.await(
+            writeAsync(request, remoteAddress, timeout, unit));
+    }
+
+    /**
+     * Writes a STUN binding request without blocking the calling thread.  
+     * This uses the default STUN RTO value of 100ms.  By default this runs
+     * {@link #write(BindingRequest, InetSocketAddress)} on another thread.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @return A future that completes with the response message, or with a
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    default CompletableFuture<StunMessage> writeAsync(BindingRequest request,
+        InetSocketAddress remoteAddress) throws IOException {
+        return StunClientSupport.writeAsync(this, request, remoteAddress);
+    }
+
+    /**
+     * Writes a STUN binding request without blocking the calling thread, 
+     * with the RTO value used for retransmissions explicitly set.  By 
+     * default this runs {@link #write(BindingRequest, InetSocketAddress, long)}
+     * on another thread.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @param rto The value to use for RTO when calculating retransmission 
+     * times.  Note this only applies to UDP.
+     * @return A future that completes with the response message, or with a
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    default CompletableFuture<StunMessage> writeAsync(BindingRequest request,
+        InetSocketAddress remoteAddress, long rto) throws IOException {
+        return StunClientSupport.writeAsync(this, request, remoteAddress, rto);
+    }
+
+    /**
+     * Writes a STUN binding request without blocking the calling thread,
+     * giving up once the timeout passes.  Cancelling the returned future
+     * also stops retransmissions and forgets the transaction immediately.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @param timeout The longest to wait for a response.
+     * @param unit The unit of the timeout.
+     * @return A future that completes with the response message, or with a
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out or the deadline passes.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    default CompletableFuture<StunMessage> writeAsync(BindingRequest request,
+        InetSocketAddress remoteAddress, long timeout, TimeUnit unit) 
+        throws IOException {
+        return StunClientSupport.withDeadline(
+            writeAsync(request, remoteAddress), remoteAddress, timeout, unit);
+    }
+
+    /**
+     * Writes a batch of STUN binding requests, pacing them by the interval
+     * from {@link StunClientConfig#getBatchPacing()}.
+     * 
+     * @param checks The requests and the addresses to send them to.
+     * @return Futures for the responses, in the same order as the checks.
+     * Each completes as soon as its own transaction does.
+     */
+    default List<CompletableFuture<StunMessage>> writeBatch(
+        Collection<BindingCheck> checks) {
+        return writeBatch(checks, StunClientConfig.getBatchPacing());
+    }
+
+    /**
+     * Writes a batch of STUN binding requests, starting a new transaction
+     * every <code>pacing</code> milliseconds, as with Ta in ICE.  All 
+     * transactions retransmit independently, so retransmissions for the 
+     * whole batch are pipelined.  Cancelling the future for a check that 
+     * hasn't been sent yet means it's never sent.  By default this starts
+     * each transaction with 
+     * {@link #writeAsync(BindingRequest, InetSocketAddress)}.
+     * 
+     * @param checks The requests and the addresses to send them to.
+     * @param pacing The interval between starting transactions, in 
+     * milliseconds.
+     * @return Futures for the responses, in the same order as the checks.
+     * Each completes as soon as its own transaction does, either with the
+     * response, with a 
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out, or exceptionally if we could not send it.
+     */
+    default List<CompletableFuture<StunMessage>> writeBatch(
+        Collection<BindingCheck> checks, long pacing) {
+        return StunClientSupport.writeBatch(this, checks, pacing);
+    }
+
     void addIoServiceListener(IoServiceListener serviceListener);
 
     void connect() throws IOException;
@@ -9,6 +9,53 @@ package org.lastbamboo.common.stun.client;
 public class StunClientConfig {
 
     private static boolean useDnsSec = false;
+
+    private static volatile int serverRaceCount = 1;
+
+    private static volatile long serverRaceStagger = 200L;
+
+    private static volatile int publicIpQuorum = 1;
+
+    private static volatile long publicIpCacheTtl = 100 * 1000L;
+
+    private static volatile long publicIpNegativeCacheTtl = 2 * 1000L;
+
+    private static volatile long publicIpMaxStale = 60 * 60 * 1000L;
+
+    private static volatile long batchPacing = 20L;
+
+    private static volatile long transactionTtl = 5 * 60 * 1000L;
+
+    private static volatile boolean useVirtualThreads = false;
+
+    private static volatile long dnsTtl = 5 * 60 * 1000L;
+
+    private static volatile long dnsNegativeTtl = 10 * 1000L;
+
+    private static volatile long natBehaviorTtl = 10 * 60 * 1000L;
+
+    private static volatile double serverRate = 0.0;
+
+    private static volatile int serverBurst = 50;
+
+    private static volatile boolean coalesceRequests = false;
+
+    private static volatile long tcpTimeout = 5 * 1000L;
+
+    private static volatile long tcpFallbackDelay = 500L;
+
+    private static volatile long httpConnectTimeout = 2 * 1000L;
+
+    private static volatile long httpReadTimeout = 3 * 1000L;
+
+    private static volatile long publicIpHedgeDelay = 1000L;
+
+    private static volatile int publicIpProviderQuorum = 1;
+
+    private static volatile long publicIpTimeout = 15 * 1000L;
+
+    private static volatile StunClientMetrics metrics = 
+        new NullStunClientMetrics();
     
     private StunClientConfig(){}
 
@@ -31,4 +78,481 @@ public class StunClientConfig {
     public static boolean isUseDnsSec() {
         return useDnsSec;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the number of STUN servers to race in parallel when looking up 
+     * our server reflexive address.  With a value greater than one, we send
+     * binding requests to that many of the best ranked servers, staggered
+     * by {@link #getServerRaceStagger()}, and use the first answer.  The
+     * default of one tries servers strictly one after another.
+     * 
+     * @param serverRaceCount The number of servers to race.
+     */
+    public static void setServerRaceCount(final int serverRaceCount) {
+        StunClientConfig.serverRaceCount = Math.max(1, serverRaceCount);
+    }
+
+    /**
+     * Returns the number of STUN servers to race in parallel.
+     * 
+     * @return The number of servers to race.
+     */
+    public static int getServerRaceCount() {
+        return serverRaceCount;
+    }
+
+    /**
+     * Sets the delay between starting requests to successive servers when
+     * racing servers.
+     * 
+     * @param serverRaceStagger The delay in milliseconds.
+     */
+    public static void setServerRaceStagger(final long serverRaceStagger) {
+        StunClientConfig.serverRaceStagger = serverRaceStagger;
+    }
+
+    /**
+     * Returns the delay between starting requests to successive servers 
+     * when racing servers.
+     * 
+     * @return The delay in milliseconds.
+     */
+    public static long getServerRaceStagger() {
+        return serverRaceStagger;
+    }
+
+    /**
+     * Sets the number of STUN servers that must agree on our public IP
+     * address before {@link PublicIpAddress} accepts it.  The default of one
+     * takes the first answer.
+     * 
+     * @param publicIpQuorum The number of servers that must agree.
+     */
+    public static void setPublicIpQuorum(final int publicIpQuorum) {
+        StunClientConfig.publicIpQuorum = Math.max(1, publicIpQuorum);
+    }
+
+    /**
+     * Returns the number of STUN servers that must agree on our public IP
+     * address.
+     * 
+     * @return The number of servers that must agree.
+     */
+    public static int getPublicIpQuorum() {
+        return publicIpQuorum;
+    }
+
+    /**
+     * Sets how long a successfully looked up public IP address is
+     * considered fresh.
+     * 
+     * @param publicIpCacheTtl The TTL in milliseconds.
+     */
+    public static void setPublicIpCacheTtl(final long publicIpCacheTtl) {
+        StunClientConfig.publicIpCacheTtl = publicIpCacheTtl;
+    }
+
+    /**
+     * Returns how long a successfully looked up public IP address is
+     * considered fresh.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getPublicIpCacheTtl() {
+        return publicIpCacheTtl;
+    }
+
+    /**
+     * Sets how long we wait after a failed public IP lookup before trying
+     * again.
+     * 
+     * @param publicIpNegativeCacheTtl The TTL in milliseconds.
+     */
+    public static void setPublicIpNegativeCacheTtl(
+        final long publicIpNegativeCacheTtl) {
+        StunClientConfig.publicIpNegativeCacheTtl = publicIpNegativeCacheTtl;
+    }
+
+    /**
+     * Returns how long we wait after a failed public IP lookup before trying
+     * again.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getPublicIpNegativeCacheTtl() {
+        return publicIpNegativeCacheTtl;
+    }
+
+    /**
+     * Sets how long past its TTL we'll keep returning a public IP address
+     * while we refresh it in the background.
+     * 
+     * @param publicIpMaxStale The maximum staleness in milliseconds.
+     */
+    public static void setPublicIpMaxStale(final long publicIpMaxStale) {
+        StunClientConfig.publicIpMaxStale = publicIpMaxStale;
+    }
+
+    /**
+     * Returns how long past its TTL we'll keep returning a public IP 
+     * address while we refresh it in the background.
+     * 
+     * @return The maximum staleness in milliseconds.
+     */
+    public static long getPublicIpMaxStale() {
+        return publicIpMaxStale;
+    }
+
+    /**
+     * Sets the interval between starting transactions when writing batches
+     * of binding requests, as with Ta in ICE.
+     * 
+     * @param batchPacing The interval in milliseconds.
+     */
+    public static void setBatchPacing(final long batchPacing) {
+        StunClientConfig.batchPacing = Math.max(0L, batchPacing);
+    }
+
+    /**
+     * Returns the interval between starting transactions when writing 
+     * batches of binding requests.  This defaults to the 20ms ICE uses.
+     * 
+     * @return The interval in milliseconds.
+     */
+    public static long getBatchPacing() {
+        return batchPacing;
+    }
+
+    /**
+     * Sets how long transaction trackers remember transactions they never
+     * got a response for.  This is only a backstop, as clients normally
+     * remove transactions as soon as they time out, so it should be longer
+     * than the longest transaction.
+     * 
+     * @param transactionTtl The TTL in milliseconds.
+     */
+    public static void setTransactionTtl(final long transactionTtl) {
+        StunClientConfig.transactionTtl = transactionTtl;
+    }
+
+    /**
+     * Returns how long transaction trackers remember transactions they 
+     * never got a response for.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getTransactionTtl() {
+        return transactionTtl;
+    }
+
+    /**
+     * Sets whether or not to run blocking lookups and client callbacks on
+     * virtual threads.  This only takes effect on JDKs with virtual threads
+     * and for clients created after it's set.
+     * 
+     * @param useVirtualThreads Whether or not to use virtual threads.
+     */
+    public static void setUseVirtualThreads(final boolean useVirtualThreads) {
+        StunClientConfig.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * Whether or not we're configured to use virtual threads.
+     * 
+     * @return <code>true</code> if configured to use virtual threads, 
+     * otherwise <code>false</code>.
+     */
+    public static boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Sets how long we use a resolved STUN server address before resolving
+     * its name again.  The JDK doesn't tell us the TTLs of the records 
+     * behind an address, so this stands in for them.  We start resolving 
+     * again in the background three quarters of the way through it.
+     * 
+     * @param dnsTtl The TTL in milliseconds.
+     */
+    public static void setDnsTtl(final long dnsTtl) {
+        StunClientConfig.dnsTtl = Math.max(1000L, dnsTtl);
+    }
+
+    /**
+     * Returns how long we use a resolved STUN server address before 
+     * resolving its name again.  This defaults to five minutes.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getDnsTtl() {
+        return dnsTtl;
+    }
+
+    /**
+     * Sets how long we wait after failing to resolve a STUN server name 
+     * before trying again.
+     * 
+     * @param dnsNegativeTtl The TTL in milliseconds.
+     */
+    public static void setDnsNegativeTtl(final long dnsNegativeTtl) {
+        StunClientConfig.dnsNegativeTtl = Math.max(0L, dnsNegativeTtl);
+    }
+
+    /**
+     * Returns how long we wait after failing to resolve a STUN server name
+     * before trying again.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
+
+    /**
+     * Sets how long we trust what we've discovered about our NAT's 
+     * behaviour before discovering it again.
+     * 
+     * @param natBehaviorTtl The TTL in milliseconds.
+     */
+    public static void setNatBehaviorTtl(final long natBehaviorTtl) {
+        StunClientConfig.natBehaviorTtl = Math.max(0L, natBehaviorTtl);
+    }
+
+    /**
+     * Returns how long we trust what we've discovered about our NAT's
+     * behaviour.  This defaults to ten minutes.
+     * 
+     * @return The TTL in milliseconds.
+     */
+    public static long getNatBehaviorTtl() {
+        return natBehaviorTtl;
+    }
+
+    /**
+     * Sets the sustained rate at which we'll send requests, including
+     * retransmissions, to any one STUN server.  Requests beyond that are 
+     * held back until the server's token bucket refills.
+     * 
+     * @param serverRate The rate in requests per second, or zero to send
+     * as fast as callers ask.
+     */
+    public static void setServerRate(final double serverRate) {
+        StunClientConfig.serverRate = Math.max(0.0, serverRate);
+    }
+
+    /**
+     * Returns the sustained rate at which we'll send requests to any one 
+     * STUN server.  This defaults to zero, so pacing is off unless it's
+     * turned on.
+     * 
+     * @return The rate in requests per second, or zero if unlimited.
+     */
+    public static double getServerRate() {
+        return serverRate;
+    }
+
+    /**
+     * Sets how many requests we'll send to a STUN server at once before 
+     * pacing them at {@link #getServerRate()}.
+     * 
+     * @param serverBurst The burst size.
+     */
+    public static void setServerBurst(final int serverBurst) {
+        StunClientConfig.serverBurst = Math.max(1, serverBurst);
+    }
+
+    /**
+     * Returns how many requests we'll send to a STUN server at once before
+     * pacing them, when pacing is on.  This defaults to 50.
+     * 
+     * @return The burst size.
+     */
+    public static int getServerBurst() {
+        return serverBurst;
+    }
+
+    /**
+     * Sets whether clients send a single transaction for concurrent binding
+     * requests without attributes to the same server, giving every caller 
+     * the same mapped address.  Requests with attributes, such as ICE 
+     * connectivity checks, are always sent individually.
+     * 
+     * @param coalesceRequests Whether or not to coalesce requests.
+     */
+    public static void setCoalesceRequests(final boolean coalesceRequests) {
+        StunClientConfig.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Whether or not clients coalesce concurrent identical binding 
+     * requests.  This is off by default.
+     * 
+     * @return <code>true</code> if we coalesce requests.
+     */
+    public static boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Sets how long we wait for a response over TCP, including the time it
+     * takes to connect.
+     * 
+     * @param tcpTimeout The timeout in milliseconds.
+     */
+    public static void setTcpTimeout(final long tcpTimeout) {
+        StunClientConfig.tcpTimeout = Math.max(1L, tcpTimeout);
+    }
+
+    /**
+     * Returns how long we wait for a response over TCP.  This defaults to
+     * five seconds.
+     * 
+     * @return The timeout in milliseconds.
+     */
+    public static long getTcpTimeout() {
+        return tcpTimeout;
+    }
+
+    /**
+     * Sets how long clients with a TCP fallback wait for a UDP answer from 
+     * a server before also asking it over TCP.
+     * 
+     * @param tcpFallbackDelay The delay in milliseconds.
+     */
+    public static void setTcpFallbackDelay(final long tcpFallbackDelay) {
+        StunClientConfig.tcpFallbackDelay = Math.max(0L, tcpFallbackDelay);
+    }
+
+    /**
+     * Returns how long clients with a TCP fallback wait for a UDP answer 
+     * before also asking over TCP.  This defaults to 500ms.
+     * 
+     * @return The delay in milliseconds.
+     */
+    public static long getTcpFallbackDelay() {
+        return tcpFallbackDelay;
+    }
+
+    /**
+     * Sets how long HTTP public IP lookups wait to connect.
+     * 
+     * @param httpConnectTimeout The timeout in milliseconds.
+     */
+    public static void setHttpConnectTimeout(final long httpConnectTimeout) {
+        StunClientConfig.httpConnectTimeout = 
+            Math.max(1L, Math.min(Integer.MAX_VALUE, httpConnectTimeout));
+    }
+
+    /**
+     * Returns how long HTTP public IP lookups wait to connect.  This 
+     * defaults to two seconds.
+     * 
+     * @return The timeout in milliseconds.
+     */
+    public static long getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    /**
+     * Sets how long HTTP public IP lookups wait for data once connected.
+     * 
+     * @param httpReadTimeout The timeout in milliseconds.
+     */
+    public static void setHttpReadTimeout(final long httpReadTimeout) {
+        StunClientConfig.httpReadTimeout = 
+            Math.max(1L, Math.min(Integer.MAX_VALUE, httpReadTimeout));
+    }
+
+    /**
+     * Returns how long HTTP public IP lookups wait for data once connected.
+     * This defaults to three seconds.
+     * 
+     * @return The timeout in milliseconds.
+     */
+    public static long getHttpReadTimeout() {
+        return httpReadTimeout;
+    }
+
+    /**
+     * Sets how long public IP lookups wait for an answer from a provider
+     * before also asking the next best provider.  We always ask the next
+     * provider right away if one fails.
+     * 
+     * @param publicIpHedgeDelay The delay in milliseconds.
+     */
+    public static void setPublicIpHedgeDelay(final long publicIpHedgeDelay) {
+        StunClientConfig.publicIpHedgeDelay = Math.max(0L, publicIpHedgeDelay);
+    }
+
+    /**
+     * Returns how long public IP lookups wait for an answer from a provider
+     * before also asking the next one.  This defaults to one second.
+     * 
+     * @return The delay in milliseconds.
+     */
+    public static long getPublicIpHedgeDelay() {
+        return publicIpHedgeDelay;
+    }
+
+    /**
+     * Sets the number of public IP providers that must agree before we
+     * accept a new public IP address.  Confirming the address we already 
+     * have only ever takes one provider.
+     * 
+     * @param publicIpProviderQuorum The number of providers.
+     */
+    public static void setPublicIpProviderQuorum(
+        final int publicIpProviderQuorum) {
+        StunClientConfig.publicIpProviderQuorum = 
+            Math.max(1, publicIpProviderQuorum);
+    }
+
+    /**
+     * Returns the number of public IP providers that must agree before we
+     * accept a new public IP address.  This defaults to one.
+     * 
+     * @return The number of providers.
+     */
+    public static int getPublicIpProviderQuorum() {
+        return publicIpProviderQuorum;
+    }
+
+    /**
+     * Sets the longest a public IP lookup can take, however many sources
+     * are still outstanding.
+     * 
+     * @param publicIpTimeout The timeout in milliseconds.
+     */
+    public static void setPublicIpTimeout(final long publicIpTimeout) {
+        StunClientConfig.publicIpTimeout = Math.max(1L, publicIpTimeout);
+    }
+
+    /**
+     * Returns the longest a public IP lookup can take.  This defaults to 
+     * 15 seconds.
+     * 
+     * @return The timeout in milliseconds.
+     */
+    public static long getPublicIpTimeout() {
+        return publicIpTimeout;
+    }
+
+    /**
+     * Sets where clients report metrics.  By default metrics are discarded.
+     * 
+     * @param metrics The metrics to report to.
+     */
+    public static void setMetrics(final StunClientMetrics metrics) {
+        StunClientConfig.metrics = 
+            metrics == null ? new NullStunClientMetrics() : metrics;
+    }
+
+    /**
+     * Returns where clients report metrics.
+     * 
+     * @return The metrics.
+     */
+    public static StunClientMetrics getMetrics() {
+        return metrics;
+    }
+}
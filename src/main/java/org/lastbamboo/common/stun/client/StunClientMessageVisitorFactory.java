@@ -6,7 +6,9 @@ import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
 import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
 
 /**
- * Factory for creating STUN client message visitors.
+ * Factory for creating STUN client message visitors.  Client visitors don't
+ * hold any per-session state, so we hand out the same one for every 
+ * message rather than creating one each time.
  *  
  * @param <T> The type created visitors return.
  */
@@ -14,7 +16,7 @@ public class StunClientMessageVisitorFactory<T> implements
     StunMessageVisitorFactory<T>
     {
 
-    private final StunTransactionTracker<T> m_transactionTracker;
+    private final StunMessageVisitor<T> m_visitor;
 
     /**
      * Creates a new message visitor factory for STUN clients.
@@ -25,11 +27,11 @@ public class StunClientMessageVisitorFactory<T> implements
     public StunClientMessageVisitorFactory(
         final StunTransactionTracker<T> transactionTracker)
         {
-        m_transactionTracker = transactionTracker;
+        m_visitor = new StunClientMessageVisitor<T>(transactionTracker);
         }
 
     public StunMessageVisitor<T> createVisitor(final IoSession session)
         {
-        return new StunClientMessageVisitor<T>(this.m_transactionTracker);
+        return this.m_visitor;
         }
     }
@@ -0,0 +1,76 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives events from the hot paths of STUN clients and public IP lookups
+ * for aggregation.  Implementations are called inline from I/O and timer 
+ * threads, so they must be thread safe and must never block.  Install one 
+ * with {@link StunClientConfig#setMetrics(StunClientMetrics)}.
+ */
+public interface StunClientMetrics {
+
+    /**
+     * Called when we send the first request of a transaction.
+     * 
+     * @param server The address the request is for.
+     */
+    void onTransactionStarted(InetSocketAddress server);
+
+    /**
+     * Called when a transaction gets a success response.
+     * 
+     * @param server The address the request was for.
+     * @param retransmissions The number of times we resent the request.
+     */
+    void onTransactionSucceeded(InetSocketAddress server, int retransmissions);
+
+    /**
+     * Called when a transaction gets an error response or ICMP error.
+     * 
+     * @param server The address the request was for.
+     * @param retransmissions The number of times we resent the request.
+     */
+    void onTransactionFailed(InetSocketAddress server, int retransmissions);
+
+    /**
+     * Called when a transaction gets no response at all.
+     * 
+     * @param server The address the request was for.
+     */
+    void onTransactionTimedOut(InetSocketAddress server);
+
+    /**
+     * Called with each round-trip time we measure.
+     * 
+     * @param server The server.
+     * @param rtt The round-trip time in milliseconds.
+     */
+    void onRtt(InetSocketAddress server, long rtt);
+
+    /**
+     * Called when a client switches to a different preferred server.
+     * 
+     * @param previous The server we used to prefer.
+     * @param current The server we prefer now.
+     */
+    void onRankingChanged(RankedStunServer previous, RankedStunServer current);
+
+    /**
+     * Called when a public IP lookup is answered from the cache, including
+     * stale answers returned while we refresh.
+     */
+    void onPublicIpCacheHit();
+
+    /**
+     * Called when a public IP lookup has to wait on the network.
+     */
+    void onPublicIpCacheMiss();
+
+    /**
+     * Called when we determine our public IP address.
+     * 
+     * @param source The technique that found it, such as "stun".
+     */
+    void onPublicIpSource(String source);
+}
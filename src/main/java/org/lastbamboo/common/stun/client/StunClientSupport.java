@@ -0,0 +1,266 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the newer {@link StunClient} methods on top of the blocking
+ * <code>write</code> methods every client has always had, so clients
+ * written outside this library keep working.  Our own clients override
+ * the asynchronous writes with versions that don't tie up a thread per 
+ * request.
+ */
+final class StunClientSupport {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunClientSupport.class);
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("STUN-Client-Async"));
+
+    private StunClientSupport() {}
+
+    /**
+     * Runs a blocking write on another thread.
+     *
+     * @param client The client to write with.
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @return A future for the response.
+     */
+    static CompletableFuture<StunMessage> writeAsync(final StunClient client,
+        final BindingRequest request, final InetSocketAddress remoteAddress) {
+        return submit(new Callable<StunMessage>() {
+            @Override
+            public StunMessage call() throws IOException {
+                return client.write(request, remoteAddress);
+            }
+        });
+    }
+
+    /**
+     * Runs a blocking write with an explicit RTO on another thread.
+     *
+     * @param client The client to write with.
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @param rto The RTO to use for retransmissions.
+     * @return A future for the response.
+     */
+    static CompletableFuture<StunMessage> writeAsync(final StunClient client,
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long rto) {
+        return submit(new Callable<StunMessage>() {
+            @Override
+            public StunMessage call() throws IOException {
+                return client.write(request, remoteAddress, rto);
+            }
+        });
+    }
+
+    /**
+     * Gives up on a transaction once the timeout passes, completing it 
+     * with a {@link NullStunMessage}.
+     *
+     * @param future The future for the transaction.
+     * @param remoteAddress The address the request went to.
+     * @param timeout The longest to wait for a response.
+     * @param unit The unit of the timeout.
+     * @return The same future.
+     */
+    static CompletableFuture<StunMessage> withDeadline(
+        final CompletableFuture<StunMessage> future,
+        final InetSocketAddress remoteAddress, final long timeout, 
+        final TimeUnit unit) {
+        if (future.isDone()) {
+            return future;
+        }
+        final ScheduledFuture<?> deadline = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                // Completing the future stops retransmissions and removes
+                // the transaction just as a response would.
+                if (future.complete(new NullStunMessage())) {
+                    LOG.debug("Deadline passed for {}", remoteAddress);
+                    StunClientConfig.getMetrics().onTransactionTimedOut(
+                        remoteAddress);
+                }
+            }
+        }, unit.toMillis(timeout));
+        future.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                deadline.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Waits for a transaction to complete.  If we're interrupted we cancel
+     * the transaction, so it stops retransmitting and is forgotten at once.
+     * 
+     * @param future The future for the transaction.
+     * @return The result.
+     * @throws InterruptedIOException If we're interrupted while waiting.
+     * @throws IOException If the transaction failed.
+     */
+    static <T> T await(final CompletableFuture<T> future) 
+        throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted waiting for STUN response");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("STUN transaction failed", cause);
+        }
+    }
+
+    /**
+     * Writes a batch of checks, starting a new transaction every 
+     * <code>pacing</code> milliseconds.
+     *
+     * @param client The client to write with.
+     * @param checks The requests and the addresses to send them to.
+     * @param pacing The interval between starting transactions, in 
+     * milliseconds.
+     * @return Futures for the responses, in the same order as the checks.
+     */
+    static List<CompletableFuture<StunMessage>> writeBatch(
+        final StunClient client, final Collection<BindingCheck> checks, 
+        final long pacing) {
+        final List<BindingCheck> pending = new ArrayList<BindingCheck>(checks);
+        final List<CompletableFuture<StunMessage>> results = 
+            new ArrayList<CompletableFuture<StunMessage>>(pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            results.add(new CompletableFuture<StunMessage>());
+        }
+        if (!pending.isEmpty()) {
+            new BatchWriter(client, pending, results, pacing).run();
+        }
+        return results;
+    }
+
+    private static CompletableFuture<StunMessage> submit(
+        final Callable<StunMessage> write) {
+        final CompletableFuture<StunMessage> future =
+            new CompletableFuture<StunMessage>();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The caller may have given up already.
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(write.call());
+                } catch (final Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts the transactions in a batch one at a time, rescheduling itself
+     * on the shared timer after each one so we only ever have a single 
+     * timer task per batch.
+     */
+    private static final class BatchWriter implements Runnable {
+
+        private final StunClient m_client;
+        private final List<BindingCheck> m_checks;
+        private final List<CompletableFuture<StunMessage>> m_results;
+        private final long m_pacing;
+        private int m_index;
+
+        private BatchWriter(final StunClient client,
+            final List<BindingCheck> checks,
+            final List<CompletableFuture<StunMessage>> results, 
+            final long pacing) {
+            this.m_client = client;
+            this.m_checks = checks;
+            this.m_results = results;
+            this.m_pacing = pacing;
+        }
+
+        @Override
+        public void run() {
+            while (m_index < m_checks.size()) {
+                final BindingCheck check = m_checks.get(m_index);
+                final CompletableFuture<StunMessage> result = 
+                    m_results.get(m_index);
+                m_index++;
+                if (result.isDone()) {
+                    // The caller cancelled it before we got to it, so don't
+                    // count it against the pacing.
+                    continue;
+                }
+                start(check, result);
+                if (m_index < m_checks.size() && m_pacing > 0L) {
+                    StunTransactionTimer.schedule(this, m_pacing);
+                    return;
+                }
+            }
+        }
+
+        private void start(final BindingCheck check,
+            final CompletableFuture<StunMessage> result) {
+            final CompletableFuture<StunMessage> transaction;
+            try {
+                transaction = m_client.writeAsync(check.getRequest(), 
+                    check.getRemoteAddress());
+            } catch (final IOException e) {
+                LOG.debug("Could not write check: " + check, e);
+                result.completeExceptionally(e);
+                return;
+            }
+            transaction.whenComplete(
+                new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage response, 
+                    final Throwable t) {
+                    if (t != null) {
+                        result.completeExceptionally(t);
+                    } else {
+                        result.complete(response);
+                    }
+                }
+            });
+            result.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage response, 
+                    final Throwable t) {
+                    // This stops retransmissions if the caller cancels.
+                    transaction.cancel(false);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.lastbamboo.common.stun.client;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.ExecutorThreadModel;
+import org.littleshoot.mina.common.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads STUN clients run blocking work and callbacks on.  
+ * When {@link StunClientConfig#isUseVirtualThreads()} is on and we're 
+ * running on a JDK with virtual threads, every task gets its own virtual 
+ * thread, so tens of thousands of concurrent blocking lookups are cheap.
+ * Otherwise we use ordinary daemon threads.  We look virtual threads up
+ * reflectively so we still run on older JDKs.
+ */
+public final class StunExecutors {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(StunExecutors.class);
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = 
+        findMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+    private static final Method START_VIRTUAL_THREAD = 
+        findMethod(Thread.class, "startVirtualThread", Runnable.class);
+
+    private static final Set<String> VIRTUAL_THREAD_MODELS = 
+        new HashSet<String>();
+
+    private StunExecutors() {}
+
+    /**
+     * Returns whether or not this JDK supports virtual threads.
+     * 
+     * @return <code>true</code> if virtual threads are available.
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null && START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Returns whether or not we're configured to use virtual threads and 
+     * they're available.
+     * 
+     * @return <code>true</code> if we're using virtual threads.
+     */
+    public static boolean isUsingVirtualThreads() {
+        return StunClientConfig.isUseVirtualThreads() && 
+            isVirtualThreadsAvailable();
+    }
+
+    /**
+     * Creates an executor for running blocking STUN calls such as 
+     * {@link StunClient#write(org.littleshoot.stun.stack.message.BindingRequest, java.net.InetSocketAddress)}.
+     * This starts a virtual thread per task if we're using virtual threads
+     * and otherwise uses a cached pool of daemon threads.
+     * 
+     * @param name The name for the threads.
+     * @return The new executor.
+     */
+    public static ExecutorService newBlockingExecutor(final String name) {
+        if (isUsingVirtualThreads()) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (final Exception e) {
+                LOG.warn("Could not create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread for each task while
+     * we're using virtual threads and otherwise hands tasks to the 
+     * specified executor.  This checks the configuration for every task, 
+     * so it's suitable for executors created before the application 
+     * configures us.
+     * 
+     * @param platform The executor to use when we're not using virtual 
+     * threads.
+     * @return The executor.
+     */
+    static Executor switchable(final Executor platform) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                if (isUsingVirtualThreads()) {
+                    try {
+                        START_VIRTUAL_THREAD.invoke(null, task);
+                        return;
+                    } catch (final Exception e) {
+                        LOG.warn("Could not start virtual thread", e);
+                    }
+                }
+                platform.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Returns the MINA thread model to use for callbacks on the specified
+     * service.  With virtual threads each callback runs on its own virtual
+     * thread, and we use a separate model so we never swap the executor 
+     * out from under sessions using platform threads.
+     * 
+     * @param name The name of the service.
+     * @return The thread model.
+     */
+    static ThreadModel threadModel(final String name) {
+        if (!isUsingVirtualThreads()) {
+            return ExecutorThreadModel.getInstance(name);
+        }
+        final String virtualName = name + "-Virtual";
+        final ExecutorThreadModel model = 
+            ExecutorThreadModel.getInstance(virtualName);
+        synchronized (VIRTUAL_THREAD_MODELS) {
+            if (VIRTUAL_THREAD_MODELS.add(virtualName)) {
+                model.setExecutor(newBlockingExecutor(virtualName));
+            }
+        }
+        return model;
+    }
+
+    private static Method findMethod(final Class<?> clazz, final String name,
+        final Class<?>... params) {
+        try {
+            return clazz.getMethod(name, params);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+        private final String m_name;
+
+        private DaemonThreadFactory(final String name) {
+            this.m_name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runner) {
+            final Thread thread =
+                new Thread(runner, m_name + "-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
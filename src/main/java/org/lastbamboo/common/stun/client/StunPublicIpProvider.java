@@ -0,0 +1,106 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up our public IP address from the servers in the 
+ * {@link StunServerRepository}, sending to all of them at once over a 
+ * single shared socket and requiring 
+ * {@link StunClientConfig#getPublicIpQuorum()} of them to agree.  Servers
+ * we can't reach over UDP are asked over TCP instead.
+ */
+public class StunPublicIpProvider implements PublicIpProvider {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(StunPublicIpProvider.class);
+
+    /**
+     * All STUN lookups share a single socket, sending to every server at 
+     * once and taking the first (or quorum) answer.
+     */
+    private static final SharedUdpStunTransport TRANSPORT = 
+        new SharedUdpStunTransport(1);
+
+    /**
+     * How long we keep retransmitting to servers before giving up.
+     */
+    private static final long TIMEOUT = 12 * 1000L;
+
+    @Override
+    public String getName() {
+        return "stun";
+    }
+
+    @Override
+    public CompletableFuture<InetAddress> lookupAsync() {
+        final UdpStunClient stun;
+        try {
+            stun = UdpStunClient.forRepository(TRANSPORT);
+        } catch (final IOException e) {
+            LOG.error("Could not perform STUN lookup", e);
+            return CompletableFuture.completedFuture(null);
+        }
+        stun.setTcpFallback(TcpHolder.TCP);
+        final CompletableFuture<InetSocketAddress> lookup = 
+            stun.getServerReflexiveAddressAsync(
+                StunClientConfig.getPublicIpQuorum());
+        final CompletableFuture<InetAddress> ip = 
+            new CompletableFuture<InetAddress>();
+        lookup.whenComplete(new BiConsumer<InetSocketAddress, Throwable>() {
+            @Override
+            public void accept(final InetSocketAddress isa, final Throwable t) {
+                if (t != null) {
+                    LOG.debug("Could not perform STUN lookup", t);
+                    ip.complete(null);
+                } else if (isa == null) {
+                    LOG.warn("No STUN quorum for public IP");
+                    ip.complete(null);
+                } else {
+                    ip.complete(isa.getAddress());
+                }
+            }
+        });
+        final ScheduledFuture<?> timeout = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                lookup.cancel(false);
+            }
+        }, TIMEOUT);
+        ip.whenComplete(new BiConsumer<InetAddress, Throwable>() {
+            @Override
+            public void accept(final InetAddress address, final Throwable t) {
+                timeout.cancel(false);
+                
+                // This stops retransmissions to any servers we haven't 
+                // heard from yet.
+                lookup.cancel(false);
+            }
+        });
+        return ip;
+    }
+
+    @Override
+    public String toString() {
+        return "StunPublicIpProvider";
+    }
+
+    /**
+     * Falls back to TCP for servers we can't reach over UDP, such as from
+     * networks that block UDP.  Connections stay open between lookups.  
+     * This is only created on our first lookup, and follows changes to the
+     * servers in the repository.
+     */
+    private static final class TcpHolder {
+        private static final TcpStunClient TCP = 
+            TcpStunClient.forRepository();
+    }
+}
@@ -0,0 +1,18 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+/**
+ * Listener for changes to the STUN servers in the 
+ * {@link StunServerRepository}.
+ */
+public interface StunServerListener {
+
+    /**
+     * Called after the servers change.
+     * 
+     * @param servers The new, immutable set of servers.
+     */
+    void onServersChanged(Collection<InetSocketAddress> servers);
+}
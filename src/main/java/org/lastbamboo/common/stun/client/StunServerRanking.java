@@ -0,0 +1,126 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The STUN servers available to a single client, ranked by cost.  The
+ * servers themselves are shared, so updates from any client using a server
+ * are reflected here.  This class is thread safe, as rankings are computed
+ * from a snapshot of each server's cost rather than maintained in a
+ * mutable ordered collection.  The servers themselves can be replaced at
+ * any time, which swaps in a new immutable list.
+ */
+final class StunServerRanking {
+
+    private volatile List<RankedStunServer> m_servers;
+
+    StunServerRanking(final Collection<RankedStunServer> servers) {
+        setServers(servers);
+    }
+
+    /**
+     * Replaces the servers we rank.  Callers in the middle of using the old
+     * servers keep using them.
+     *
+     * @param servers The new servers.
+     */
+    void setServers(final Collection<RankedStunServer> servers) {
+        this.m_servers = Collections.unmodifiableList(
+            new ArrayList<RankedStunServer>(servers));
+    }
+
+    boolean isEmpty() {
+        return m_servers.isEmpty();
+    }
+
+    int size() {
+        return m_servers.size();
+    }
+
+    /**
+     * Returns the server with the lowest cost, skipping any servers in the
+     * specified collection.
+     *
+     * @param skip Servers not to return.
+     * @return The best server, or <code>null</code> if there are none left.
+     */
+    RankedStunServer pick(final Collection<RankedStunServer> skip) {
+        RankedStunServer best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (final RankedStunServer rss : m_servers) {
+            if (skip.contains(rss)) {
+                continue;
+            }
+            final double cost = rss.getCost();
+            if (best == null || cost < bestCost) {
+                best = rss;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns all servers ordered from lowest to highest cost.
+     *
+     * @return The ordered servers.
+     */
+    List<RankedStunServer> getRanked() {
+        // We take a snapshot of the costs first because they can change
+        // while we're sorting.
+        final List<RankedStunServer> servers = m_servers;
+        final List<Ranked> snapshot = new ArrayList<Ranked>(servers.size());
+        for (final RankedStunServer rss : servers) {
+            snapshot.add(new Ranked(rss, rss.getCost()));
+        }
+        Collections.sort(snapshot, new Comparator<Ranked>() {
+            @Override
+            public int compare(final Ranked r1, final Ranked r2) {
+                return Double.compare(r1.m_cost, r2.m_cost);
+            }
+        });
+        final List<RankedStunServer> ranked =
+            new ArrayList<RankedStunServer>(snapshot.size());
+        for (final Ranked r : snapshot) {
+            ranked.add(r.m_server);
+        }
+        return ranked;
+    }
+
+    /**
+     * Returns a demoted server that's due to be probed again, if any,
+     * recording the attempt so other callers don't probe it as well.
+     *
+     * @return The server to probe, or <code>null</code> if there's none.
+     */
+    RankedStunServer nextReprobe() {
+        for (final RankedStunServer rss : m_servers) {
+            synchronized (rss) {
+                if (rss.isDueForReprobe()) {
+                    rss.onAttempt();
+                    return rss;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "StunServerRanking " + getRanked();
+    }
+
+    private static final class Ranked {
+        private final RankedStunServer m_server;
+        private final double m_cost;
+
+        private Ranked(final RankedStunServer server, final double cost) {
+            this.m_server = server;
+            this.m_cost = cost;
+        }
+    }
+}
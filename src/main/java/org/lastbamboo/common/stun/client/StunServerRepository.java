@@ -2,33 +2,139 @@ package org.lastbamboo.common.stun.client;
 
 import java.net.InetSocketAddress;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.littleshoot.stun.stack.StunConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Repository controlling which STUN servers to use.
+ * Repository controlling which STUN servers to use.  The servers are held
+ * as an immutable snapshot that's swapped atomically on every change, so
+ * readers never lock and can iterate freely while the servers are being
+ * reloaded.  Each snapshot has a version number so clients can cheaply 
+ * check whether they're up to date.
  */
 public class StunServerRepository {
 
-    private static Collection<InetSocketAddress> servers = 
-        new HashSet<InetSocketAddress>(StunConstants.SERVERS);
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(StunServerRepository.class);
+
+    private static final AtomicReference<Snapshot> SNAPSHOT = 
+        new AtomicReference<Snapshot>(
+            new Snapshot(0L, StunConstants.SERVERS));
+
+    private static final List<StunServerListener> LISTENERS = 
+        new CopyOnWriteArrayList<StunServerListener>();
     
+    /**
+     * Replaces all the STUN servers.  This is ignored if the new servers
+     * are empty.
+     * 
+     * @param ss The new servers.
+     */
     public static void setStunServers(
         final Collection<InetSocketAddress> ss) {
-        if (!ss.isEmpty()) {
-            servers = ss;
+        if (ss.isEmpty()) {
+            return;
+        }
+        while (true) {
+            final Snapshot current = SNAPSHOT.get();
+            final Snapshot next = new Snapshot(current.m_version + 1, ss);
+            if (SNAPSHOT.compareAndSet(current, next)) {
+                notifyListeners(next);
+                return;
+            }
         }
     }
     
+    /**
+     * Returns the current STUN servers.  This is an immutable snapshot 
+     * that's safe to iterate without locking.
+     * 
+     * @return The servers.
+     */
     public static Collection<InetSocketAddress> getServers() {
-        return servers;
+        return SNAPSHOT.get().m_servers;
+    }
+
+    /**
+     * Returns the version of the current servers.  This changes every 
+     * time the servers do.
+     * 
+     * @return The version.
+     */
+    public static long getVersion() {
+        return SNAPSHOT.get().m_version;
     }
     
+    /**
+     * Adds STUN servers to the ones we already have.
+     * 
+     * @param ss The servers to add.
+     */
     public static void addStunServers(
         final Collection<InetSocketAddress> ss) {
-        synchronized (servers) {
-            servers.addAll(ss);
+        while (true) {
+            final Snapshot current = SNAPSHOT.get();
+            if (current.m_servers.containsAll(ss)) {
+                return;
+            }
+            final Set<InetSocketAddress> merged = 
+                new LinkedHashSet<InetSocketAddress>(current.m_servers);
+            merged.addAll(ss);
+            final Snapshot next = new Snapshot(current.m_version + 1, merged);
+            if (SNAPSHOT.compareAndSet(current, next)) {
+                notifyListeners(next);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener for changes to the servers.
+     * 
+     * @param listener The listener to add.
+     */
+    public static void addListener(final StunServerListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a listener for changes to the servers.
+     * 
+     * @param listener The listener to remove.
+     */
+    public static void removeListener(final StunServerListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    private static void notifyListeners(final Snapshot snapshot) {
+        for (final StunServerListener listener : LISTENERS) {
+            try {
+                listener.onServersChanged(snapshot.m_servers);
+            } catch (final RuntimeException e) {
+                LOG.warn("Error notifying listener", e);
+            }
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final long m_version;
+
+        private final Collection<InetSocketAddress> m_servers;
+
+        private Snapshot(final long version, 
+            final Collection<InetSocketAddress> servers) {
+            this.m_version = version;
+            this.m_servers = Collections.unmodifiableSet(
+                new LinkedHashSet<InetSocketAddress>(servers));
         }
     }
 }
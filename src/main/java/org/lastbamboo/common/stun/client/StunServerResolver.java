@@ -0,0 +1,371 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.littleshoot.dnssec4j.DnsSec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves STUN server host names in the background and caches the
+ * results, so creating clients never waits on DNS.  Each name is resolved
+ * on its own thread, so resolving all our servers takes as long as the
+ * slowest lookup rather than the sum of them.  Names are re-resolved in the
+ * background before their entries expire for as long as they're in use,
+ * and callers keep getting the last good address while that happens.
+ * <p>
+ * This verifies addresses with DNSSEC when
+ * {@link StunClientConfig#isUseDnsSec()} is on.
+ */
+public final class StunServerResolver {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunServerResolver.class);
+
+    private static final Pattern IPV4 =
+        Pattern.compile("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+
+    /**
+     * How far through its TTL we re-resolve a name, so the new address is
+     * usually in place before the old one expires.
+     */
+    private static final double REFRESH_POINT = 0.75;
+
+    private static final ConcurrentMap<String, Entry> ENTRIES =
+        new ConcurrentHashMap<String, Entry>();
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("STUN-DNS"));
+
+    private StunServerResolver() {}
+
+    /**
+     * Returns the resolved address for the specified server without
+     * blocking.  If we haven't resolved the server's name yet, this starts
+     * resolving it in the background and returns the address as given,
+     * which may be unresolved.
+     *
+     * @param server The server address.
+     * @return The resolved address if we have one, otherwise the address
+     * as given.
+     */
+    public static InetSocketAddress getResolved(
+        final InetSocketAddress server) {
+        if (isLiteral(server)) {
+            return server;
+        }
+        final Entry entry = entryFor(server);
+        entry.m_lastUsed = System.currentTimeMillis();
+        final InetSocketAddress resolved = entry.m_resolved;
+        if (resolved != null) {
+            if (entry.isStale()) {
+                entry.resolve();
+            }
+            return resolved;
+        }
+        if (entry.isStale()) {
+            entry.resolve();
+        }
+        return server;
+    }
+
+    /**
+     * Resolves the specified server, using the cached address if it's
+     * still fresh.
+     *
+     * @param server The server address.
+     * @return A future for the resolved address.  This completes with the
+     * address as given if we can't resolve it.
+     */
+    public static CompletableFuture<InetSocketAddress> resolveAsync(
+        final InetSocketAddress server) {
+        if (isLiteral(server)) {
+            return CompletableFuture.completedFuture(server);
+        }
+        final Entry entry = entryFor(server);
+        entry.m_lastUsed = System.currentTimeMillis();
+        if (!entry.isStale()) {
+            final InetSocketAddress resolved = entry.m_resolved;
+            return CompletableFuture.completedFuture(
+                resolved == null ? server : resolved);
+        }
+        return entry.resolve();
+    }
+
+    /**
+     * Resolves every address of the specified server, both A and AAAA 
+     * records, using the cached addresses if they're still fresh.  The 
+     * addresses are literal IPs, so {@link #getResolved(InetSocketAddress)}
+     * passes each of them through as is rather than mapping them all back
+     * to the one address we cache for the name.  With DNSSEC on this is 
+     * only the single address that verifies.
+     *
+     * @param server The server address.
+     * @return A future for the addresses.  This completes with an empty
+     * list if we can't resolve the server.
+     */
+    public static CompletableFuture<List<InetSocketAddress>> resolveAllAsync(
+        final InetSocketAddress server) {
+        if (isLiteral(server)) {
+            return CompletableFuture.completedFuture(
+                Collections.singletonList(server.isUnresolved() ?
+                    new InetSocketAddress(server.getHostString(), 
+                        server.getPort()) : server));
+        }
+        final Entry entry = entryFor(server);
+        entry.m_lastUsed = System.currentTimeMillis();
+        final List<InetSocketAddress> all = entry.m_all;
+        if (all != null && !entry.isStale()) {
+            return CompletableFuture.completedFuture(all);
+        }
+        return entry.resolve().thenApply(
+            new Function<InetSocketAddress, List<InetSocketAddress>>() {
+            @Override
+            public List<InetSocketAddress> apply(
+                final InetSocketAddress resolved) {
+                final List<InetSocketAddress> latest = entry.m_all;
+                return latest == null ? 
+                    Collections.<InetSocketAddress>emptyList() : latest;
+            }
+        });
+    }
+
+    /**
+     * Starts resolving all the specified servers in parallel.  This is
+     * typically called at startup so the first clients find their servers
+     * already resolved.
+     *
+     * @param servers The servers to resolve.
+     * @return A future that completes when all the servers are resolved or
+     * have failed to resolve.
+     */
+    public static CompletableFuture<Void> prewarm(
+        final Collection<InetSocketAddress> servers) {
+        final List<CompletableFuture<InetSocketAddress>> futures =
+            new ArrayList<CompletableFuture<InetSocketAddress>>(
+                servers.size());
+        for (final InetSocketAddress server : servers) {
+            futures.add(resolveAsync(server));
+        }
+        return CompletableFuture.allOf(
+            futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Gives a server the address it resolved to in an earlier run, so we
+     * can use it right away.  We still re-resolve the name the first time
+     * it's used.  We never seed addresses when using DNSSEC, as they 
+     * haven't been verified.
+     *
+     * @param server The server address.
+     * @param resolved The address it last resolved to.
+     */
+    static void seed(final InetSocketAddress server,
+        final InetSocketAddress resolved) {
+        if (isLiteral(server) || StunClientConfig.isUseDnsSec()) {
+            return;
+        }
+        final Entry entry = entryFor(server);
+        if (entry.m_resolved == null) {
+            entry.m_resolved = resolved;
+        }
+    }
+
+    /**
+     * Returns whether or not the last attempt to resolve the specified
+     * server failed DNSSEC verification.
+     *
+     * @param server The server address.
+     * @return <code>true</code> if the server failed verification.
+     */
+    static boolean isDnsSecFailure(final InetSocketAddress server) {
+        final Entry entry = ENTRIES.get(keyFor(server));
+        return entry != null && entry.m_dnsSecFailure;
+    }
+
+    /**
+     * Forgets everything we've resolved.
+     */
+    static void clear() {
+        for (final Entry entry : ENTRIES.values()) {
+            entry.cancelRefresh();
+        }
+        ENTRIES.clear();
+    }
+
+    private static Entry entryFor(final InetSocketAddress server) {
+        final String key = keyFor(server);
+        final Entry existing = ENTRIES.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final Entry entry = new Entry(key,
+            InetSocketAddress.createUnresolved(server.getHostString(),
+                server.getPort()));
+        final Entry raced = ENTRIES.putIfAbsent(key, entry);
+        return raced == null ? entry : raced;
+    }
+
+    private static String keyFor(final InetSocketAddress server) {
+        return server.getHostString() + ":" + server.getPort();
+    }
+
+    private static boolean isLiteral(final InetSocketAddress server) {
+        final String host = server.getHostString();
+        return host.indexOf(':') != -1 || IPV4.matcher(host).matches();
+    }
+
+    private static final class Entry {
+
+        private final String m_key;
+
+        private final InetSocketAddress m_unresolved;
+
+        private volatile InetSocketAddress m_resolved;
+
+        /**
+         * Every address the name resolved to, as literal IPs.
+         */
+        private volatile List<InetSocketAddress> m_all;
+
+        private volatile boolean m_dnsSecFailure;
+
+        /**
+         * When we should next resolve the name, or zero if we never have.
+         */
+        private volatile long m_refreshAt;
+
+        private volatile long m_lastUsed;
+
+        private CompletableFuture<InetSocketAddress> m_inFlight;
+
+        /**
+         * The one pending refresh for this name, replaced each time we
+         * resolve it so refreshes never pile up.
+         */
+        private ScheduledFuture<?> m_refresh;
+
+        private Entry(final String key, final InetSocketAddress unresolved) {
+            this.m_key = key;
+            this.m_unresolved = unresolved;
+        }
+
+        private boolean isStale() {
+            return System.currentTimeMillis() >= m_refreshAt;
+        }
+
+        /**
+         * Starts resolving the name unless we're already doing so.
+         *
+         * @return The future for the lookup in flight.
+         */
+        private synchronized CompletableFuture<InetSocketAddress> resolve() {
+            if (m_inFlight != null) {
+                return m_inFlight;
+            }
+            final CompletableFuture<InetSocketAddress> future =
+                new CompletableFuture<InetSocketAddress>();
+            m_inFlight = future;
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(lookup());
+                    synchronized (Entry.this) {
+                        m_inFlight = null;
+                    }
+                }
+            });
+            return future;
+        }
+
+        private InetSocketAddress lookup() {
+            final long now = System.currentTimeMillis();
+            try {
+                final InetSocketAddress resolved;
+                final List<InetSocketAddress> all = 
+                    new ArrayList<InetSocketAddress>();
+                if (StunClientConfig.isUseDnsSec()) {
+                    resolved = DnsSec.verify(m_unresolved);
+                    all.add(literal(resolved.getAddress()));
+                } else {
+                    final InetAddress[] addresses = InetAddress.getAllByName(
+                        m_unresolved.getHostString());
+                    resolved = new InetSocketAddress(addresses[0],
+                        m_unresolved.getPort());
+                    for (final InetAddress address : addresses) {
+                        all.add(literal(address));
+                    }
+                }
+                m_resolved = resolved;
+                m_all = Collections.unmodifiableList(all);
+                m_dnsSecFailure = false;
+                final long ttl = StunClientConfig.getDnsTtl();
+                m_refreshAt = now + (long) (ttl * REFRESH_POINT);
+                scheduleRefresh(ttl);
+                return resolved;
+            } catch (final DNSSECException e) {
+                LOG.warn("DNSSEC verification error for " + m_key, e);
+                // Never keep using an address that no longer verifies.
+                m_resolved = null;
+                m_all = null;
+                m_dnsSecFailure = true;
+            } catch (final IOException e) {
+                LOG.debug("Could not resolve {}", m_key, e);
+            }
+            m_refreshAt = now + StunClientConfig.getDnsNegativeTtl();
+            final InetSocketAddress last = m_resolved;
+            return last == null ? m_unresolved : last;
+        }
+
+        /**
+         * Strips the host name, so the address is used as is rather than
+         * looked up by name again.
+         */
+        private InetSocketAddress literal(final InetAddress address) 
+            throws UnknownHostException {
+            return new InetSocketAddress(
+                InetAddress.getByAddress(address.getAddress()),
+                m_unresolved.getPort());
+        }
+
+        private synchronized void scheduleRefresh(final long ttl) {
+            cancelRefresh();
+            final long delay = Math.max(0L, m_refreshAt -
+                System.currentTimeMillis());
+            m_refresh = StunTransactionTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Stop refreshing names nobody's asked for in a while.
+                    if (System.currentTimeMillis() - m_lastUsed > ttl) {
+                        LOG.debug("Dropping unused entry for {}", m_key);
+                        ENTRIES.remove(m_key, Entry.this);
+                        return;
+                    }
+                    resolve();
+                }
+            }, delay);
+        }
+
+        private synchronized void cancelRefresh() {
+            if (m_refresh != null) {
+                m_refresh.cancel(false);
+                m_refresh = null;
+            }
+        }
+    }
+}
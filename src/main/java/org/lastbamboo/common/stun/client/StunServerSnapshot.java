@@ -0,0 +1,363 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves what we've learned about our STUN servers to a file and restores it
+ * on startup, so a restarted process goes straight to servers it already
+ * knows are good instead of paying timeouts on dead ones all over again.
+ * For each server we keep its latency, loss rate, last failure, RTT
+ * estimate and the address it last resolved to.
+ * <p>
+ * The file is a small versioned binary format that's written to a
+ * temporary file and moved into place, so readers never see a partial
+ * write.  Files from other versions, corrupt files and snapshots older
+ * than a day are ignored.
+ */
+public final class StunServerSnapshot {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunServerSnapshot.class);
+
+    /**
+     * "STSS" in ASCII, so we don't try to read some other file.
+     */
+    private static final int MAGIC = 0x53545353;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Snapshots older than this are more likely to mislead us than help.
+     */
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final Executor EXECUTOR = StunExecutors.switchable(
+        StunExecutors.newBlockingExecutor("STUN-Snapshot"));
+
+    private static final Object LOCK = new Object();
+
+    private static File s_file;
+
+    private static ScheduledFuture<?> s_timer;
+
+    private static Thread s_shutdownHook;
+
+    /**
+     * Bumped each time we're enabled or disabled, so saves scheduled 
+     * before then know to stop.
+     */
+    private static int s_generation;
+
+    private StunServerSnapshot() {}
+
+    /**
+     * Restores state from the specified file if it exists, then saves to
+     * it periodically and when the JVM exits.  This should be called at
+     * startup before creating any clients.
+     *
+     * @param file The file to use.
+     * @param interval How often to save in milliseconds.
+     */
+    public static void enable(final File file, final long interval) {
+        load(file);
+        synchronized (LOCK) {
+            disable();
+            s_file = file;
+            schedule(Math.max(1000L, interval), s_generation);
+            s_shutdownHook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    saveQuietly(file);
+                }
+            }, "STUN-Snapshot-Shutdown");
+            Runtime.getRuntime().addShutdownHook(s_shutdownHook);
+        }
+    }
+
+    /**
+     * Stops saving state.
+     */
+    public static void disable() {
+        synchronized (LOCK) {
+            s_generation++;
+            if (s_timer != null) {
+                s_timer.cancel(false);
+                s_timer = null;
+            }
+            if (s_shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(s_shutdownHook);
+                } catch (final IllegalStateException e) {
+                    // We're already shutting down.
+                }
+                s_shutdownHook = null;
+            }
+            s_file = null;
+        }
+    }
+
+    /**
+     * Saves what we know about every server to the specified file.
+     *
+     * @param file The file to save to.
+     * @return The number of servers saved.
+     * @throws IOException If we can't write the file.
+     */
+    public static int save(final File file) throws IOException {
+        final Collection<RankedStunServer> servers = RankedStunServer.getAll();
+        final long now = System.currentTimeMillis();
+        final File parent = file.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        int saved = 0;
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeLong(now);
+                out.writeInt(servers.size());
+                for (final RankedStunServer server : servers) {
+                    write(out, server);
+                    saved++;
+                }
+            } finally {
+                out.close();
+            }
+            move(temp, file);
+        } finally {
+            temp.delete();
+        }
+        LOG.debug("Saved {} STUN servers to {}", saved, file);
+        return saved;
+    }
+
+    /**
+     * Restores what we knew about our servers from the specified file.
+     * Servers we've already learned about in this run keep what we've
+     * learned.
+     *
+     * @param file The file to load.
+     * @return The number of servers restored.
+     */
+    public static int load(final File file) {
+        try {
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return read(in, file);
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) {
+            LOG.debug("No STUN snapshot at {}", file);
+        } catch (final EOFException e) {
+            LOG.warn("Truncated STUN snapshot at {}", file);
+        } catch (final IOException e) {
+            LOG.warn("Could not read STUN snapshot at " + file, e);
+        }
+        return 0;
+    }
+
+    private static void write(final DataOutputStream out,
+        final RankedStunServer server) throws IOException {
+        final InetSocketAddress given = server.getGivenAddress();
+        out.writeUTF(given.getHostString());
+        out.writeShort(given.getPort());
+        writeAddress(out, given);
+        out.writeDouble(server.getLatency());
+        out.writeInt(server.getSamples());
+        out.writeDouble(server.getLossRate());
+        out.writeLong(server.getLastFailure());
+        final InetSocketAddress resolved = server.getAddress();
+        writeAddress(out, resolved);
+        if (resolved.isUnresolved()) {
+            return;
+        }
+        final RttEstimator rtt = server.getRttEstimator();
+        out.writeDouble(rtt.getSmoothedRtt());
+        out.writeDouble(rtt.getRttVariance());
+        out.writeLong(rtt.getRto());
+        out.writeInt(rtt.getSamples());
+    }
+
+    private static int read(final DataInputStream in, final File file)
+        throws IOException {
+        if (in.readInt() != MAGIC) {
+            LOG.warn("Not a STUN snapshot: {}", file);
+            return 0;
+        }
+        final int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            LOG.info("Ignoring version {} STUN snapshot", version);
+            return 0;
+        }
+        final long savedAt = in.readLong();
+        final long age = System.currentTimeMillis() - savedAt;
+        if (age > MAX_AGE || age < 0L) {
+            LOG.debug("Ignoring STUN snapshot from {}ms ago", age);
+            return 0;
+        }
+        // We read everything before restoring anything, so a corrupt file
+        // doesn't leave us half restored.
+        final int count = in.readInt();
+        final List<Saved> saved = new ArrayList<Saved>();
+        for (int i = 0; i < count; i++) {
+            saved.add(readServer(in));
+        }
+        int restored = 0;
+        for (final Saved server : saved) {
+            if (server.m_resolved != null) {
+                StunServerResolver.seed(server.m_given, server.m_resolved);
+            }
+            final RankedStunServer rss;
+            try {
+                rss = RankedStunServer.forAddress(server.m_given);
+            } catch (final DNSSECException e) {
+                continue;
+            }
+            if (rss.restore(server.m_latency, server.m_samples,
+                server.m_lossRate, savedAt, server.m_lastFailure)) {
+                restored++;
+                if (server.m_resolved != null && server.m_rttSamples > 0) {
+                    RttEstimator.forServer(server.m_resolved).restore(
+                        server.m_srtt, server.m_rttvar, server.m_rto,
+                        server.m_rttSamples);
+                }
+            }
+        }
+        LOG.debug("Restored {} STUN servers from {}", restored, file);
+        return restored;
+    }
+
+    private static Saved readServer(final DataInputStream in)
+        throws IOException {
+        final Saved saved = new Saved();
+        final String host = in.readUTF();
+        final int port = in.readUnsignedShort();
+        final InetAddress givenIp = readAddress(in, host);
+
+        // Servers are keyed by their address as given, so we recreate it
+        // exactly, without touching DNS.
+        saved.m_given = givenIp == null ?
+            InetSocketAddress.createUnresolved(host, port) :
+            new InetSocketAddress(givenIp, port);
+        saved.m_latency = in.readDouble();
+        saved.m_samples = in.readInt();
+        saved.m_lossRate = in.readDouble();
+        saved.m_lastFailure = in.readLong();
+        final InetAddress resolvedIp = readAddress(in, host);
+        if (resolvedIp != null) {
+            saved.m_resolved = new InetSocketAddress(resolvedIp, port);
+            saved.m_srtt = in.readDouble();
+            saved.m_rttvar = in.readDouble();
+            saved.m_rto = in.readLong();
+            saved.m_rttSamples = in.readInt();
+        }
+        return saved;
+    }
+
+    /**
+     * Writes the IP of an address as a length followed by the raw bytes,
+     * with a length of zero for unresolved addresses.
+     */
+    private static void writeAddress(final DataOutputStream out,
+        final InetSocketAddress address) throws IOException {
+        if (address.isUnresolved()) {
+            out.writeByte(0);
+            return;
+        }
+        final byte[] ip = address.getAddress().getAddress();
+        out.writeByte(ip.length);
+        out.write(ip);
+    }
+
+    private static InetAddress readAddress(final DataInputStream in,
+        final String host) throws IOException {
+        final int length = in.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        final byte[] ip = new byte[length];
+        in.readFully(ip);
+        return InetAddress.getByAddress(host, ip);
+    }
+
+    private static void move(final File from, final File to)
+        throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void schedule(final long interval, 
+        final int generation) {
+        s_timer = StunTransactionTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Keep file I/O off the timer thread.
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (LOCK) {
+                            if (s_generation != generation) {
+                                return;
+                            }
+                            saveQuietly(s_file);
+                            schedule(interval, generation);
+                        }
+                    }
+                });
+            }
+        }, interval);
+    }
+
+    private static void saveQuietly(final File file) {
+        try {
+            save(file);
+        } catch (final IOException e) {
+            LOG.warn("Could not save STUN snapshot to " + file, e);
+        }
+    }
+
+    private static final class Saved {
+        private InetSocketAddress m_given;
+        private double m_latency;
+        private int m_samples;
+        private double m_lossRate;
+        private long m_lastFailure;
+        private InetSocketAddress m_resolved;
+        private double m_srtt;
+        private double m_rttvar;
+        private long m_rto;
+        private int m_rttSamples;
+    }
+}
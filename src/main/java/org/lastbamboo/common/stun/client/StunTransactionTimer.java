@@ -0,0 +1,41 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single timer shared by all STUN clients for driving retransmissions and
+ * transaction timeouts.  This allows us to have thousands of outstanding
+ * transactions without parking a thread for each one.
+ */
+final class StunTransactionTimer {
+
+    private static final ScheduledExecutorService TIMER = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runner) {
+                final Thread thread = 
+                    new Thread(runner, "STUN-Transaction-Timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    
+    private StunTransactionTimer() {}
+
+    /**
+     * Schedules the specified task to run after the given delay.  Tasks
+     * should never block, as they all share the same thread.
+     * 
+     * @param task The task to run.
+     * @param delayMillis The delay in milliseconds.
+     * @return The future for cancelling the task.
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, 
+        final long delayMillis) {
+        return TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,99 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which STUN servers we can reach over UDP, so clients with a 
+ * TCP fallback go straight to TCP for servers UDP doesn't get through to 
+ * rather than waiting out a UDP timeout every time.  We try UDP again 
+ * after a while in case we've moved to a friendlier network.
+ */
+final class StunTransportSelector {
+
+    /**
+     * The number of times in a row UDP has to time out on a server that 
+     * answers over TCP before we stop trying UDP first.
+     */
+    private static final int UDP_FAILURES = 2;
+
+    /**
+     * How long we stick with TCP before giving UDP another chance.
+     */
+    private static final long UDP_RETRY = 5 * 60 * 1000L;
+
+    private static final int MAX_SERVERS = 1024;
+
+    private static final Map<InetSocketAddress, Reachability> SERVERS =
+        new LinkedHashMap<InetSocketAddress, Reachability>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<InetSocketAddress, Reachability> eldest) {
+                return size() > MAX_SERVERS;
+            }
+        };
+
+    private StunTransportSelector() {}
+
+    /**
+     * Returns whether we should skip UDP and go straight to TCP for the 
+     * specified server.
+     * 
+     * @param server The server.
+     * @return <code>true</code> if we should use TCP.
+     */
+    static boolean useTcp(final InetSocketAddress server) {
+        synchronized (SERVERS) {
+            final Reachability reachability = SERVERS.get(server);
+            return reachability != null && 
+                reachability.m_udpFailures >= UDP_FAILURES &&
+                System.currentTimeMillis() - reachability.m_lastUdpFailure < 
+                UDP_RETRY;
+        }
+    }
+
+    /**
+     * Records that the server answered over UDP.
+     * 
+     * @param server The server.
+     */
+    static void onUdpSuccess(final InetSocketAddress server) {
+        synchronized (SERVERS) {
+            SERVERS.remove(server);
+        }
+    }
+
+    /**
+     * Records that the server answered over TCP but UDP timed out.
+     * 
+     * @param server The server.
+     */
+    static void onUdpFailure(final InetSocketAddress server) {
+        synchronized (SERVERS) {
+            Reachability reachability = SERVERS.get(server);
+            if (reachability == null) {
+                reachability = new Reachability();
+                SERVERS.put(server, reachability);
+            }
+            reachability.m_udpFailures++;
+            reachability.m_lastUdpFailure = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forgets everything we've learned.
+     */
+    static void clear() {
+        synchronized (SERVERS) {
+            SERVERS.clear();
+        }
+    }
+
+    private static final class Reachability {
+        private int m_udpFailures;
+        private long m_lastUdpFailure;
+    }
+}
@@ -0,0 +1,516 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.RuntimeIOException;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketConnector;
+import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * STUN client that talks to servers over TCP, as in RFC 5389 section 7.2.2.
+ * We keep a single persistent connection to each server and pipeline any
+ * number of transactions over it, matching responses to requests by
+ * transaction ID, so after the first connection each request costs a
+ * single round trip.  If we can't connect to a server we back off
+ * exponentially before trying it again.
+ * <p>
+ * This is mostly useful on networks that block UDP.  Note the mapped
+ * address a server reports is for our TCP connection, so only its IP
+ * address says anything about our UDP mappings.
+ */
+public class TcpStunClient implements StunClient {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TcpStunClient.class);
+
+    private static final String CONNECTION = "connection";
+
+    /**
+     * Runs the I/O workers for every client's connector.  Each worker only
+     * runs while its connector has connections, so sharing this means 
+     * closed clients don't leave thread pools behind.
+     */
+    private static final Executor CONNECTOR_EXECUTOR = 
+        StunExecutors.switchable(
+            StunExecutors.newBlockingExecutor("TCP-STUN-Connector"));
+
+    private final StunServerRanking m_ranking;
+
+    private final boolean m_followRepository;
+
+    private volatile long m_repositoryVersion;
+
+    private final SocketConnector m_connector;
+
+    private final ConcurrentMap<InetSocketAddress, TcpConnection>
+        m_connections =
+        new ConcurrentHashMap<InetSocketAddress, TcpConnection>();
+
+    private final ConcurrentMap<TransactionKey, CompletableFuture<StunMessage>>
+        m_transactions = new ConcurrentHashMap<TransactionKey,
+            CompletableFuture<StunMessage>>();
+
+    private volatile InetSocketAddress m_localAddress;
+
+    /**
+     * Creates a new TCP STUN client for the specified servers.
+     *
+     * @param stunServers The STUN servers to use.
+     */
+    public TcpStunClient(final InetSocketAddress... stunServers) {
+        this(Arrays.asList(stunServers));
+    }
+
+    /**
+     * Creates a new TCP STUN client for the specified servers.
+     *
+     * @param stunServers The STUN servers to use.
+     */
+    public TcpStunClient(final Collection<InetSocketAddress> stunServers) {
+        this(stunServers, false);
+    }
+
+    /**
+     * Creates a new TCP STUN client that uses the servers in the 
+     * {@link StunServerRepository}, picking up any changes to them without
+     * being recreated.
+     * 
+     * @return The new client.
+     */
+    public static TcpStunClient forRepository() {
+        return new TcpStunClient(StunServerRepository.getServers(), true);
+    }
+
+    private TcpStunClient(final Collection<InetSocketAddress> stunServers,
+        final boolean followRepository) {
+        this.m_followRepository = followRepository;
+        this.m_repositoryVersion = StunServerRepository.getVersion();
+        this.m_ranking = new StunServerRanking(rank(stunServers));
+        this.m_connector = new SocketConnector(1, CONNECTOR_EXECUTOR);
+        final SocketConnectorConfig cfg = m_connector.getDefaultConfig();
+        cfg.setThreadModel(StunExecutors.threadModel(getClass()
+            .getSimpleName()));
+        cfg.getSessionConfig().setTcpNoDelay(true);
+        m_connector.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+    }
+
+    public void connect() throws IOException {
+        refreshServers();
+        final RankedStunServer server = m_ranking.pick(
+            new HashSet<RankedStunServer>());
+        if (server == null) {
+            throw new IOException("No STUN servers");
+        }
+        final CompletableFuture<IoSession> session =
+            connection(server.getAddress()).session();
+        try {
+            session.get(StunClientConfig.getTcpTimeout(),
+                TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            session.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted connecting");
+        } catch (final ExecutionException e) {
+            server.onFailure();
+            throw new IOException("Could not connect to " + server,
+                e.getCause());
+        } catch (final TimeoutException e) {
+            server.onFailure();
+            throw new IOException("Timed out connecting to " + server);
+        }
+    }
+
+    public InetSocketAddress getHostAddress() {
+        return m_localAddress;
+    }
+
+    public InetSocketAddress getServerReflexiveAddress() throws IOException {
+        refreshServers();
+        final Collection<RankedStunServer> tried =
+            new HashSet<RankedStunServer>();
+        for (int i = 0; i < m_ranking.size(); i++) {
+            final RankedStunServer server = m_ranking.pick(tried);
+            if (server == null) {
+                // Our servers were swapped while we were trying them.
+                break;
+            }
+            tried.add(server);
+            server.onAttempt();
+            final long start = System.nanoTime();
+            final InetSocketAddress isa =
+                write(new BindingRequest(), server.getAddress()).accept(
+                    UdpStunClient.MAPPED_ADDRESS_VISITOR);
+            if (isa == null) {
+                server.onFailure();
+                continue;
+            }
+            server.onSuccess(TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start));
+            return isa;
+        }
+        throw new IOException("Could not get server reflexive address!");
+    }
+
+    public InetAddress getStunServerAddress() {
+        refreshServers();
+        final List<RankedStunServer> ranked = m_ranking.getRanked();
+        if (ranked.isEmpty()) {
+            return null;
+        }
+        return ranked.get(0).getAddress().getAddress();
+    }
+
+    public InetSocketAddress getRelayAddress() {
+        return null;
+    }
+
+    public void close() {
+        for (final TcpConnection connection : m_connections.values()) {
+            connection.close();
+        }
+        m_connections.clear();
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress) throws IOException {
+        return StunClientSupport.await(writeAsync(request, remoteAddress));
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long rto)
+        throws IOException {
+        return StunClientSupport.await(
+            writeAsync(request, remoteAddress, rto));
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long timeout,
+        final TimeUnit unit) throws IOException {
+        return StunClientSupport.await(
+            writeAsync(request, remoteAddress, timeout, unit));
+    }
+
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress) {
+        return writeAsync(request, remoteAddress,
+            StunClientConfig.getTcpTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a binding request.  TCP takes care of retransmissions itself,
+     * so the RTO is ignored.
+     */
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long rto) {
+        return writeAsync(request, remoteAddress);
+    }
+
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long timeout, final TimeUnit unit) {
+        final CompletableFuture<StunMessage> future =
+            new CompletableFuture<StunMessage>();
+        final InetSocketAddress resolved =
+            StunServerResolver.getResolved(remoteAddress);
+        if (resolved.isUnresolved()) {
+            LOG.debug("Could not resolve: {}", remoteAddress);
+            future.complete(new NullStunMessage());
+            return future;
+        }
+        final TcpConnection connection = connection(resolved);
+        final TransactionKey id = TransactionKey.forMessage(request);
+        m_transactions.put(id, future);
+        connection.m_pending.add(future);
+        final ScheduledFuture<?> deadline = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                if (future.complete(new NullStunMessage())) {
+                    LOG.debug("No TCP response from {}", resolved);
+                }
+            }
+        }, unit.toMillis(timeout));
+        future.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                deadline.cancel(false);
+                m_transactions.remove(id, future);
+                connection.m_pending.remove(future);
+            }
+        });
+        connection.session().whenComplete(
+            new BiConsumer<IoSession, Throwable>() {
+            @Override
+            public void accept(final IoSession session, final Throwable t) {
+                if (t != null) {
+                    LOG.debug("Could not connect to {}", resolved, t);
+                    future.complete(new NullStunMessage());
+                } else if (!future.isDone()) {
+                    // Requests simply queue up behind each other on the
+                    // connection, so we never wait for earlier responses.
+                    session.write(request);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes a batch of binding requests.  These all go out at once over
+     * each server's connection, as TCP does its own congestion control.
+     */
+    public List<CompletableFuture<StunMessage>> writeBatch(
+        final Collection<BindingCheck> checks) {
+        return writeBatch(checks, 0L);
+    }
+
+    public List<CompletableFuture<StunMessage>> writeBatch(
+        final Collection<BindingCheck> checks, final long pacing) {
+        final List<CompletableFuture<StunMessage>> results =
+            new ArrayList<CompletableFuture<StunMessage>>(checks.size());
+        for (final BindingCheck check : checks) {
+            results.add(writeAsync(check.getRequest(),
+                check.getRemoteAddress()));
+        }
+        return results;
+    }
+
+    public void addIoServiceListener(final IoServiceListener listener) {
+        m_connector.addListener(listener);
+    }
+
+    /**
+     * Returns the number of transactions this client is waiting on.
+     *
+     * @return The number of outstanding transactions.
+     */
+    public int getPendingTransactions() {
+        return m_transactions.size();
+    }
+
+    /**
+     * Picks up any changes to the servers in the repository if we're 
+     * following it.  This is just a volatile read when nothing's changed.
+     */
+    private void refreshServers() {
+        if (!this.m_followRepository) {
+            return;
+        }
+        final long version = StunServerRepository.getVersion();
+        if (version == this.m_repositoryVersion) {
+            return;
+        }
+        this.m_repositoryVersion = version;
+        LOG.debug("STUN servers changed");
+        this.m_ranking.setServers(rank(StunServerRepository.getServers()));
+    }
+
+    private static Collection<RankedStunServer> rank(
+        final Collection<InetSocketAddress> stunServers) {
+        StunServerResolver.prewarm(stunServers);
+        final Collection<RankedStunServer> servers =
+            new ArrayList<RankedStunServer>(stunServers.size());
+        for (final InetSocketAddress isa : stunServers) {
+            try {
+                servers.add(RankedStunServer.forAddress(isa));
+            } catch (final DNSSECException e) {
+                LOG.warn("DNSSEC verification error!!", e);
+            }
+        }
+        return servers;
+    }
+
+    private TcpConnection connection(final InetSocketAddress server) {
+        final TcpConnection existing = m_connections.get(server);
+        if (existing != null) {
+            return existing;
+        }
+        final TcpConnection connection = new TcpConnection(server);
+        final TcpConnection raced =
+            m_connections.putIfAbsent(server, connection);
+        return raced == null ? connection : raced;
+    }
+
+    private final IoHandlerAdapter m_handler = new IoHandlerAdapter() {
+        @Override
+        public void messageReceived(final IoSession session,
+            final Object message) {
+            final StunMessage response = (StunMessage) message;
+            final CompletableFuture<StunMessage> future =
+                m_transactions.get(TransactionKey.forMessage(response));
+            if (future == null) {
+                LOG.debug("No transaction for {}", response);
+                return;
+            }
+            future.complete(response);
+        }
+
+        @Override
+        public void sessionClosed(final IoSession session) {
+            final TcpConnection connection =
+                (TcpConnection) session.getAttribute(CONNECTION);
+            if (connection != null) {
+                connection.onClosed(session);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final IoSession session,
+            final Throwable cause) {
+            LOG.debug("Error on TCP STUN connection", cause);
+            session.close();
+        }
+    };
+
+    /**
+     * A persistent connection to a single server, reconnecting with
+     * exponential backoff when it drops.
+     */
+    private final class TcpConnection {
+
+        private static final long MIN_BACKOFF = 500L;
+
+        private static final long MAX_BACKOFF = 30 * 1000L;
+
+        private final InetSocketAddress m_server;
+
+        private final Set<CompletableFuture<StunMessage>> m_pending =
+            ConcurrentHashMap.newKeySet();
+
+        private IoSession m_session;
+
+        private CompletableFuture<IoSession> m_connecting;
+
+        private long m_backoff;
+
+        private long m_retryAt;
+
+        private TcpConnection(final InetSocketAddress server) {
+            this.m_server = server;
+        }
+
+        /**
+         * Returns the connected session, connecting if we need to.
+         */
+        private synchronized CompletableFuture<IoSession> session() {
+            if (m_session != null && m_session.isConnected()) {
+                return CompletableFuture.completedFuture(m_session);
+            }
+            if (m_connecting != null) {
+                return m_connecting;
+            }
+            final CompletableFuture<IoSession> connecting =
+                new CompletableFuture<IoSession>();
+            final long now = System.currentTimeMillis();
+            if (now < m_retryAt) {
+                connecting.completeExceptionally(new IOException(
+                    "Backing off reconnecting to " + m_server));
+                return connecting;
+            }
+            m_connecting = connecting;
+            LOG.debug("Connecting to {}", m_server);
+            final ConnectFuture cf = m_connector.connect(m_server, m_handler);
+            cf.addListener(new IoFutureListener() {
+                @Override
+                public void operationComplete(final IoFuture future) {
+                    onConnect(cf, connecting);
+                }
+            });
+            return connecting;
+        }
+
+        private void onConnect(final ConnectFuture cf,
+            final CompletableFuture<IoSession> connecting) {
+            IoSession session = null;
+            Throwable failure = null;
+            try {
+                session = cf.getSession();
+            } catch (final RuntimeIOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                m_connecting = null;
+                if (session != null && session.isConnected()) {
+                    session.setAttribute(CONNECTION, this);
+                    m_session = session;
+                    m_localAddress =
+                        (InetSocketAddress) session.getLocalAddress();
+                    m_backoff = 0L;
+                } else {
+                    m_backoff = m_backoff == 0L ?
+                        MIN_BACKOFF : Math.min(MAX_BACKOFF, m_backoff * 2);
+                    m_retryAt = System.currentTimeMillis() + m_backoff;
+                    LOG.debug("Could not connect to {}, retrying in {}ms",
+                        m_server, m_backoff);
+                }
+            }
+            if (session != null && session.isConnected()) {
+                connecting.complete(session);
+            } else {
+                connecting.completeExceptionally(failure != null ? failure :
+                    new IOException("Could not connect to " + m_server));
+            }
+        }
+
+        /**
+         * Fails every transaction waiting on the connection, as we'll
+         * never get responses for them now.
+         */
+        private void onClosed(final IoSession session) {
+            synchronized (this) {
+                if (m_session != session) {
+                    return;
+                }
+                m_session = null;
+            }
+            LOG.debug("Connection to {} closed", m_server);
+            for (final CompletableFuture<StunMessage> future : m_pending) {
+                future.complete(new NullStunMessage());
+            }
+        }
+
+        private void close() {
+            final IoSession session;
+            synchronized (this) {
+                session = m_session;
+            }
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+}
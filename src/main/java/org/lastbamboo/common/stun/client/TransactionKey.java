@@ -0,0 +1,99 @@
+package org.lastbamboo.common.stun.client;
+
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Compact key for looking up transactions by STUN transaction ID.  This 
+ * packs the 32-bit magic cookie and the 96-bit transaction ID into two 
+ * longs, so it's much cheaper to hash, compare and hold on to than the 
+ * commons-id <code>UUID</code> the messages themselves use.
+ * <p>
+ * Keys stored in maps never change.  The receive path reuses a mutable
+ * per-thread key purely for lookups, so matching a response against its 
+ * transaction doesn't allocate.
+ */
+final class TransactionKey {
+
+    private long m_high;
+
+    private long m_low;
+
+    /**
+     * Creates a key for use as a reusable lookup probe with 
+     * {@link #set(long, long)}.
+     */
+    TransactionKey() {
+    }
+
+    TransactionKey(final long high, final long low) {
+        this.m_high = high;
+        this.m_low = low;
+    }
+
+    /**
+     * Changes this key.  This must only ever be called on lookup probes, 
+     * never on keys stored in a map.
+     *
+     * @param high The first eight bytes of the transaction ID.
+     * @param low The last eight bytes of the transaction ID.
+     * @return This key.
+     */
+    TransactionKey set(final long high, final long low) {
+        this.m_high = high;
+        this.m_low = low;
+        return this;
+    }
+
+    /**
+     * Creates the key for the specified message's transaction ID.
+     *
+     * @param message The message.
+     * @return The key for the message's transaction.
+     */
+    static TransactionKey forMessage(final StunMessage message) {
+        return forBytes(message.getTransactionId().getRawBytes());
+    }
+
+    /**
+     * Creates a key from the raw bytes of a transaction ID, including the
+     * magic cookie.
+     *
+     * @param id The raw transaction ID.
+     * @return The key.
+     */
+    static TransactionKey forBytes(final byte[] id) {
+        long high = 0L;
+        long low = 0L;
+        for (int i = 0; i < 8 && i < id.length; i++) {
+            high = (high << 8) | (id[i] & 0xff);
+        }
+        for (int i = 8; i < 16 && i < id.length; i++) {
+            low = (low << 8) | (id[i] & 0xff);
+        }
+        return new TransactionKey(high, low);
+    }
+
+    @Override
+    public int hashCode() {
+        // The low bits are all random transaction ID, while the high bits
+        // are mostly the fixed magic cookie.
+        return (int) (m_low ^ (m_low >>> 32) ^ m_high);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TransactionKey)) {
+            return false;
+        }
+        final TransactionKey other = (TransactionKey) obj;
+        return m_high == other.m_high && m_low == other.m_low;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", m_high, m_low);
+    }
+}
@@ -6,22 +6,26 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import org.apache.commons.id.uuid.UUID;
 import org.littleshoot.dnssec4j.DNSSECException;
-import org.littleshoot.dnssec4j.DnsSec;
-import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.ConnectFuture;
-import org.littleshoot.mina.common.ExecutorThreadModel;
 import org.littleshoot.mina.common.IoConnector;
 import org.littleshoot.mina.common.IoHandler;
 import org.littleshoot.mina.common.IoServiceListener;
 import org.littleshoot.mina.common.IoSession;
-import org.littleshoot.mina.common.SimpleByteBufferAllocator;
 import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
 import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
 import org.littleshoot.mina.transport.socket.nio.DatagramConnector;
@@ -39,7 +43,6 @@ import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
 import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
 import org.littleshoot.stun.stack.transaction.StunTransactionListener;
 import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
-import org.littleshoot.stun.stack.transaction.StunTransactionTrackerImpl;
 import org.littleshoot.util.CandidateProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,33 +54,91 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
 
     private static final Logger LOG = 
         LoggerFactory.getLogger(UdpStunClient.class);
-    
-    private final Collection<IoServiceListener> m_ioServiceListeners =
-        new ArrayList<IoServiceListener>();
 
-    private RankedStunServer m_stunServer;
+    /**
+     * Visitor that extracts the mapped address from binding responses.
+     */
+    static final StunMessageVisitor<InetSocketAddress> 
+        MAPPED_ADDRESS_VISITOR = 
+        new StunMessageVisitorAdapter<InetSocketAddress>() {
+        @Override
+        public InetSocketAddress visitBindingSuccessResponse(
+                final BindingSuccessResponse response) {
+            return response.getMappedAddress();
+        }
+
+        @Override
+        public InetSocketAddress visitBindingErrorResponse(
+                final BindingErrorResponse response) {
+            LOG.warn("Received Binding Error Response: " + response);
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress visitConnectErrorMesssage(
+                final ConnectErrorStunMessage error) {
+            LOG.warn("Received ICMP error: {}", error);
+            return null;
+        }
+    };
+    
+    private volatile RankedStunServer m_stunServer;
     
     private final IoHandler m_ioHandler;
 
-    private final Map<UUID, StunMessage> m_idsToResponses =
-        new ConcurrentHashMap<UUID, StunMessage>();
+    private final Map<TransactionKey, UdpStunTransaction> m_transactions =
+        new ConcurrentHashMap<TransactionKey, UdpStunTransaction>();
+
+    /**
+     * Plain binding transactions in flight that later identical requests
+     * to the same server can share, keyed by server.
+     */
+    private final ConcurrentMap<InetSocketAddress, CoalescedRequest> 
+        m_coalesced = 
+        new ConcurrentHashMap<InetSocketAddress, CoalescedRequest>();
 
     private InetSocketAddress m_localAddress;
 
     /**
-     * Just keeps track of the current connection 5-tuple so we don't try
-     * to connect to the host we're already connected to.
+     * The transport shared with other clients, or <code>null</code> if this
+     * client uses its own connector.
+     */
+    private final SharedUdpStunTransport m_transport;
+
+    /**
+     * The connector we use for all sessions when we're not using a shared
+     * transport.
      */
-    private IoSession m_currentIoSession;
+    private final IoConnector m_connector;
+
+    /**
+     * Keeps track of the sessions we've already connected with each remote
+     * host so we don't try to connect to a 5-tuple we're already using.
+     */
+    private final Map<InetSocketAddress, IoSession> m_sessions = 
+        new ConcurrentHashMap<InetSocketAddress, IoSession>();
 
     private final StunTransactionTracker<StunMessage> m_transactionTracker;
 
     private final InetSocketAddress m_originalLocalAddress;
 
-    private final Collection<IoSession> m_sessions = new ArrayList<IoSession>();
+    private final StunServerRanking m_ranking;
 
-    private final Queue<RankedStunServer> m_stunServers = 
-        new PriorityQueue<UdpStunClient.RankedStunServer>();
+    /**
+     * The client to fall back to for servers we can't reach over UDP.
+     */
+    private volatile TcpStunClient m_tcpFallback;
+
+    /**
+     * Whether or not we track the servers in the 
+     * {@link StunServerRepository}.
+     */
+    private final boolean m_followRepository;
+
+    /**
+     * The version of the repository our servers came from.
+     */
+    private volatile long m_repositoryVersion;
 
     /**
      * Creates a new STUN client for ICE processing.  This client is capable
@@ -133,6 +194,79 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
         this(null, stunServers, null, null);
     }
 
+    /**
+     * Creates a new STUN client that uses the servers in the 
+     * {@link StunServerRepository}, picking up any changes to them without
+     * being recreated.
+     * 
+     * @return The new client.
+     * @throws IOException If we can't get a STUN server address. 
+     */
+    public static UdpStunClient forRepository() throws IOException {
+        return new UdpStunClient(null, null, null, null, null, true);
+    }
+
+    /**
+     * Creates a new STUN client that sends through a transport shared with
+     * other clients and uses the servers in the 
+     * {@link StunServerRepository}, picking up any changes to them without
+     * being recreated.
+     * 
+     * @param transport The shared transport to send through.
+     * @return The new client.
+     * @throws IOException If we can't get a STUN server address. 
+     */
+    public static UdpStunClient forRepository(
+        final SharedUdpStunTransport transport) throws IOException {
+        return new UdpStunClient(null, null, transport.getTransactionTracker(),
+            null, transport, true);
+    }
+
+    /**
+     * Creates a new STUN client that sends through a transport shared with
+     * other clients.
+     * 
+     * @param transport The shared transport to send through.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address. 
+     */
+    public UdpStunClient(final SharedUdpStunTransport transport,
+        final InetSocketAddress... stunServers) throws IOException {
+        this(transport, Arrays.asList(stunServers));
+    }
+
+    /**
+     * Creates a new STUN client that sends through a transport shared with
+     * other clients.
+     * 
+     * @param transport The shared transport to send through.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address. 
+     */
+    public UdpStunClient(final SharedUdpStunTransport transport,
+        final Collection<InetSocketAddress> stunServers) throws IOException {
+        this(null, stunServers, transport.getTransactionTracker(), null, 
+            transport);
+    }
+
+    /**
+     * Creates a new STUN client that sends from a specific local address
+     * through a transport shared with other clients.  This is how we 
+     * discover the server reflexive address of each interface on 
+     * multi-homed hosts.
+     * 
+     * @param transport The shared transport to send through.
+     * @param localAddress The local address to send from.  Use port zero 
+     * for an ephemeral port.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address. 
+     */
+    public UdpStunClient(final SharedUdpStunTransport transport,
+        final InetSocketAddress localAddress,
+        final Collection<InetSocketAddress> stunServers) throws IOException {
+        this(localAddress, stunServers, transport.getTransactionTracker(), 
+            null, transport);
+    }
     
     /**
      * Creates a new STUN client that connects to the specified STUN server.
@@ -145,23 +279,42 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
             final Collection<InetSocketAddress> stunServers,
             final StunTransactionTracker<StunMessage> transactionTracker,
             final IoHandler ioHandler) throws IOException {
-        if (stunServers == null) {
+        this(localAddress, stunServers, transactionTracker, ioHandler, null);
+    }
+
+    private UdpStunClient(final InetSocketAddress localAddress,
+            final Collection<InetSocketAddress> stunServers,
+            final StunTransactionTracker<StunMessage> transactionTracker,
+            final IoHandler ioHandler, 
+            final SharedUdpStunTransport transport) throws IOException {
+        this(localAddress, stunServers, transactionTracker, ioHandler, 
+            transport, false);
+    }
+
+    private UdpStunClient(final InetSocketAddress localAddress,
+            final Collection<InetSocketAddress> stunServers,
+            final StunTransactionTracker<StunMessage> transactionTracker,
+            final IoHandler ioHandler, 
+            final SharedUdpStunTransport transport,
+            final boolean followRepository) throws IOException {
+        this.m_followRepository = followRepository;
+        final Collection<InetSocketAddress> serversToUse;
+        if (followRepository) {
+            // We read the version first so we can't miss an update.
+            this.m_repositoryVersion = StunServerRepository.getVersion();
+            serversToUse = StunServerRepository.getServers();
+        } else {
+            serversToUse = stunServers;
+        }
+        if (serversToUse == null) {
             LOG.error("Null STUN server provider");
             throw new NullPointerException("Null STUN server provider");
         }
-        LOG.info("Creating UDP STUN CLIENT");
-        for (final InetSocketAddress isa : stunServers) {
-            try {
-                this.m_stunServers.add(new RankedStunServer(isa));
-            } catch (final DNSSECException e) {
-                LOG.warn("DNSSEC verification error!!", e);
-            }
-        }
-        ByteBuffer.setUseDirectBuffers(false);
-        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        LOG.debug("Creating UDP STUN client");
+        this.m_ranking = new StunServerRanking(rank(serversToUse));
         m_originalLocalAddress = localAddress;
         if (transactionTracker == null) {
-            this.m_transactionTracker = new StunTransactionTrackerImpl();
+            this.m_transactionTracker = new ExpiringTransactionTracker();
         } else {
             this.m_transactionTracker = transactionTracker;
         }
@@ -176,13 +329,26 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
         } else {
             m_ioHandler = ioHandler;
         }
+        m_transport = transport;
+        if (transport == null) {
+            // We can only take the fast path for responses when we're 
+            // handling messages ourselves.
+            m_connector = createConnector(ioHandler == null);
+        } else {
+            m_connector = null;
+        }
     }
    
     @Override
     public void connect() throws IOException {
+        final InetSocketAddress server = m_stunServer.getAddress();
+        if (server.isUnresolved()) {
+            onFailure(m_stunServer);
+            throw new IOException("Could not resolve STUN server: " + server);
+        }
         IoSession session;
         try {
-            session = connect(m_originalLocalAddress, m_stunServer.isa);
+            session = connect(m_originalLocalAddress, server);
         } catch (final IOException e) {
             onFailure(m_stunServer);
             throw e;
@@ -194,49 +360,41 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
     }
 
     private void onFailure(final RankedStunServer rss) throws IOException {
-        // It needs to get placed again in the ranking.
-        if (m_stunServer.failures < 5) {
-            m_stunServer.failures++;
-            m_stunServers.remove(rss);
-            m_stunServers.add(rss);
-        }
-        this.m_stunServer = pickStunServerInetAddress();
+        rss.onFailure();
+        preferServer(pickStunServerInetAddress());
     }
-    
-    private void onSuccess(final RankedStunServer m_stunServer2) {
-        if (m_stunServer.successes < 5) {
-            this.m_stunServer.successes++;
+
+    /**
+     * Switches to the specified server for future requests, reporting the
+     * change if it's a different server.
+     * 
+     * @param server The server to use.
+     */
+    private void preferServer(final RankedStunServer server) {
+        final RankedStunServer previous = this.m_stunServer;
+        this.m_stunServer = server;
+        if (previous != null && previous != server) {
+            StunClientConfig.getMetrics().onRankingChanged(previous, server);
         }
     }
 
     private final IoSession connect(final InetSocketAddress localAddress,
             final InetSocketAddress stunServer) throws IOException {
+        if (this.m_transport != null) {
+            // The shared transport multiplexes all remote hosts over the 
+            // same socket.
+            return this.m_transport.getSession(localAddress, stunServer);
+        }
+        
         // We can't connect twice to the same 5-tuple, so check to verify we're
-        // not reconnecting to the remote host we're already connected to.
-        if (this.m_currentIoSession != null
-                && this.m_currentIoSession.getRemoteAddress().equals(
-                        stunServer)) {
-            return this.m_currentIoSession;
+        // not reconnecting to a remote host we're already connected to.
+        final IoSession existing = this.m_sessions.get(stunServer);
+        if (existing != null && existing.isConnected()) {
+            return existing;
         }
 
-        final ProtocolCodecFactory codecFactory = new StunProtocolCodecFactory();
-        final ProtocolCodecFilter stunFilter = new ProtocolCodecFilter(
-                codecFactory);
-
-        final IoConnector connector = createConnector();
-        connector.getFilterChain().addLast("stunFilter", stunFilter);
-
-        if (this.m_ioServiceListeners.isEmpty()) {
-            LOG.debug("No service listeners for: {}", getClass()
-                    .getSimpleName());
-        }
-        synchronized (this.m_ioServiceListeners) {
-            for (final IoServiceListener sl : this.m_ioServiceListeners) {
-                connector.addListener(sl);
-            }
-        }
         LOG.debug("Connecting to: {}", stunServer);
-        final ConnectFuture cf = connector.connect(stunServer,
+        final ConnectFuture cf = m_connector.connect(stunServer,
             localAddress, m_ioHandler);
         LOG.debug("About to join");
         cf.join();
@@ -246,8 +404,7 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
             throw new IOException("Could not get session with: "
                     + stunServer);
         }
-        this.m_sessions.add(session);
-        this.m_currentIoSession = session;
+        this.m_sessions.put(stunServer, session);
         return session;
     }
 
@@ -256,24 +413,7 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
     }
 
     public InetAddress getStunServerAddress() {
-        return this.m_stunServer.isa.getAddress();
-    }
-
-    protected void waitIfNoResponse(final StunMessage request,
-            final long waitTime) {
-        LOG.debug("Waiting " + waitTime + " milliseconds...");
-        if (waitTime == 0L)
-            return;
-        if (!m_idsToResponses.containsKey(request.getTransactionId())) {
-            try {
-                LOG.debug("Actually waiting...");
-                request.wait(waitTime);
-            } catch (final InterruptedException e) {
-                // This can happen if multiple STUN clients are started in
-                // a thread pool, for example.
-                LOG.info("Interrupt", e);
-            }
-        }
+        return this.m_stunServer.getAddress().getAddress();
     }
 
     public Object onTransactionFailed(final StunMessage request,
@@ -288,9 +428,10 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
 
     private Object notifyWaiters(final StunMessage request, 
         final StunMessage response) {
-        synchronized (request) {
-            this.m_idsToResponses.put(request.getTransactionId(), response);
-            request.notify();
+        final UdpStunTransaction transaction = 
+            this.m_transactions.remove(TransactionKey.forMessage(request));
+        if (transaction != null) {
+            transaction.complete(response);
         }
         return null;
     }
@@ -298,132 +439,598 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
     public final void addIoServiceListener(
             final IoServiceListener serviceListener) {
         LOG.debug("Adding service listener for: {}", this);
-        this.m_ioServiceListeners.add(serviceListener);
+        if (this.m_transport != null) {
+            this.m_transport.addIoServiceListener(serviceListener);
+        } else {
+            this.m_connector.addListener(serviceListener);
+        }
     }
 
     public void close() {
-        LOG.info("Closing sessions...");
-        synchronized (m_sessions) {
-            for (final IoSession session : m_sessions) {
-                LOG.info("Closing: {}", session);
-                session.close();
-            }
+        // Note we leave any shared transport open for other clients.
+        LOG.debug("Closing sessions...");
+        for (final IoSession session : m_sessions.values()) {
+            LOG.debug("Closing: {}", session);
+            session.close();
         }
+        m_sessions.clear();
     }
 
-    private IoConnector createConnector() {
+    private IoConnector createConnector(final boolean fastPath) {
         final DatagramConnector connector = new DatagramConnector();
         final DatagramConnectorConfig cfg = connector.getDefaultConfig();
         cfg.getSessionConfig().setReuseAddress(true);
-        cfg.setThreadModel(ExecutorThreadModel.getInstance(getClass()
+        cfg.setThreadModel(StunExecutors.threadModel(getClass()
                 .getSimpleName()));
+        
+        if (fastPath && 
+            this.m_transactionTracker instanceof ExpiringTransactionTracker) {
+            connector.getFilterChain().addLast("bindingFastPath", 
+                new BindingResponseFilter(
+                    (ExpiringTransactionTracker) this.m_transactionTracker));
+        }
+        final ProtocolCodecFactory codecFactory = new StunProtocolCodecFactory();
+        final ProtocolCodecFilter stunFilter = new ProtocolCodecFilter(
+                codecFactory);
+        connector.getFilterChain().addLast("stunFilter", stunFilter);
         return connector;
     }
 
     public InetSocketAddress getServerReflexiveAddress() throws IOException {
-        for (int i = 0; i < this.m_stunServers.size(); i++) {
-            LOG.info("Getting server reflexive address from: {}",
-                    this.m_stunServer);
-            final BindingRequest br = new BindingRequest();
-            final StunMessage message = write(br, this.m_stunServer.isa);
-            final StunMessageVisitor<InetSocketAddress> visitor = 
-                new StunMessageVisitorAdapter<InetSocketAddress>() {
+        refreshServers();
+        final int raceCount = StunClientConfig.getServerRaceCount();
+        if (raceCount > 1) {
+            return raceServerReflexiveAddress(raceCount, 
+                StunClientConfig.getServerRaceStagger());
+        }
+        final Collection<RankedStunServer> tried = 
+            new HashSet<RankedStunServer>();
+        for (int i = 0; i < this.m_ranking.size(); i++) {
+            final RankedStunServer server = this.m_ranking.pick(tried);
+            if (server == null) {
+                // Our servers were swapped while we were trying them.
+                break;
+            }
+            tried.add(server);
+            LOG.debug("Getting server reflexive address from: {}", server);
+            server.onAttempt();
+            final long start = System.nanoTime();
+            final StunMessage message = 
+                StunClientSupport.await(lookup(server.getAddress()));
+            final InetSocketAddress isa = 
+                message.accept(MAPPED_ADDRESS_VISITOR);
+            if (isa == null) {
+                onFailure(server);
+                continue;
+            }
+            server.onSuccess(elapsedMillis(start));
+            
+            // Always go back to the best server for the next request.
+            preferServer(pickStunServerInetAddress());
+            reprobeDemotedServer();
+            return isa;
+        }
+
+        // If we get here, all our attempts failed. Maybe the client's offline?
+        throw new IOException("Could not get server reflexive address!");
+    }
+
+    /**
+     * Looks up our server reflexive address by racing the best ranked 
+     * servers against each other, "happy eyeballs" style.  We start a 
+     * request to each of the top servers in turn, staggered by the given
+     * delay, and take the first mapped address we get back, cancelling
+     * the rest.  If all of them fail we move on to the next group.
+     * 
+     * @param raceCount The number of servers to race at a time.
+     * @param stagger The delay between starting each request.
+     * @return The server reflexive address.
+     * @throws IOException If we could not get a mapped address from any
+     * server.
+     */
+    private InetSocketAddress raceServerReflexiveAddress(final int raceCount,
+        final long stagger) throws IOException {
+        final List<RankedStunServer> ranked = this.m_ranking.getRanked();
+        for (int i = 0; i < ranked.size(); i += raceCount) {
+            final List<RankedStunServer> group = 
+                ranked.subList(i, Math.min(ranked.size(), i + raceCount));
+            final InetSocketAddress isa = race(group, stagger);
+            if (isa != null) {
+                reprobeDemotedServer();
+                return isa;
+            }
+        }
+
+        // If we get here, all our attempts failed. Maybe the client's offline?
+        throw new IOException("Could not get server reflexive address!");
+    }
+
+    /**
+     * Looks up our server reflexive address by sending binding requests to
+     * all of our servers at once and gathering the answers as they arrive.
+     * All requests go out over the same socket.  As soon as the given number
+     * of servers agree on our public IP address the returned future 
+     * completes and all outstanding transactions are cancelled, so nothing
+     * keeps retransmitting to slow or dead servers.
+     * 
+     * @param quorum The number of servers that must report the same public
+     * IP address before we accept it.
+     * @return A future for the server reflexive address.  This completes 
+     * with <code>null</code> if too few servers agreed.  Cancelling it 
+     * cancels all outstanding requests.
+     */
+    public CompletableFuture<InetSocketAddress> getServerReflexiveAddressAsync(
+        final int quorum) {
+        refreshServers();
+        return raceAsync(this.m_ranking.getRanked(), 0L, 
+            Math.min(Math.max(1, quorum), this.m_ranking.size()));
+    }
+
+    private InetSocketAddress race(final List<RankedStunServer> servers,
+        final long stagger) throws IOException {
+        return StunClientSupport.await(raceAsync(servers, stagger, 1));
+    }
+
+    private CompletableFuture<InetSocketAddress> raceAsync(
+        final List<RankedStunServer> servers, final long stagger,
+        final int quorum) {
+        LOG.debug("Racing servers: {}", servers);
+        final CompletableFuture<InetSocketAddress> winner = 
+            new CompletableFuture<InetSocketAddress>();
+        if (servers.isEmpty()) {
+            winner.complete(null);
+            return winner;
+        }
+        final Collection<CompletableFuture<StunMessage>> attempts = 
+            new ConcurrentLinkedQueue<CompletableFuture<StunMessage>>();
+        final ConcurrentMap<InetAddress, AtomicInteger> votes = 
+            new ConcurrentHashMap<InetAddress, AtomicInteger>();
+        final AtomicInteger remaining = new AtomicInteger(servers.size());
+        
+        // Stop retransmitting to all the losers as soon as we're done, 
+        // including when the caller cancels us.
+        winner.whenComplete(new BiConsumer<InetSocketAddress, Throwable>() {
+            @Override
+            public void accept(final InetSocketAddress isa, 
+                final Throwable t) {
+                for (final CompletableFuture<StunMessage> attempt : attempts) {
+                    attempt.cancel(false);
+                }
+            }
+        });
+        for (int i = 0; i < servers.size(); i++) {
+            final RankedStunServer server = servers.get(i);
+            final Runnable attempt = new Runnable() {
                 @Override
-                public InetSocketAddress visitBindingSuccessResponse(
-                        final BindingSuccessResponse response) {
-                    return response.getMappedAddress();
+                public void run() {
+                    if (winner.isDone()) {
+                        return;
+                    }
+                    startAttempt(server, winner, attempts, votes, quorum,
+                        remaining);
                 }
+            };
+            if (i == 0 || stagger <= 0L) {
+                attempt.run();
+            } else {
+                StunTransactionTimer.schedule(attempt, i * stagger);
+            }
+        }
+        return winner;
+    }
 
-                @Override
-                public InetSocketAddress visitBindingErrorResponse(
-                        final BindingErrorResponse response) {
-                    LOG.warn("Received Binding Error Response: " + response);
-                    return null;
+    private void startAttempt(final RankedStunServer server,
+        final CompletableFuture<InetSocketAddress> winner,
+        final Collection<CompletableFuture<StunMessage>> attempts,
+        final ConcurrentMap<InetAddress, AtomicInteger> votes, 
+        final int quorum,
+        final AtomicInteger remaining) {
+        server.onAttempt();
+        final long start = System.nanoTime();
+        final CompletableFuture<StunMessage> attempt;
+        try {
+            attempt = lookup(server.getAddress());
+        } catch (final IOException e) {
+            LOG.debug("Could not write to server", e);
+            server.onFailure();
+            if (remaining.decrementAndGet() == 0) {
+                winner.complete(null);
+            }
+            return;
+        }
+        attempts.add(attempt);
+        
+        // The winner may have completed while we were writing, in which 
+        // case it won't have seen this attempt.
+        if (winner.isDone()) {
+            attempt.cancel(false);
+            return;
+        }
+        attempt.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                if (t != null) {
+                    // We cancelled it because another server won.
+                    return;
+                }
+                final InetSocketAddress isa = 
+                    message.accept(MAPPED_ADDRESS_VISITOR);
+                if (isa == null) {
+                    server.onFailure();
+                } else {
+                    // Even if we lost the race this tells us the server is
+                    // alive and how fast it is.
+                    server.onSuccess(elapsedMillis(start));
+                    if (vote(votes, isa.getAddress()) >= quorum && 
+                        winner.complete(isa)) {
+                        LOG.debug("Server won race: {}", server);
+                        preferServer(server);
+                    }
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    winner.complete(null);
                 }
+            }
+        });
+    }
 
-                @Override
-                public InetSocketAddress visitConnectErrorMesssage(
-                        final ConnectErrorStunMessage error) {
-                    LOG.warn("Received ICMP error: {}", error);
-                    return null;
+    /**
+     * Sends a binding request to look up our mapped address.  With a TCP
+     * fallback we go straight to TCP for servers UDP doesn't get through 
+     * to.  For other servers we also ask over TCP if UDP hasn't answered
+     * within {@link StunClientConfig#getTcpFallbackDelay()}, taking 
+     * whichever answer comes first.
+     */
+    private CompletableFuture<StunMessage> lookup(
+        final InetSocketAddress server) throws IOException {
+        final TcpStunClient tcp = this.m_tcpFallback;
+        if (tcp == null) {
+            return writeAsync(new BindingRequest(), server);
+        }
+        if (StunTransportSelector.useTcp(server)) {
+            LOG.debug("Using TCP for {}", server);
+            return tcp.writeAsync(new BindingRequest(), server);
+        }
+        final CompletableFuture<StunMessage> result = 
+            new CompletableFuture<StunMessage>();
+        final CompletableFuture<StunMessage> udp = 
+            writeAsync(new BindingRequest(), server);
+
+        // One for each transport, whether or not we end up using TCP.
+        final AtomicInteger outstanding = new AtomicInteger(2);
+
+        // UDP has only failed a server TCP gets through to if it actually
+        // times out, not if it's just slower than the fallback delay, so
+        // when TCP wins we let UDP run on and count a failure only once
+        // both have happened.
+        final AtomicInteger udpFailure = new AtomicInteger(2);
+        final Collection<CompletableFuture<StunMessage>> attempts = 
+            new ConcurrentLinkedQueue<CompletableFuture<StunMessage>>();
+        udp.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                if (t == null && 
+                    message.accept(MAPPED_ADDRESS_VISITOR) != null) {
+                    StunTransportSelector.onUdpSuccess(server);
+                    result.complete(message);
+                    return;
                 }
-            };
+                if (message instanceof NullStunMessage && 
+                    udpFailure.decrementAndGet() == 0) {
+                    StunTransportSelector.onUdpFailure(server);
+                }
+                if (outstanding.decrementAndGet() == 0) {
+                    result.complete(
+                        t == null ? message : new NullStunMessage());
+                }
+            }
+        });
+        final ScheduledFuture<?> fallback = StunTransactionTimer.schedule(
+            new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                LOG.debug("No UDP answer yet from {}, trying TCP", server);
+                final CompletableFuture<StunMessage> attempt = 
+                    tcp.writeAsync(new BindingRequest(), server);
+                attempts.add(attempt);
+                attempt.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+                    @Override
+                    public void accept(final StunMessage message, 
+                        final Throwable t) {
+                        if (t == null && 
+                            message.accept(MAPPED_ADDRESS_VISITOR) != null) {
+                            if (udpFailure.decrementAndGet() == 0) {
+                                StunTransportSelector.onUdpFailure(server);
+                            }
+                            result.complete(message);
+                        } else if (outstanding.decrementAndGet() == 0) {
+                            result.complete(new NullStunMessage());
+                        }
+                    }
+                });
+            }
+        }, StunClientConfig.getTcpFallbackDelay());
+        result.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                fallback.cancel(false);
+                for (final CompletableFuture<StunMessage> attempt : attempts) {
+                    attempt.cancel(false);
+                }
+                
+                // If the caller gave up we stop UDP too.  Otherwise it has 
+                // either answered already or we're waiting to see whether 
+                // it would have.
+                if (t != null) {
+                    udp.cancel(false);
+                }
+            }
+        });
+        return result;
+    }
 
-            final InetSocketAddress isa = message.accept(visitor);
-            if (isa == null) {
-                onFailure(m_stunServer);
-                continue;
+    private static int vote(
+        final ConcurrentMap<InetAddress, AtomicInteger> votes,
+        final InetAddress address) {
+        AtomicInteger count = votes.get(address);
+        if (count == null) {
+            final AtomicInteger created = new AtomicInteger();
+            count = votes.putIfAbsent(address, created);
+            if (count == null) {
+                count = created;
             }
-            onSuccess(this.m_stunServer);
-            
-            // Always keep rotating.
-            this.m_stunServer = pickStunServerInetAddress();
-            return isa;
         }
+        return count.incrementAndGet();
+    }
 
-        // If we get here, all our attempts failed. Maybe the client's offline?
-        throw new IOException("Could not get server reflexive address!");
+    /**
+     * Sends a request to a demoted server if it hasn't been tried in a 
+     * while to see if it's recovered.  This happens in the background so
+     * the caller never waits on a server we think is down.
+     */
+    private void reprobeDemotedServer() {
+        final RankedStunServer demoted = this.m_ranking.nextReprobe();
+        if (demoted == null) {
+            return;
+        }
+        LOG.debug("Re-probing demoted server: {}", demoted);
+        final long start = System.nanoTime();
+        try {
+            writeAsync(new BindingRequest(), demoted.getAddress()).thenAccept(
+                new Consumer<StunMessage>() {
+                @Override
+                public void accept(final StunMessage message) {
+                    if (message.accept(MAPPED_ADDRESS_VISITOR) == null) {
+                        demoted.onFailure();
+                    } else {
+                        demoted.onSuccess(elapsedMillis(start));
+                    }
+                }
+            });
+        } catch (final IOException e) {
+            LOG.debug("Could not re-probe server", e);
+            demoted.onFailure();
+        }
+    }
+
+    /**
+     * Returns the current ranking of the STUN servers this client uses,
+     * from best to worst.
+     * 
+     * @return The ranked servers.
+     */
+    public List<RankedStunServer> getStunServers() {
+        refreshServers();
+        return this.m_ranking.getRanked();
+    }
+
+    private static long elapsedMillis(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
     }
 
     public StunMessage write(final BindingRequest request,
         final InetSocketAddress remoteAddress) throws IOException {
-        // Use an RTO of 100ms, as discussed in
-        // draft-ietf-behave-rfc3489bis-06.txt section 7.1. Note we just
-        // use this value and don't cache previously discovered values for
-        // the RTO.
-        final long rto = 100L;
-        return write(request, remoteAddress, rto);
+        return StunClientSupport.await(writeAsync(request, remoteAddress));
     }
 
     public StunMessage write(final BindingRequest request,
             final InetSocketAddress remoteAddress, final long rto)
             throws IOException {
+        return StunClientSupport.await(writeAsync(request, remoteAddress, rto));
+    }
+
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress) 
+        throws IOException {
+        // Use the RTO we've learned for this host.  This starts at 100ms, 
+        // as discussed in draft-ietf-behave-rfc3489bis-06.txt section 7.1, 
+        // and adapts to measured round-trip times.
+        final long rto = RttEstimator.forServer(
+            StunServerResolver.getResolved(remoteAddress)).getRto();
+        return writeAsync(request, remoteAddress, rto);
+    }
+
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress, 
+        final long rto) throws IOException {
+        if (remoteAddress.isUnresolved()) {
+            final InetSocketAddress resolved = 
+                StunServerResolver.getResolved(remoteAddress);
+            if (resolved.isUnresolved()) {
+                return writeWhenResolved(request, remoteAddress, rto);
+            }
+            return writeAsync(request, resolved, rto);
+        }
+        if (StunClientConfig.isCoalesceRequests() && 
+            request.getAttributes().isEmpty()) {
+            return coalesce(request, remoteAddress, rto);
+        }
+        return send(request, remoteAddress, rto);
+    }
+
+    /**
+     * Shares a single transaction between concurrent binding requests to
+     * the same server, as they'll all get the same answer.  Two callers 
+     * racing to start the first transaction may both send, which is 
+     * harmless.
+     */
+    private CompletableFuture<StunMessage> coalesce(
+        final BindingRequest request, final InetSocketAddress remoteAddress, 
+        final long rto) throws IOException {
+        final CoalescedRequest existing = m_coalesced.get(remoteAddress);
+        if (existing != null) {
+            final CompletableFuture<StunMessage> waiter = 
+                existing.addWaiter(request);
+            if (waiter != null) {
+                LOG.debug("Coalesced request to {}", remoteAddress);
+                return waiter;
+            }
+        }
+        final CompletableFuture<StunMessage> shared = 
+            send(request, remoteAddress, rto);
+        final CoalescedRequest coalesced = new CoalescedRequest(shared);
+        final CompletableFuture<StunMessage> waiter = 
+            coalesced.addWaiter(request);
+        if (waiter == null) {
+            // We already have the answer.
+            return shared;
+        }
+        m_coalesced.put(remoteAddress, coalesced);
+        shared.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                m_coalesced.remove(remoteAddress, coalesced);
+            }
+        });
+        return waiter;
+    }
+
+    private CompletableFuture<StunMessage> send(final BindingRequest request, 
+        final InetSocketAddress remoteAddress, final long rto) 
+        throws IOException {
         // Note we've typically already "connected" around creation time with
         // the connect method, but it's cheap with UDP.
         final IoSession session = connect(this.m_localAddress, remoteAddress);
 
-        // This method will retransmit the same request multiple times because
-        // it's being sent unreliably. All of these requests will be
+        // This transaction will retransmit the same request multiple times 
+        // because it's being sent unreliably. All of these requests will be
         // identical, using the same transaction ID.
-        final UUID id = request.getTransactionId();
+        final TransactionKey id = TransactionKey.forMessage(request);
+        final UdpStunTransaction transaction = 
+            new UdpStunTransaction(request, remoteAddress, session, rto,
+                RttEstimator.forServer(remoteAddress));
+        this.m_transactions.put(id, transaction);
+        transaction.getFuture().whenComplete(
+            new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, 
+                final Throwable t) {
+                // Make sure we clean up on timeouts and cancellations.
+                transaction.cancelTimer();
+                if (m_transactions.remove(id) != null) {
+                    removeTrackedTransaction(request);
+                }
+            }
+        });
 
         this.m_transactionTracker.addTransaction(request, this,
                 this.m_localAddress, remoteAddress);
+        transaction.start();
+        return transaction.getFuture();
+    }
 
-        int requests = 0;
-
-        long waitTime = 0L;
-        synchronized (request) {
-            while (!m_idsToResponses.containsKey(id) && requests < 7) {
-                waitIfNoResponse(request, waitTime);
-
-                // See draft-ietf-behave-rfc3489bis-06.txt section 7.1. We
-                // continually send the same request until we receive a
-                // response, never sending more that 7 requests and using
-                // an expanding interval between requests based on the
-                // estimated round-trip-time to the server. This is because
-                // some requests can be lost with UDP.
-                session.write(request);
-
-                // Wait a little longer with each send.
-                waitTime = (2 * waitTime) + rto;
-
-                requests++;
+    /**
+     * Sends the request once we've resolved the address, without blocking
+     * the caller on DNS.  If we can't resolve the address the transaction
+     * fails just as if the server never answered.
+     */
+    private CompletableFuture<StunMessage> writeWhenResolved(
+        final BindingRequest request, final InetSocketAddress remoteAddress, 
+        final long rto) {
+        final CompletableFuture<StunMessage> result = 
+            new CompletableFuture<StunMessage>();
+        StunServerResolver.resolveAsync(remoteAddress).thenAccept(
+            new Consumer<InetSocketAddress>() {
+            @Override
+            public void accept(final InetSocketAddress resolved) {
+                if (result.isDone()) {
+                    // Cancelled while we were resolving.
+                    return;
+                }
+                if (resolved.isUnresolved()) {
+                    LOG.debug("Could not resolve: {}", remoteAddress);
+                    result.complete(new NullStunMessage());
+                    return;
+                }
+                final CompletableFuture<StunMessage> write;
+                try {
+                    write = writeAsync(request, resolved, rto);
+                } catch (final IOException e) {
+                    LOG.debug("Could not write to server", e);
+                    result.complete(new NullStunMessage());
+                    return;
+                }
+                write.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+                    @Override
+                    public void accept(final StunMessage response, 
+                        final Throwable t) {
+                        if (t != null) {
+                            result.completeExceptionally(t);
+                        } else {
+                            result.complete(response);
+                        }
+                    }
+                });
+                // Pass cancellations on so we stop retransmitting.
+                result.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+                    @Override
+                    public void accept(final StunMessage response, 
+                        final Throwable t) {
+                        write.cancel(false);
+                    }
+                });
             }
+        });
+        return result;
+    }
 
-            // Now we wait for 1.6 seconds after the last request was sent.
-            // If we still don't receive a response, then the transaction
-            // has failed.
-            waitIfNoResponse(request, 1600);
+    /**
+     * Stops the tracker from waiting for a response to a transaction that 
+     * timed out or was cancelled.  Trackers we don't know how to remove 
+     * transactions from have to rely on their own cleanup.
+     * 
+     * @param request The request for the transaction.
+     */
+    private void removeTrackedTransaction(final BindingRequest request) {
+        if (this.m_transactionTracker instanceof ExpiringTransactionTracker) {
+            ((ExpiringTransactionTracker) this.m_transactionTracker)
+                .removeTransaction(request);
         }
+    }
 
-        if (m_idsToResponses.containsKey(id)) {
-            final StunMessage response = this.m_idsToResponses.get(id);
-            return response;
-        }
+    /**
+     * Sets a TCP client to fall back to when looking up our server 
+     * reflexive address from servers we can't reach over UDP.  Note a 
+     * mapped address we get over TCP is for the TCP connection, so this is
+     * only suitable when all that matters is our public IP address.
+     * 
+     * @param tcpFallback The TCP client, or <code>null</code> to only ever
+     * use UDP.
+     */
+    public void setTcpFallback(final TcpStunClient tcpFallback) {
+        this.m_tcpFallback = tcpFallback;
+    }
 
-        LOG.warn("Did not get response from: " + remoteAddress);
-        return new NullStunMessage();
+    /**
+     * Returns the number of transactions this client is waiting on.
+     * 
+     * @return The number of outstanding transactions.
+     */
+    public int getPendingTransactions() {
+        return this.m_transactions.size();
     }
 
     public InetSocketAddress getRelayAddress() {
@@ -438,54 +1045,46 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
         return false;
     }
 
-    private RankedStunServer pickStunServerInetAddress() throws IOException {
-        return pickStunServerInetAddress(null);
-    }
-
-    private RankedStunServer pickStunServerInetAddress(
-            final InetSocketAddress skipAddress) throws IOException {
-        if (m_stunServers.isEmpty()) {
-            LOG.warn("Could not get STuN addresses!!");
-            throw new IOException("No STUN addresses returned!");
-        }
-        if (skipAddress != null) {
-            m_stunServers.remove(skipAddress);
+    private static Collection<RankedStunServer> rank(
+        final Collection<InetSocketAddress> stunServers) {
+        // Get all the names resolving in the background so they're ready
+        // by the time we pick a server.
+        StunServerResolver.prewarm(stunServers);
+        final Collection<RankedStunServer> servers = 
+            new ArrayList<RankedStunServer>(stunServers.size());
+        for (final InetSocketAddress isa : stunServers) {
+            try {
+                servers.add(RankedStunServer.forAddress(isa));
+            } catch (final DNSSECException e) {
+                LOG.warn("DNSSEC verification error!!", e);
+            }
         }
-        final RankedStunServer rss = m_stunServers.peek();
-        return rss;
+        return servers;
     }
 
-    private class RankedStunServer implements Comparable<RankedStunServer>{
-
-        private InetSocketAddress isa;
-        private int successes;
-        private int failures;
-        private RankedStunServer(final InetSocketAddress isa) 
-            throws DNSSECException {
-            if (isa.isUnresolved() && StunClientConfig.isUseDnsSec()) {
-                try {
-                    this.isa = DnsSec.verify(isa);
-                } catch (IOException e) {
-                    this.isa = isa;
-                }
-            } else {
-                this.isa = isa;
-            }
+    /**
+     * Picks up any changes to the servers in the repository if we're 
+     * following it.  This is just a volatile read when nothing's changed.
+     */
+    private void refreshServers() {
+        if (!this.m_followRepository) {
+            return;
         }
-        private int getScore() {
-            return successes - failures;
+        final long version = StunServerRepository.getVersion();
+        if (version == this.m_repositoryVersion) {
+            return;
         }
-        
+        this.m_repositoryVersion = version;
+        LOG.debug("STUN servers changed");
+        this.m_ranking.setServers(rank(StunServerRepository.getServers()));
+    }
 
-        @Override
-        public String toString() {
-            return "RankedStunServer [isa=" + isa + " score="+getScore()+"]";
-        }
-        
-        @Override
-        public int compareTo(final RankedStunServer rss) {
-            final Integer score1 = rss.getScore();
-            return score1.compareTo(getScore());
+    private RankedStunServer pickStunServerInetAddress() throws IOException {
+        refreshServers();
+        if (m_ranking.isEmpty()) {
+            LOG.warn("Could not get STuN addresses!!");
+            throw new IOException("No STUN addresses returned!");
         }
+        return m_ranking.pick(Collections.<RankedStunServer>emptySet());
     }
 }
@@ -0,0 +1,204 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single outstanding STUN transaction over UDP.  Retransmissions are
+ * driven from the shared {@link StunTransactionTimer} rather than from the
+ * calling thread, and the result is delivered through a
+ * {@link CompletableFuture}.
+ */
+final class UdpStunTransaction implements Runnable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(UdpStunTransaction.class);
+
+    /**
+     * The maximum number of requests we send, as discussed in
+     * draft-ietf-behave-rfc3489bis-06.txt section 7.1.
+     */
+    private static final int MAX_REQUESTS = 7;
+
+    private final BindingRequest m_request;
+    private final InetSocketAddress m_remoteAddress;
+    private final IoSession m_session;
+    private final long m_rto;
+    private final RttEstimator m_rttEstimator;
+
+    private final CompletableFuture<StunMessage> m_future =
+        new CompletableFuture<StunMessage>();
+
+    /**
+     * Claimed by whichever of the response or the final timeout gets here
+     * first, so we can record metrics before waking the caller.
+     */
+    private final AtomicBoolean m_finished = new AtomicBoolean();
+
+    private volatile int m_requests;
+    private volatile long m_firstSent;
+    private volatile ScheduledFuture<?> m_timer;
+
+    UdpStunTransaction(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final IoSession session,
+        final long rto, final RttEstimator rttEstimator) {
+        this.m_request = request;
+        this.m_remoteAddress = remoteAddress;
+        this.m_session = session;
+        this.m_rto = rto;
+        this.m_rttEstimator = rttEstimator;
+    }
+
+    CompletableFuture<StunMessage> getFuture() {
+        return m_future;
+    }
+
+    BindingRequest getRequest() {
+        return m_request;
+    }
+
+    /**
+     * Sends the first request and schedules any retransmissions.
+     */
+    void start() {
+        run();
+    }
+
+    @Override
+    public void run() {
+        if (m_future.isDone()) {
+            return;
+        }
+        if (m_requests >= MAX_REQUESTS) {
+            // We've waited for the final interval after the last request
+            // without receiving a response, so the transaction has failed.
+            LOG.debug("Did not get response from: {}", m_remoteAddress);
+            if (claim()) {
+                StunClientConfig.getMetrics().onTransactionTimedOut(
+                    m_remoteAddress);
+                m_future.complete(new NullStunMessage());
+            }
+            return;
+        }
+
+        // Hold the request back if we're sending to this server too fast.
+        // This doesn't count as a send, so it doesn't eat into our 
+        // retransmissions.
+        final long pacing = ServerPacer.acquire(m_remoteAddress);
+        if (pacing > 0L) {
+            m_timer = StunTransactionTimer.schedule(this, pacing);
+            if (m_future.isDone()) {
+                cancelTimer();
+            }
+            return;
+        }
+
+        // See draft-ietf-behave-rfc3489bis-06.txt section 7.1. We
+        // continually send the same request until we receive a
+        // response, never sending more that 7 requests and using
+        // an expanding interval between requests based on the
+        // estimated round-trip-time to the server. This is because
+        // some requests can be lost with UDP.
+        if (m_requests == 0) {
+            m_firstSent = System.nanoTime();
+            StunClientConfig.getMetrics().onTransactionStarted(
+                m_remoteAddress);
+        }
+        m_requests++;
+        m_session.write(m_request);
+
+        m_timer = StunTransactionTimer.schedule(this, 
+            delayAfter(m_requests, m_rto));
+
+        // The response could have arrived while we were scheduling.
+        if (m_future.isDone()) {
+            cancelTimer();
+        }
+    }
+
+    /**
+     * Returns the longest a transaction with the specified RTO can take if
+     * it never gets a response.
+     *
+     * @param rto The RTO in milliseconds.
+     * @return The maximum duration in milliseconds.
+     */
+    static long getMaxDuration(final long rto) {
+        long duration = 0L;
+        for (int requests = 1; requests <= MAX_REQUESTS; requests++) {
+            duration += delayAfter(requests, rto);
+        }
+        return duration;
+    }
+
+    private static long delayAfter(final int requests, final long rto) {
+        if (requests < MAX_REQUESTS) {
+            // Wait a little longer with each send.
+            return RttEstimator.retransmitWait(rto, requests);
+        }
+        // Now we wait for 16 times the RTO after the last request was 
+        // sent (1.6 seconds with the default RTO).
+        return RttEstimator.finalWait(rto);
+    }
+
+    /**
+     * Completes the transaction with the specified response, cancelling any
+     * pending retransmissions.
+     *
+     * @param response The response.
+     */
+    void complete(final StunMessage response) {
+        // We can only measure the round trip if we sent a single request,
+        // as otherwise we can't tell which request this is a response to.
+        final boolean measurable = m_requests == 1;
+        final long rtt = 
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - m_firstSent);
+        if (claim()) {
+            final StunClientMetrics metrics = StunClientConfig.getMetrics();
+            if (response instanceof BindingSuccessResponse) {
+                metrics.onTransactionSucceeded(m_remoteAddress, m_requests - 1);
+            } else {
+                metrics.onTransactionFailed(m_remoteAddress, m_requests - 1);
+            }
+            if (measurable && !(response instanceof ConnectErrorStunMessage)) {
+                m_rttEstimator.addSample(rtt);
+                metrics.onRtt(m_remoteAddress, rtt);
+            }
+            m_future.complete(response);
+        }
+        cancelTimer();
+    }
+
+    private boolean claim() {
+        // The caller may have given up on the future already.
+        return !m_future.isDone() && m_finished.compareAndSet(false, true);
+    }
+
+    /**
+     * Stops any scheduled retransmissions.
+     */
+    void cancelTimer() {
+        final ScheduledFuture<?> timer = m_timer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UdpStunTransaction [remote=" + m_remoteAddress +
+            " requests=" + m_requests + "]";
+    }
+}
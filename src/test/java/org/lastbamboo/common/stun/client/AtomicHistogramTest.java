@@ -0,0 +1,39 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AtomicHistogramTest {
+
+    @Test
+    public void testBucketBoundaries() throws Exception {
+        for (long v = 0; v < 100000; v++) {
+            final int index = AtomicHistogram.index(v);
+            assertTrue(AtomicHistogram.lowestValue(index) <= v);
+            assertTrue(AtomicHistogram.lowestValue(index + 1) > v);
+        }
+        assertEquals(AtomicHistogram.index(Long.MAX_VALUE),
+            AtomicHistogram.index(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final AtomicHistogram histogram = new AtomicHistogram();
+        assertEquals(0L, histogram.getPercentile(99));
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+            actual >= expected && actual <= expected * 1.125);
+    }
+}
@@ -0,0 +1,43 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+
+public class AtomicStunClientMetricsTest {
+
+    @After
+    public void tearDown() {
+        StunClientConfig.setMetrics(null);
+    }
+
+    @Test
+    public void testTransactionMetrics() throws Exception {
+        final AtomicStunClientMetrics metrics = new AtomicStunClientMetrics();
+        StunClientConfig.setMetrics(metrics);
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        try {
+            final UdpStunClient client = new UdpStunClient(address);
+            client.connect();
+            for (int i = 0; i < 10; i++) {
+                client.write(new BindingRequest(), address, 200L);
+            }
+            server.setLossRate(1.0);
+            client.write(new BindingRequest(), address, 1L);
+            client.close();
+        } finally {
+            server.stop();
+        }
+        assertEquals(11, metrics.getTransactionsStarted());
+        assertEquals(10, metrics.getTransactionsSucceeded());
+        assertEquals(1, metrics.getTransactionsTimedOut());
+        assertEquals(10, metrics.getRtt().getCount());
+        assertEquals(10, metrics.getServerRtts().get(address).getCount());
+        assertEquals(0, metrics.getRetransmissions().getMax());
+    }
+}
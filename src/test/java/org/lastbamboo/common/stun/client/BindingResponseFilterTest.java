@@ -0,0 +1,73 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.message.BindingRequest;
+
+public class BindingResponseFilterTest {
+
+    private static final InetSocketAddress MAPPED = 
+        new InetSocketAddress("192.0.2.1", 32853);
+
+    @Test
+    public void testXorMappedAddress() throws Exception {
+        final byte[] id = new BindingRequest().getTransactionId().getRawBytes();
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        writeHeader(buf, id, 12);
+        buf.putShort((short) 0x0020);
+        buf.putShort((short) 8);
+        buf.put((byte) 0);
+        buf.put((byte) 1);
+        buf.putShort((short) (MAPPED.getPort() ^ 0x2112));
+        final byte[] address = MAPPED.getAddress().getAddress();
+        for (int i = 0; i < address.length; i++) {
+            buf.put((byte) (address[i] ^ id[i]));
+        }
+        buf.flip();
+        assertEquals(MAPPED, BindingResponseFilter.readMappedAddress(buf, 0));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testMappedAddressAfterOtherAttributes() throws Exception {
+        final byte[] id = new BindingRequest().getTransactionId().getRawBytes();
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        writeHeader(buf, id, 20);
+
+        // A SOFTWARE attribute that needs padding.
+        buf.putShort((short) 0x8022);
+        buf.putShort((short) 3);
+        buf.put(new byte[] {'a', 'b', 'c', 0});
+        buf.putShort((short) 0x0001);
+        buf.putShort((short) 8);
+        buf.put((byte) 0);
+        buf.put((byte) 1);
+        buf.putShort((short) MAPPED.getPort());
+        buf.put(MAPPED.getAddress().getAddress());
+        buf.flip();
+        assertEquals(MAPPED, BindingResponseFilter.readMappedAddress(buf, 0));
+    }
+
+    @Test
+    public void testTruncatedAttribute() throws Exception {
+        final byte[] id = new BindingRequest().getTransactionId().getRawBytes();
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        writeHeader(buf, id, 8);
+        buf.putShort((short) 0x0001);
+        buf.putShort((short) 8);
+        buf.putInt(0);
+        buf.flip();
+        assertNull(BindingResponseFilter.readMappedAddress(buf, 0));
+    }
+
+    private static void writeHeader(final ByteBuffer buf, final byte[] id,
+        final int length) {
+        buf.putShort((short) 0x0101);
+        buf.putShort((short) length);
+        buf.put(id);
+    }
+}
@@ -0,0 +1,105 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+
+public class ExpiringTransactionTrackerTest {
+
+    private static final StunTransactionListener LISTENER =
+        new StunTransactionListener() {
+            @Override
+            public Object onTransactionSucceeded(final StunMessage request,
+                final StunMessage response) {
+                return null;
+            }
+
+            @Override
+            public Object onTransactionFailed(final StunMessage request,
+                final StunMessage response) {
+                return null;
+            }
+        };
+
+    private final InetSocketAddress m_local =
+        new InetSocketAddress("127.0.0.1", 40000);
+
+    private final InetSocketAddress m_remote =
+        new InetSocketAddress("127.0.0.1", 3478);
+
+    @Test
+    public void testConsumedResponseRemovesTransaction() throws Exception {
+        final ExpiringTransactionTracker tracker =
+            new ExpiringTransactionTracker(60000L);
+        final BindingRequest request = new BindingRequest();
+        tracker.addTransaction(request, LISTENER, m_local, m_remote);
+        assertEquals(1, tracker.size());
+
+        final BindingSuccessResponse response = new BindingSuccessResponse(
+            request.getTransactionId().getRawBytes(), m_local);
+        assertNotNull(tracker.getClientTransaction(response));
+        response.accept(tracker.getClientTransaction(response));
+        assertEquals(0, tracker.size());
+        assertEquals(1, tracker.getTransactionsCompleted());
+
+        // Duplicate responses from retransmissions are simply unknown.
+        assertNull(tracker.getClientTransaction(response));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final ExpiringTransactionTracker tracker =
+            new ExpiringTransactionTracker(10L);
+        for (int i = 0; i < 100; i++) {
+            tracker.addTransaction(new BindingRequest(), LISTENER, m_local,
+                m_remote);
+        }
+        Thread.sleep(1100);
+
+        // Adding a transaction triggers the sweep.
+        tracker.addTransaction(new BindingRequest(), LISTENER, m_local,
+            m_remote);
+        assertEquals(1, tracker.size());
+        assertEquals(100, tracker.getTransactionsExpired());
+    }
+
+    @Test
+    public void testTimeoutsDoNotLeak() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        server.setLossRate(1.0);
+        try {
+            final SharedUdpStunTransport transport =
+                new SharedUdpStunTransport();
+            final ExpiringTransactionTracker tracker =
+                (ExpiringTransactionTracker) transport.getTransactionTracker();
+            final UdpStunClient client = new UdpStunClient(transport, address);
+            client.connect();
+            final List<CompletableFuture<StunMessage>> futures =
+                new ArrayList<CompletableFuture<StunMessage>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client.writeAsync(new BindingRequest(), address,
+                    1L));
+            }
+            for (final CompletableFuture<StunMessage> future : futures) {
+                assertTrue(future.get() instanceof NullStunMessage);
+            }
+            assertEquals(0, client.getPendingTransactions());
+            assertEquals(0, tracker.size());
+            assertEquals(50, tracker.getTransactionsRemoved());
+            transport.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
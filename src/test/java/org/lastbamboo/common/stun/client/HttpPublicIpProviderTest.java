@@ -0,0 +1,97 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for HTTP public IP lookups against a local HTTP server.
+ */
+public class HttpPublicIpProviderTest {
+
+    private HttpServer m_server;
+
+    private String m_url;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getByName("127.0.0.1"), 0), 0);
+        m_server.createContext("/fast", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                throws IOException {
+                final byte[] body = "1.2.3.4\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        m_server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                throws IOException {
+                try {
+                    Thread.sleep(5000L);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+            }
+        });
+        m_server.start();
+        m_url = "http://127.0.0.1:" + m_server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        StunClientConfig.setHttpReadTimeout(3000L);
+        m_server.stop(0);
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final List<CompletableFuture<InetAddress>> futures =
+            new ArrayList<CompletableFuture<InetAddress>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(provider("/fast").lookupAsync());
+        }
+        for (final CompletableFuture<InetAddress> future : futures) {
+            assertEquals(InetAddress.getByName("1.2.3.4"),
+                future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        StunClientConfig.setHttpReadTimeout(300L);
+        final long start = System.currentTimeMillis();
+        assertNull(provider("/slow").lookupAsync().get(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 3000L);
+    }
+
+    private HttpPublicIpProvider provider(final String path) {
+        return new HttpPublicIpProvider("local", m_url + path) {
+            @Override
+            protected InetAddress parse(final String body) throws IOException {
+                return InetAddress.getByName(body.trim());
+            }
+        };
+    }
+}
@@ -0,0 +1,180 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for the STUN client against the in-process loopback server, so
+ * these run without any network.
+ */
+public class LoopbackStunServerTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+    }
+
+    @After
+    public void tearDown() {
+        StunClientConfig.setServerRaceCount(1);
+        StunClientConfig.setServerRaceStagger(200L);
+        m_server.stop();
+    }
+
+    @Test
+    public void testServerReflexiveAddress() throws Exception {
+        final UdpStunClient client = new UdpStunClient(m_address);
+        client.connect();
+        final InetSocketAddress srflx = client.getServerReflexiveAddress();
+        assertEquals(client.getHostAddress().getPort(), srflx.getPort());
+        assertEquals(1, m_server.getRequestsReceived());
+        client.close();
+    }
+
+    @Test
+    public void testLossRecoveredByRetransmission() throws Exception {
+        m_server.setLossRate(0.5);
+
+        // This seed never drops more than three requests in a row, so
+        // every transaction gets through on a retransmission.
+        m_server.setSeed(7L);
+        final UdpStunClient client = new UdpStunClient(m_address);
+        client.connect();
+        for (int i = 0; i < 10; i++) {
+            final StunMessage response =
+                client.write(new BindingRequest(), m_address, 20L);
+            assertTrue("Unexpected response: " + response,
+                response instanceof BindingSuccessResponse);
+        }
+        assertTrue(m_server.getRequestsDropped() > 0);
+        client.close();
+    }
+
+    @Test
+    public void testDuplicatedAndReorderedResponses() throws Exception {
+        m_server.setLatency(5L);
+        m_server.setJitter(5L);
+        m_server.setDuplicationRate(1.0);
+        m_server.setReorderRate(0.3);
+        final SharedUdpStunTransport transport = new SharedUdpStunTransport();
+        final UdpStunClient client = new UdpStunClient(transport, m_address);
+        client.connect();
+        final List<CompletableFuture<StunMessage>> futures =
+            new ArrayList<CompletableFuture<StunMessage>>();
+        final List<BindingRequest> requests = new ArrayList<BindingRequest>();
+        for (int i = 0; i < 200; i++) {
+            final BindingRequest request = new BindingRequest();
+            requests.add(request);
+            futures.add(client.writeAsync(request, m_address, 500L));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final StunMessage response =
+                futures.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(requests.get(i).getTransactionId(),
+                response.getTransactionId());
+        }
+
+        // Give any duplicates held back for reordering time to go out.
+        Thread.sleep(200);
+        assertEquals(2 * m_server.getRequestsReceived(),
+            m_server.getResponsesSent());
+        transport.close();
+    }
+
+    @Test
+    public void testRaceCancelsLosers() throws Exception {
+        final LoopbackStunServer dead = new LoopbackStunServer();
+        dead.setLossRate(1.0);
+        final InetSocketAddress deadAddress = dead.start();
+        StunClientConfig.setServerRaceCount(2);
+        StunClientConfig.setServerRaceStagger(0L);
+        final UdpStunClient client = new UdpStunClient(deadAddress, m_address);
+        client.connect();
+        final InetSocketAddress srflx = client.getServerReflexiveAddress();
+        assertEquals(client.getHostAddress().getPort(), srflx.getPort());
+        assertEquals(1, m_server.getRequestsReceived());
+
+        // Both servers were asked, but the dead one stops hearing from us
+        // as soon as the live one answers rather than after its RTOs.
+        Thread.sleep(100);
+        final long received = dead.getRequestsReceived();
+        assertTrue(received > 0);
+        Thread.sleep(800);
+        assertEquals(received, dead.getRequestsReceived());
+        client.close();
+        dead.stop();
+    }
+
+    @Test
+    public void testQuorum() throws Exception {
+        final LoopbackStunServer other = new LoopbackStunServer();
+        final InetSocketAddress otherAddress = other.start();
+        final UdpStunClient client = new UdpStunClient(otherAddress, m_address);
+        client.connect();
+        assertNotNull(client.getServerReflexiveAddressAsync(2)
+            .get(10, TimeUnit.SECONDS));
+
+        // A server that sees us at some other IP breaks the quorum.
+        other.setMappedAddress(new InetSocketAddress(
+            InetAddress.getByName("10.0.0.1"), 5000));
+        assertNull(client.getServerReflexiveAddressAsync(2)
+            .get(10, TimeUnit.SECONDS));
+        assertNotNull(client.getServerReflexiveAddressAsync(1)
+            .get(10, TimeUnit.SECONDS));
+        client.close();
+        other.stop();
+    }
+
+    @Test
+    public void testBatchPacing() throws Exception {
+        final UdpStunClient client = new UdpStunClient(m_address);
+        client.connect();
+        final List<BindingCheck> checks = new ArrayList<BindingCheck>();
+        for (int i = 0; i < 6; i++) {
+            checks.add(new BindingCheck(new BindingRequest(), m_address));
+        }
+        final List<CompletableFuture<Long>> answered =
+            new ArrayList<CompletableFuture<Long>>();
+        for (final CompletableFuture<StunMessage> future :
+            client.writeBatch(checks, 50L)) {
+            answered.add(future.thenApply(new Function<StunMessage, Long>() {
+                @Override
+                public Long apply(final StunMessage response) {
+                    assertTrue(response instanceof BindingSuccessResponse);
+                    return System.nanoTime();
+                }
+            }));
+        }
+
+        // The server answers at once, so the answers come back spaced out
+        // just as the requests went out.
+        long last = answered.get(0).get(10, TimeUnit.SECONDS);
+        for (int i = 1; i < answered.size(); i++) {
+            final long time = answered.get(i).get(10, TimeUnit.SECONDS);
+            final long gap = TimeUnit.NANOSECONDS.toMillis(time - last);
+            last = time;
+            assertTrue("Gap of " + gap + "ms", gap >= 40L && gap < 500L);
+        }
+        assertEquals(checks.size(), m_server.getRequestsReceived());
+        client.close();
+    }
+}
@@ -0,0 +1,125 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for NAT behaviour discovery.
+ */
+public class NatBehaviorDiscoveryTest {
+
+    private static final InetSocketAddress LOCAL = 
+        new InetSocketAddress("192.168.1.2", 5000);
+
+    private static final InetSocketAddress SERVER_A = 
+        new InetSocketAddress("203.0.113.1", 3478);
+
+    private static final InetSocketAddress SERVER_A2 = 
+        new InetSocketAddress("203.0.113.1", 3479);
+
+    private static final InetSocketAddress SERVER_B = 
+        new InetSocketAddress("198.51.100.1", 3478);
+
+    private static final InetSocketAddress MAPPED_1 = 
+        new InetSocketAddress("192.0.2.1", 40000);
+
+    private static final InetSocketAddress MAPPED_2 = 
+        new InetSocketAddress("192.0.2.1", 40001);
+
+    @Test
+    public void testClassify() {
+        assertEquals(NatMapping.UNKNOWN, NatBehaviorDiscovery.classify(LOCAL,
+            new LinkedHashMap<InetSocketAddress, InetSocketAddress>()));
+        assertEquals(NatMapping.ENDPOINT_INDEPENDENT, 
+            NatBehaviorDiscovery.classify(LOCAL, map(MAPPED_1, MAPPED_1, 
+                MAPPED_1)));
+        assertEquals(NatMapping.ADDRESS_DEPENDENT, 
+            NatBehaviorDiscovery.classify(LOCAL, map(MAPPED_1, MAPPED_1, 
+                MAPPED_2)));
+        assertEquals(NatMapping.ADDRESS_AND_PORT_DEPENDENT, 
+            NatBehaviorDiscovery.classify(LOCAL, map(MAPPED_1, MAPPED_2, 
+                MAPPED_2)));
+    }
+
+    @Test
+    public void testNoNatOnLoopback() throws Exception {
+        final LoopbackStunServer first = new LoopbackStunServer();
+        final LoopbackStunServer second = new LoopbackStunServer();
+        try {
+            final NatBehaviorDiscovery discovery = new NatBehaviorDiscovery(
+                Arrays.asList(first.start(), second.start()));
+            final NatBehavior behavior = 
+                discovery.discoverAsync().get(10, TimeUnit.SECONDS);
+            assertEquals(NatMapping.NO_NAT, behavior.getMapping());
+            assertEquals(2, behavior.getMappedAddresses().size());
+            assertSame(behavior, discovery.getCached());
+            assertSame(behavior, 
+                discovery.discoverAsync().get(10, TimeUnit.SECONDS));
+
+            // Loopback bindings never expire.
+            assertEquals(Long.valueOf(40L), discovery
+                .discoverBindingLifetimeAsync(40L, 10L)
+                .get(10, TimeUnit.SECONDS));
+
+            // A search with different bounds doesn't get the old answer.
+            assertEquals(Long.valueOf(20L), discovery
+                .discoverBindingLifetimeAsync(20L, 10L)
+                .get(10, TimeUnit.SECONDS));
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testErrorsDoNotStick() throws Exception {
+        final NatBehaviorDiscovery discovery = new NatBehaviorDiscovery(
+            new AbstractCollection<InetSocketAddress>() {
+                @Override
+                public Iterator<InetSocketAddress> iterator() {
+                    throw new IllegalStateException("Broken servers");
+                }
+
+                @Override
+                public int size() {
+                    return 1;
+                }
+            });
+        final CompletableFuture<NatBehavior> first = discovery.discoverAsync();
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            fail("Should have failed");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertNull(discovery.getCached());
+
+        // The next caller gets a new attempt rather than our failure.
+        assertNotSame(first, discovery.discoverAsync());
+        assertEquals(Long.valueOf(0L), discovery
+            .discoverBindingLifetimeAsync(40L, 10L)
+            .get(10, TimeUnit.SECONDS));
+    }
+
+    private static Map<InetSocketAddress, InetSocketAddress> map(
+        final InetSocketAddress fromA, final InetSocketAddress fromA2, 
+        final InetSocketAddress fromB) {
+        final Map<InetSocketAddress, InetSocketAddress> mapped = 
+            new LinkedHashMap<InetSocketAddress, InetSocketAddress>();
+        mapped.put(SERVER_A, fromA);
+        mapped.put(SERVER_A2, fromA2);
+        mapped.put(SERVER_B, fromB);
+        return mapped;
+    }
+}
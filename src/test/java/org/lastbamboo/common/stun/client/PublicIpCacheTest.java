@@ -0,0 +1,112 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PublicIpCacheTest {
+
+    private final ExecutorService m_executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final InetAddress ip = InetAddress.getByName("1.2.3.4");
+        final PublicIpCache cache = new PublicIpCache(
+            new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() throws Exception {
+                    lookups.incrementAndGet();
+                    release.await();
+                    return ip;
+                }
+            }, m_executor);
+
+        final int callers = 20;
+        final CountDownLatch done = new CountDownLatch(callers);
+        final AtomicInteger matches = new AtomicInteger();
+        for (int i = 0; i < callers; i++) {
+            m_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (ip.equals(cache.get(10000L, 1000L, 10000L))) {
+                        matches.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        Thread.sleep(200);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(callers, matches.get());
+        assertEquals(1, lookups.get());
+
+        // Now it should be cached.
+        assertEquals(ip, cache.get(10000L, 1000L, 10000L));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final AtomicReference<InetAddress> next =
+            new AtomicReference<InetAddress>(InetAddress.getByName("1.2.3.4"));
+        final AtomicInteger lookups = new AtomicInteger();
+        final PublicIpCache cache = new PublicIpCache(
+            new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() throws Exception {
+                    lookups.incrementAndGet();
+                    return next.get();
+                }
+            }, m_executor);
+        final InetAddress first = cache.get(50L, 0L, 10000L);
+        assertEquals(InetAddress.getByName("1.2.3.4"), first);
+
+        next.set(InetAddress.getByName("5.6.7.8"));
+        Thread.sleep(100);
+
+        // The entry's expired, but we should get the stale value while it
+        // refreshes in the background.
+        assertEquals(first, cache.get(50L, 0L, 10000L));
+        Thread.sleep(100);
+        assertEquals(2, lookups.get());
+        assertEquals(InetAddress.getByName("5.6.7.8"),
+            cache.get(10000L, 0L, 10000L));
+    }
+
+    @Test
+    public void testNegativeTtl() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final PublicIpCache cache = new PublicIpCache(
+            new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() throws Exception {
+                    lookups.incrementAndGet();
+                    return null;
+                }
+            }, m_executor);
+        assertNull(cache.get(10000L, 200L, 10000L));
+        assertNull(cache.get(10000L, 200L, 10000L));
+        assertEquals(1, lookups.get());
+        Thread.sleep(300);
+        assertNull(cache.get(10000L, 200L, 10000L));
+        assertEquals(2, lookups.get());
+    }
+}
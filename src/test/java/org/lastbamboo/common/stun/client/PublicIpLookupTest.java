@@ -0,0 +1,177 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for looking up our public IP across ranked providers.
+ */
+public class PublicIpLookupTest {
+
+    private PublicIpProviderRanking m_ranking;
+
+    private InetAddress m_ip;
+
+    private InetAddress m_otherIp;
+
+    @Before
+    public void setUp() throws Exception {
+        m_ranking = new PublicIpProviderRanking();
+        m_ip = InetAddress.getByName("1.2.3.4");
+        m_otherIp = InetAddress.getByName("5.6.7.8");
+    }
+
+    @Test
+    public void testFirstAnswerWins() throws Exception {
+        final FakeProvider fast = new FakeProvider("fast", 20L, m_ip);
+        final FakeProvider slow = new FakeProvider("slow", 5000L, m_ip);
+        assertEquals(m_ip, lookup(1, null, fast, slow));
+        assertEquals(0, slow.m_started.get());
+        assertEquals(0, fast.m_cancelled.get());
+    }
+
+    @Test
+    public void testHedgeOnFailure() throws Exception {
+        final FakeProvider broken = new FakeProvider("broken", 0L, null);
+        final FakeProvider working = new FakeProvider("working", 20L, m_ip);
+        final long start = System.currentTimeMillis();
+        assertEquals(m_ip, lookup(1, null, broken, working));
+
+        // We shouldn't have waited out the hedge delay.
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+        assertTrue(m_ranking.getCost("broken") > m_ranking.getCost("working"));
+    }
+
+    @Test
+    public void testHedgeOnDelay() throws Exception {
+        final FakeProvider slow = new FakeProvider("slow", 5000L, m_ip);
+        final FakeProvider fast = new FakeProvider("fast", 20L, m_ip);
+        final long start = System.currentTimeMillis();
+        final InetAddress ip = new PublicIpLookup(Arrays.asList(
+            (PublicIpProvider) slow, fast), m_ranking, null, 1, 100L).run(
+                10000L);
+        assertEquals(m_ip, ip);
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+        assertEquals(1, slow.m_cancelled.get());
+    }
+
+    @Test
+    public void testOneHedgeAtATime() throws Exception {
+        final FakeProvider broken = new FakeProvider("broken", 0L, null);
+        final FakeProvider flaky = new FakeProvider("flaky", 100L, null);
+        final FakeProvider spare = new FakeProvider("spare", 5000L, m_ip);
+        final FakeProvider last = new FakeProvider("last", 5000L, m_ip);
+        assertNull(new PublicIpLookup(Arrays.asList((PublicIpProvider) broken,
+            flaky, spare, last), m_ranking, null, 1, 200L).run(250L));
+
+        // Moving on straight after a failure mustn't leave a second hedge
+        // behind to start the last provider before its time.
+        assertEquals(1, spare.m_started.get());
+        assertEquals(0, last.m_started.get());
+    }
+
+    @Test
+    public void testQuorumForNewAddress() throws Exception {
+        final FakeProvider liar = new FakeProvider("liar", 0L, m_otherIp);
+        final FakeProvider honest1 = new FakeProvider("honest1", 20L, m_ip);
+        final FakeProvider honest2 = new FakeProvider("honest2", 40L, m_ip);
+        assertEquals(m_ip, lookup(2, null, liar, honest1, honest2));
+        assertTrue(m_ranking.getCost("liar") > m_ranking.getCost("honest2"));
+
+        final List<PublicIpProvider> ranked = m_ranking.rank(Arrays.asList(
+            (PublicIpProvider) liar, honest1, honest2));
+        assertEquals(honest1, ranked.get(0));
+        assertEquals(liar, ranked.get(2));
+    }
+
+    @Test
+    public void testPreviousAddressNeedsOneAnswer() throws Exception {
+        final FakeProvider fast = new FakeProvider("fast", 20L, m_ip);
+        final FakeProvider slow = new FakeProvider("slow", 5000L, m_ip);
+        final long start = System.currentTimeMillis();
+        assertEquals(m_ip, lookup(2, m_ip, fast, slow));
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+    }
+
+    @Test
+    public void testNoQuorum() throws Exception {
+        final FakeProvider first = new FakeProvider("first", 0L, m_ip);
+        final FakeProvider second = new FakeProvider("second", 0L, m_otherIp);
+        assertNull(lookup(2, null, first, second));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final FakeProvider slow = new FakeProvider("slow", 5000L, m_ip);
+        final long start = System.currentTimeMillis();
+        assertNull(new PublicIpLookup(Arrays.asList((PublicIpProvider) slow),
+            m_ranking, null, 1, 100L).run(200L));
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+        assertEquals(1, slow.m_cancelled.get());
+    }
+
+    private InetAddress lookup(final int quorum, final InetAddress previous,
+        final PublicIpProvider... providers) throws InterruptedException {
+        return new PublicIpLookup(Arrays.asList(providers), m_ranking,
+            previous, quorum, 2000L).run(10000L);
+    }
+
+    private static final class FakeProvider implements PublicIpProvider {
+
+        private final String m_name;
+
+        private final long m_delay;
+
+        private final InetAddress m_answer;
+
+        private final AtomicInteger m_started = new AtomicInteger();
+
+        private final AtomicInteger m_cancelled = new AtomicInteger();
+
+        private FakeProvider(final String name, final long delay,
+            final InetAddress answer) {
+            this.m_name = name;
+            this.m_delay = delay;
+            this.m_answer = answer;
+        }
+
+        @Override
+        public String getName() {
+            return m_name;
+        }
+
+        @Override
+        public CompletableFuture<InetAddress> lookupAsync() {
+            m_started.incrementAndGet();
+            if (m_delay == 0L) {
+                return CompletableFuture.completedFuture(m_answer);
+            }
+            final CompletableFuture<InetAddress> future =
+                new CompletableFuture<InetAddress>() {
+                @Override
+                public boolean cancel(final boolean mayInterrupt) {
+                    final boolean cancelled = super.cancel(mayInterrupt);
+                    if (cancelled) {
+                        m_cancelled.incrementAndGet();
+                    }
+                    return cancelled;
+                }
+            };
+            StunTransactionTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(m_answer);
+                }
+            }, m_delay);
+            return future;
+        }
+    }
+}
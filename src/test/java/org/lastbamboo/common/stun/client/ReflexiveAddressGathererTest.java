@@ -0,0 +1,209 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for gathering reflexive addresses from several local addresses at
+ * once.
+ */
+public class ReflexiveAddressGathererTest {
+
+    private final List<LoopbackStunServer> m_servers =
+        new ArrayList<LoopbackStunServer>();
+
+    private SharedUdpStunTransport m_transport;
+
+    private InetAddress m_ipv4;
+
+    private InetAddress m_ipv6;
+
+    @Before
+    public void setUp() throws Exception {
+        m_transport = new SharedUdpStunTransport();
+        m_ipv4 = InetAddress.getByName("127.0.0.1");
+        m_ipv6 = InetAddress.getByName("::1");
+    }
+
+    @After
+    public void tearDown() {
+        m_transport.close();
+        for (final LoopbackStunServer server : m_servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDualStack() throws Exception {
+        final InetSocketAddress ipv4Server = startServer(m_ipv4, 300L);
+        final InetSocketAddress ipv6Server;
+        try {
+            ipv6Server = startServer(m_ipv6, 300L);
+        } catch (final IOException e) {
+            Assume.assumeNoException("No IPv6 loopback", e);
+            return;
+        }
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(ipv4Server, ipv6Server));
+        final long start = System.currentTimeMillis();
+        final Map<InetSocketAddress, InetSocketAddress> mappings =
+            gatherer.gatherAsync(Arrays.asList(m_ipv4, m_ipv6)).get();
+
+        // Both lookups run at once, so this takes one round trip, not two.
+        assertTrue(System.currentTimeMillis() - start < 550L);
+        assertEquals(2, mappings.size());
+        for (final Map.Entry<InetSocketAddress, InetSocketAddress> mapping :
+            mappings.entrySet()) {
+            // There's no NAT on loopback.
+            assertEquals(mapping.getKey(), mapping.getValue());
+        }
+        assertEquals(1, countFamily(mappings.keySet(), m_ipv4));
+        assertEquals(1, countFamily(mappings.keySet(), m_ipv6));
+    }
+
+    @Test
+    public void testSkipsFamiliesWithoutServers() throws Exception {
+        final InetSocketAddress ipv4Server = startServer(m_ipv4, 0L);
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(ipv4Server));
+        final Map<InetSocketAddress, InetSocketAddress> mappings =
+            gatherer.gatherAsync(Arrays.asList(m_ipv4, m_ipv6)).get();
+        assertEquals(1, mappings.size());
+        assertEquals(m_ipv4, mappings.keySet().iterator().next().getAddress());
+
+        // The socket stays bound, so we gather from the same port next time.
+        assertEquals(mappings.keySet(), gatherer.gatherAsync(
+            Arrays.asList(m_ipv4)).get().keySet());
+    }
+
+    @Test
+    public void testDualStackName() throws Exception {
+        final List<InetAddress> families = 
+            Arrays.asList(InetAddress.getAllByName("localhost"));
+        Assume.assumeTrue(families.contains(m_ipv4) && 
+            families.contains(m_ipv6));
+        final int port = startServer(m_ipv4, 0L).getPort();
+        try {
+            startServer(m_ipv6, 0L, port);
+        } catch (final IOException e) {
+            Assume.assumeNoException("No IPv6 loopback on port " + port, e);
+            return;
+        }
+
+        // One name covers both families.
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(
+                InetSocketAddress.createUnresolved("localhost", port)));
+        final Map<InetSocketAddress, InetSocketAddress> mappings =
+            gatherer.gatherAsync(Arrays.asList(m_ipv4, m_ipv6)).get();
+        assertEquals(1, countFamily(mappings.keySet(), m_ipv4));
+        assertEquals(1, countFamily(mappings.keySet(), m_ipv6));
+        gatherer.close();
+    }
+
+    @Test
+    public void testNamedServer() throws Exception {
+        final int port = startServer(m_ipv4, 0L).getPort();
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(
+                InetSocketAddress.createUnresolved("localhost", port)));
+        assertEquals(1, gatherer.gatherAsync(
+            Arrays.asList(m_ipv4)).get().size());
+
+        // Each address of the name is used as is, not mapped back to the
+        // one address cached for the name.
+        for (final RankedStunServer server :
+            gatherer.getClient(m_ipv4).getStunServers()) {
+            assertSame(server.getGivenAddress(), server.getAddress());
+        }
+        gatherer.close();
+    }
+
+    @Test
+    public void testTimeoutKeepsGathered() throws Exception {
+        final InetSocketAddress ipv4Server = startServer(m_ipv4, 0L);
+        final InetSocketAddress ipv6Server;
+        try {
+            ipv6Server = startServer(m_ipv6, 0L);
+        } catch (final IOException e) {
+            Assume.assumeNoException("No IPv6 loopback", e);
+            return;
+        }
+        m_servers.get(1).setLossRate(1.0);
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(ipv4Server, ipv6Server));
+        final Map<InetSocketAddress, InetSocketAddress> mappings =
+            gatherer.gather(Arrays.asList(m_ipv4, m_ipv6), 500L, 
+                TimeUnit.MILLISECONDS);
+        assertEquals(1, mappings.size());
+        assertEquals(m_ipv4, mappings.keySet().iterator().next().getAddress());
+        gatherer.close();
+    }
+
+    @Test
+    public void testReusesClients() throws Exception {
+        final InetSocketAddress ipv4Server = startServer(m_ipv4, 0L);
+        final ReflexiveAddressGatherer gatherer = new ReflexiveAddressGatherer(
+            m_transport, Arrays.asList(ipv4Server));
+        assertEquals(1, gatherer.gatherAsync(
+            Arrays.asList(m_ipv4)).get().size());
+        final UdpStunClient client = gatherer.getClient(m_ipv4);
+        assertNotNull(client);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1, gatherer.gatherAsync(
+                Arrays.asList(m_ipv4)).get().size());
+            assertSame(client, gatherer.getClient(m_ipv4));
+        }
+        gatherer.close();
+        assertNull(gatherer.getClient(m_ipv4));
+    }
+
+    @Test
+    public void testLocalAddresses() throws Exception {
+        for (final InetAddress address :
+            ReflexiveAddressGatherer.getLocalAddresses()) {
+            assertFalse(address.isLoopbackAddress());
+            assertFalse(address.isLinkLocalAddress());
+        }
+    }
+
+    private InetSocketAddress startServer(final InetAddress address,
+        final long latency) throws IOException {
+        return startServer(address, latency, 0);
+    }
+
+    private InetSocketAddress startServer(final InetAddress address,
+        final long latency, final int port) throws IOException {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        server.setLatency(latency);
+        final InetSocketAddress bound =
+            server.start(new InetSocketAddress(address, port));
+        m_servers.add(server);
+        return bound;
+    }
+
+    private static int countFamily(final Collection<InetSocketAddress> hosts,
+        final InetAddress family) {
+        int count = 0;
+        for (final InetSocketAddress host : hosts) {
+            if (host.getAddress().getClass() == family.getClass()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,111 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the reflexive address monitor against the loopback server.
+ */
+public class ReflexiveAddressMonitorTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+    }
+
+    @After
+    public void tearDown() {
+        m_server.stop();
+    }
+
+    @Test
+    public void testKeepalives() throws Exception {
+        final ReflexiveAddressMonitor monitor = 
+            new ReflexiveAddressMonitor(m_address);
+        monitor.setMinInterval(20L);
+        monitor.setMaxInterval(100L);
+        final CountDownLatch changed = new CountDownLatch(1);
+        final AtomicReference<InetSocketAddress> mapped = 
+            new AtomicReference<InetSocketAddress>();
+        monitor.addListener(new ReflexiveAddressListener() {
+            @Override
+            public void onMappedAddressChanged(
+                final InetSocketAddress oldAddress, 
+                final InetSocketAddress newAddress) {
+                assertNull(oldAddress);
+                mapped.set(newAddress);
+                changed.countDown();
+            }
+
+            @Override
+            public void onBindingLost(final InetSocketAddress lastAddress) {
+                fail("Binding should not be lost");
+            }
+        });
+        monitor.start();
+        try {
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+            assertEquals(monitor.getHostAddress().getPort(), 
+                mapped.get().getPort());
+            assertEquals(mapped.get(), monitor.getMappedAddress());
+
+            // The binding never changes, so the interval should grow to
+            // the maximum.
+            final long deadline = System.currentTimeMillis() + 10000L;
+            while (monitor.getInterval() < 100L && 
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(20L);
+            }
+            assertEquals(100L, monitor.getInterval());
+            assertTrue(m_server.getRequestsReceived() > 1);
+        } finally {
+            monitor.stop();
+        }
+    }
+
+    @Test
+    public void testNoServers() throws Exception {
+        // The first few keepalives find no servers, as they would while
+        // the servers are being swapped.
+        final AtomicInteger empty = new AtomicInteger(3);
+        final UdpStunClient client = new UdpStunClient(m_address) {
+            @Override
+            public List<RankedStunServer> getStunServers() {
+                if (empty.getAndDecrement() > 0) {
+                    return Collections.emptyList();
+                }
+                return super.getStunServers();
+            }
+        };
+        final ReflexiveAddressMonitor monitor = 
+            new ReflexiveAddressMonitor(client);
+        monitor.setMinInterval(20L);
+        monitor.start();
+        try {
+            final long deadline = System.currentTimeMillis() + 10000L;
+            while (monitor.getMappedAddress() == null && 
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(20L);
+            }
+            assertNotNull(monitor.getMappedAddress());
+        } finally {
+            monitor.stop();
+        }
+    }
+}
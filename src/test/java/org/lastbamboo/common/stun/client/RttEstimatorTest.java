@@ -0,0 +1,78 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+/**
+ * Tests for the RTT estimator.
+ */
+public class RttEstimatorTest {
+
+    @Test public void testDefaults() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        assertEquals(RttEstimator.DEFAULT_RTO, estimator.getRto());
+        assertEquals(1600L, estimator.getFinalWait());
+        assertEquals(0, estimator.getSamples());
+    }
+    
+    @Test public void testSamples() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        estimator.addSample(400);
+        
+        // SRTT + 4 * RTTVAR, with RTTVAR starting at half the first sample.
+        assertEquals(400.0, estimator.getSmoothedRtt(), 0.001);
+        assertEquals(200.0, estimator.getRttVariance(), 0.001);
+        assertEquals(1200L, estimator.getRto());
+        
+        for (int i = 0; i < 50; i++) {
+            estimator.addSample(400);
+        }
+        assertEquals(400.0, estimator.getSmoothedRtt(), 1.0);
+        assertTrue("RTO should converge on RTT: "+estimator, 
+            estimator.getRto() < 420L);
+    }
+    
+    @Test public void testBounds() throws Exception {
+        final RttEstimator lan = new RttEstimator();
+        for (int i = 0; i < 20; i++) {
+            lan.addSample(1);
+        }
+        assertEquals(50L, lan.getRto());
+        assertEquals(800L, lan.getFinalWait());
+        
+        final RttEstimator slow = new RttEstimator();
+        slow.addSample(2000);
+        assertEquals(3000L, slow.getRto());
+    }
+    
+    @Test public void testRetransmitSchedule() throws Exception {
+        assertEquals(100L, RttEstimator.retransmitWait(100L, 1));
+        assertEquals(200L, RttEstimator.retransmitWait(100L, 2));
+        assertEquals(3000L, RttEstimator.retransmitWait(100L, 6));
+        
+        // Default RTO: 100+200+400+800+1600+3000 then the final 1600.
+        assertEquals(7700L, 
+            UdpStunTransaction.getMaxDuration(RttEstimator.DEFAULT_RTO));
+    }
+    
+    @Test public void testTransactionTimeBounded() throws Exception {
+        // Even a host at the maximum RTO can't hold a transaction for 
+        // anything like the time we track transactions for.
+        final long max = 
+            UdpStunTransaction.getMaxDuration(RttEstimator.MAX_RTO);
+        assertEquals(28000L, max);
+        assertTrue(max < StunClientConfig.getTransactionTtl());
+        assertEquals(10000L, RttEstimator.finalWait(RttEstimator.MAX_RTO));
+    }
+    
+    @Test public void testShared() throws Exception {
+        final InetSocketAddress server = 
+            new InetSocketAddress("127.0.0.1", 3478);
+        assertTrue(RttEstimator.forServer(server) == 
+            RttEstimator.forServer(server));
+    }
+}
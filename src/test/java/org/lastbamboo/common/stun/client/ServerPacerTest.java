@@ -0,0 +1,111 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for per-server pacing and request coalescing.
+ */
+public class ServerPacerTest {
+
+    @After
+    public void tearDown() {
+        StunClientConfig.setServerRate(0.0);
+        StunClientConfig.setServerBurst(50);
+        StunClientConfig.setCoalesceRequests(false);
+        ServerPacer.clear();
+    }
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        StunClientConfig.setServerRate(10.0);
+        StunClientConfig.setServerBurst(3);
+        final InetSocketAddress server = 
+            new InetSocketAddress("127.0.0.1", 9);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, ServerPacer.acquire(server));
+        }
+        final long wait = ServerPacer.acquire(server);
+        assertTrue("Unexpected wait: " + wait, wait > 0L && wait <= 100L);
+        Thread.sleep(wait + 10L);
+        assertEquals(0L, ServerPacer.acquire(server));
+
+        // Other servers have their own buckets.
+        assertEquals(0L, ServerPacer.acquire(
+            new InetSocketAddress("127.0.0.1", 10)));
+    }
+
+    @Test
+    public void testPacedRequestsStillComplete() throws Exception {
+        StunClientConfig.setServerRate(100.0);
+        StunClientConfig.setServerBurst(5);
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        try {
+            final UdpStunClient client = new UdpStunClient(address);
+            client.connect();
+            final long start = System.currentTimeMillis();
+            final List<CompletableFuture<StunMessage>> futures = 
+                new ArrayList<CompletableFuture<StunMessage>>();
+            for (int i = 0; i < 25; i++) {
+                futures.add(client.writeAsync(new BindingRequest(), address, 
+                    1000L));
+            }
+            for (final CompletableFuture<StunMessage> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS) 
+                    instanceof BindingSuccessResponse);
+            }
+            // Twenty requests past the burst at 100 a second.
+            assertTrue(System.currentTimeMillis() - start >= 150L);
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        StunClientConfig.setCoalesceRequests(true);
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        server.setLatency(50L);
+        try {
+            final UdpStunClient client = new UdpStunClient(address);
+            client.connect();
+            final List<BindingRequest> requests = 
+                new ArrayList<BindingRequest>();
+            final List<CompletableFuture<StunMessage>> futures = 
+                new ArrayList<CompletableFuture<StunMessage>>();
+            for (int i = 0; i < 20; i++) {
+                final BindingRequest request = new BindingRequest();
+                requests.add(request);
+                futures.add(client.writeAsync(request, address, 1000L));
+            }
+
+            // Callers giving up doesn't affect the others.
+            futures.get(0).cancel(false);
+            for (int i = 1; i < futures.size(); i++) {
+                final StunMessage response = 
+                    futures.get(i).get(10, TimeUnit.SECONDS);
+                assertTrue(response instanceof BindingSuccessResponse);
+                assertEquals(requests.get(i).getTransactionId(), 
+                    response.getTransactionId());
+            }
+            assertEquals(1, server.getRequestsReceived());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests that clients sharing a transport share its socket, selector and
+ * threads no matter how many of them there are.
+ */
+public class SharedUdpStunTransportTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    private SharedUdpStunTransport m_transport;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+        m_transport = new SharedUdpStunTransport(2);
+    }
+
+    @After
+    public void tearDown() {
+        m_transport.close();
+        m_server.stop();
+    }
+
+    @Test
+    public void testResourcesConstantAsClientsGrow() throws Exception {
+        final List<UdpStunClient> clients = new ArrayList<UdpStunClient>();
+        int threads = -1;
+        for (final int count : new int[] {10, 50, 200}) {
+            while (clients.size() < count) {
+                final UdpStunClient client =
+                    new UdpStunClient(m_transport, m_address);
+                client.connect();
+                clients.add(client);
+            }
+            lookup(clients);
+            assertEquals(1, m_transport.getOpenSockets());
+            assertEquals(1, m_transport.getOpenSelectors());
+            assertTrue(m_transport.getThreadCount() <= 3);
+            if (threads != -1) {
+                assertEquals(threads, m_transport.getThreadCount());
+            }
+            threads = m_transport.getThreadCount();
+        }
+        for (final UdpStunClient client : clients) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRecreate() throws Exception {
+        // A new transport mustn't pick up anything the closed one left.
+        m_transport.close();
+        m_transport = new SharedUdpStunTransport(2);
+        final List<UdpStunClient> clients = new ArrayList<UdpStunClient>();
+        final UdpStunClient client = new UdpStunClient(m_transport, m_address);
+        client.connect();
+        clients.add(client);
+        lookup(clients);
+        client.close();
+    }
+
+    private void lookup(final List<UdpStunClient> clients) throws Exception {
+        final List<CompletableFuture<StunMessage>> futures =
+            new ArrayList<CompletableFuture<StunMessage>>();
+        for (final UdpStunClient client : clients) {
+            futures.add(client.writeAsync(new BindingRequest(), m_address));
+        }
+        for (final CompletableFuture<StunMessage> future : futures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS)
+                instanceof BindingSuccessResponse);
+        }
+    }
+}
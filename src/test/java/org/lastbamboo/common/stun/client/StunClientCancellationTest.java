@@ -0,0 +1,103 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests that deadlines, cancellation and interrupts stop transactions 
+ * right away.
+ */
+public class StunClientCancellationTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    private SharedUdpStunTransport m_transport;
+
+    private UdpStunClient m_client;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+        m_server.setLossRate(1.0);
+        m_transport = new SharedUdpStunTransport();
+        m_client = new UdpStunClient(m_transport, m_address);
+        m_client.connect();
+    }
+
+    @After
+    public void tearDown() {
+        m_transport.close();
+        m_server.stop();
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        final long start = System.currentTimeMillis();
+        final StunMessage response = m_client.write(new BindingRequest(), 
+            m_address, 150L, TimeUnit.MILLISECONDS);
+        assertTrue(response instanceof NullStunMessage);
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+        assertReleased();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final CompletableFuture<StunMessage> future = 
+            m_client.writeAsync(new BindingRequest(), m_address);
+        future.cancel(false);
+        assertReleased();
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        final AtomicReference<Throwable> thrown = 
+            new AtomicReference<Throwable>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    m_client.write(new BindingRequest(), m_address);
+                } catch (final Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        writer.start();
+        Thread.sleep(50L);
+        writer.interrupt();
+        writer.join(1000L);
+        assertFalse(writer.isAlive());
+        assertTrue(thrown.get() instanceof InterruptedIOException);
+        assertReleased();
+    }
+
+    /**
+     * Checks the transaction is forgotten and no longer retransmitting.
+     */
+    private void assertReleased() throws InterruptedException {
+        assertEquals(0, m_client.getPendingTransactions());
+        assertEquals(0, ((ExpiringTransactionTracker) 
+            m_transport.getTransactionTracker()).size());
+
+        // Let any request already on the wire arrive first.
+        Thread.sleep(50L);
+        final long received = m_server.getRequestsReceived();
+        Thread.sleep(400L);
+        assertEquals(received, m_server.getRequestsReceived());
+    }
+}
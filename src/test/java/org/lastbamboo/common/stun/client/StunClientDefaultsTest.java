@@ -0,0 +1,141 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests that clients implementing only the original blocking methods get
+ * working versions of everything added to {@link StunClient} since.
+ */
+public class StunClientDefaultsTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    private StunClient m_client;
+
+    @Before
+    public void setUp() throws Exception {
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+        m_client = new BlockingStunClient(new UdpStunClient(m_address));
+        m_client.connect();
+    }
+
+    @After
+    public void tearDown() {
+        m_client.close();
+        m_server.stop();
+    }
+
+    @Test
+    public void testWriteAsync() throws Exception {
+        final BindingRequest request = new BindingRequest();
+        final StunMessage response = m_client.writeAsync(request, m_address)
+            .get(10, TimeUnit.SECONDS);
+        assertTrue(response instanceof BindingSuccessResponse);
+        assertEquals(request.getTransactionId(), response.getTransactionId());
+    }
+
+    @Test
+    public void testWriteBatch() throws Exception {
+        final List<BindingCheck> checks = new ArrayList<BindingCheck>();
+        for (int i = 0; i < 5; i++) {
+            checks.add(new BindingCheck(new BindingRequest(), m_address));
+        }
+        final List<CompletableFuture<StunMessage>> futures =
+            m_client.writeBatch(checks, 5L);
+        for (int i = 0; i < checks.size(); i++) {
+            assertEquals(checks.get(i).getRequest().getTransactionId(),
+                futures.get(i).get(10, TimeUnit.SECONDS).getTransactionId());
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        m_server.setLossRate(1.0);
+        final long start = System.currentTimeMillis();
+        final StunMessage response = m_client.write(new BindingRequest(),
+            m_address, 200L, TimeUnit.MILLISECONDS);
+        assertTrue(response instanceof NullStunMessage);
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+    }
+
+    /**
+     * A client written before the asynchronous methods existed.
+     */
+    private static final class BlockingStunClient implements StunClient {
+
+        private final StunClient m_delegate;
+
+        private BlockingStunClient(final StunClient delegate) {
+            this.m_delegate = delegate;
+        }
+
+        @Override
+        public StunMessage write(final BindingRequest request,
+            final InetSocketAddress remoteAddress) throws IOException {
+            return m_delegate.write(request, remoteAddress);
+        }
+
+        @Override
+        public StunMessage write(final BindingRequest request,
+            final InetSocketAddress remoteAddress, final long rto)
+            throws IOException {
+            return m_delegate.write(request, remoteAddress, rto);
+        }
+
+        @Override
+        public void addIoServiceListener(final IoServiceListener listener) {
+            m_delegate.addIoServiceListener(listener);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            m_delegate.connect();
+        }
+
+        @Override
+        public InetSocketAddress getHostAddress() {
+            return m_delegate.getHostAddress();
+        }
+
+        @Override
+        public InetSocketAddress getServerReflexiveAddress()
+            throws IOException {
+            return m_delegate.getServerReflexiveAddress();
+        }
+
+        @Override
+        public InetAddress getStunServerAddress() {
+            return m_delegate.getStunServerAddress();
+        }
+
+        @Override
+        public InetSocketAddress getRelayAddress() {
+            return m_delegate.getRelayAddress();
+        }
+
+        @Override
+        public void close() {
+            m_delegate.close();
+        }
+    }
+}
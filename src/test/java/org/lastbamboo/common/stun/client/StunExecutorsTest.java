@@ -0,0 +1,118 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for choosing between platform and virtual threads for blocking
+ * STUN calls.
+ */
+public class StunExecutorsTest {
+
+    @After
+    public void tearDown() {
+        StunClientConfig.setUseVirtualThreads(false);
+    }
+
+    @Test
+    public void testVirtualThreadsOnlyWhenAvailable() throws Exception {
+        assertFalse(StunExecutors.isUsingVirtualThreads());
+        StunClientConfig.setUseVirtualThreads(true);
+        assertEquals(StunExecutors.isVirtualThreadsAvailable(),
+            StunExecutors.isUsingVirtualThreads());
+    }
+
+    @Test
+    public void testConcurrentBlockingWrites() throws Exception {
+        StunClientConfig.setUseVirtualThreads(true);
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        server.setLatency(50L);
+        final ExecutorService executor =
+            StunExecutors.newBlockingExecutor("Blocking-Write-Test");
+        try {
+            final UdpStunClient client = new UdpStunClient(address);
+            client.connect();
+            final List<Future<StunMessage>> futures =
+                new ArrayList<Future<StunMessage>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(new Callable<StunMessage>() {
+                    @Override
+                    public StunMessage call() throws Exception {
+                        return client.write(new BindingRequest(), address,
+                            500L);
+                    }
+                }));
+            }
+            for (final Future<StunMessage> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS)
+                    instanceof BindingSuccessResponse);
+            }
+            client.close();
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Assume.assumeTrue(StunExecutors.isVirtualThreadsAvailable());
+        StunClientConfig.setUseVirtualThreads(true);
+        final ExecutorService executor =
+            StunExecutors.newBlockingExecutor("Virtual-Test");
+        try {
+            assertTrue(isVirtual(executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get(10, TimeUnit.SECONDS)));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Switchable executors move over to virtual threads as soon as 
+        // they're turned on.
+        final CompletableFuture<Thread> thread = 
+            new CompletableFuture<Thread>();
+        StunExecutors.switchable(new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                thread.completeExceptionally(
+                    new AssertionError("Used platform executor"));
+            }
+        }).execute(new Runnable() {
+            @Override
+            public void run() {
+                thread.complete(Thread.currentThread());
+            }
+        });
+        assertTrue(isVirtual(thread.get(10, TimeUnit.SECONDS)));
+    }
+
+    /**
+     * Calls Thread.isVirtual, which only exists on Java 21 and later.
+     */
+    private static boolean isVirtual(final Thread thread) throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+}
@@ -0,0 +1,75 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for ranking STUN servers.
+ */
+public class StunServerRankingTest {
+
+    @Test public void testLatencyRanking() throws Exception {
+        final RankedStunServer slow = server(10001);
+        final RankedStunServer fast = server(10002);
+        final RankedStunServer unknown = server(10003);
+        final StunServerRanking ranking = 
+            new StunServerRanking(Arrays.asList(slow, fast, unknown));
+        
+        slow.onSuccess(400);
+        fast.onSuccess(8);
+        
+        final List<RankedStunServer> ranked = ranking.getRanked();
+        assertEquals(fast, ranked.get(0));
+        assertEquals(unknown, ranked.get(1));
+        assertEquals(slow, ranked.get(2));
+        assertEquals(fast, 
+            ranking.pick(Collections.<RankedStunServer>emptySet()));
+        assertEquals(unknown, ranking.pick(Arrays.asList(fast)));
+    }
+    
+    @Test public void testLossDemotes() throws Exception {
+        final RankedStunServer lossy = server(10004);
+        final RankedStunServer slow = server(10005);
+        final StunServerRanking ranking = 
+            new StunServerRanking(Arrays.asList(lossy, slow));
+        lossy.onSuccess(5);
+        slow.onSuccess(300);
+        assertEquals(lossy, 
+            ranking.pick(Collections.<RankedStunServer>emptySet()));
+        
+        lossy.onFailure();
+        assertEquals(slow, 
+            ranking.pick(Collections.<RankedStunServer>emptySet()));
+        assertFalse(lossy.isDemoted());
+        
+        lossy.onFailure();
+        lossy.onFailure();
+        assertTrue(lossy.isDemoted());
+        assertTrue(lossy.getLastFailure() > 0L);
+        
+        // It was never attempted, so it's due for a probe immediately, but
+        // only once.
+        assertEquals(lossy, ranking.nextReprobe());
+        assertNull(ranking.nextReprobe());
+    }
+    
+    @Test public void testShared() throws Exception {
+        final InetSocketAddress isa = new InetSocketAddress("127.0.0.1", 10006);
+        assertTrue(RankedStunServer.forAddress(isa) == 
+            RankedStunServer.forAddress(isa));
+    }
+
+    private RankedStunServer server(final int port) throws Exception {
+        return RankedStunServer.forAddress(
+            new InetSocketAddress("127.0.0.1", port));
+    }
+}
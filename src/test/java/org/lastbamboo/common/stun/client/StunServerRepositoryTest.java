@@ -0,0 +1,94 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the copy-on-write STUN server repository.
+ */
+public class StunServerRepositoryTest {
+
+    private Collection<InetSocketAddress> m_original;
+
+    @Before
+    public void setUp() {
+        m_original = StunServerRepository.getServers();
+    }
+
+    @After
+    public void tearDown() {
+        StunServerRepository.setStunServers(m_original);
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable() {
+        final InetSocketAddress first = new InetSocketAddress("127.0.0.1", 1);
+        final InetSocketAddress second = new InetSocketAddress("127.0.0.1", 2);
+        StunServerRepository.setStunServers(Arrays.asList(first));
+        final Collection<InetSocketAddress> snapshot = 
+            StunServerRepository.getServers();
+        try {
+            snapshot.add(second);
+            fail("Snapshot should be read only");
+        } catch (final UnsupportedOperationException e) {
+            // Expected.
+        }
+        StunServerRepository.addStunServers(Arrays.asList(second));
+        assertEquals(1, snapshot.size());
+        assertEquals(2, StunServerRepository.getServers().size());
+    }
+
+    @Test
+    public void testVersionAndListeners() {
+        final List<Collection<InetSocketAddress>> changes = 
+            new ArrayList<Collection<InetSocketAddress>>();
+        final StunServerListener listener = new StunServerListener() {
+            @Override
+            public void onServersChanged(
+                final Collection<InetSocketAddress> servers) {
+                changes.add(servers);
+            }
+        };
+        StunServerRepository.addListener(listener);
+        try {
+            final long version = StunServerRepository.getVersion();
+            final InetSocketAddress isa = new InetSocketAddress("127.0.0.1", 3);
+            StunServerRepository.setStunServers(Arrays.asList(isa));
+            assertTrue(StunServerRepository.getVersion() > version);
+            assertEquals(1, changes.size());
+            assertTrue(changes.get(0).contains(isa));
+        } finally {
+            StunServerRepository.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void testClientFollowsRepository() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        try {
+            StunServerRepository.setStunServers(Arrays.asList(
+                new InetSocketAddress("127.0.0.1", 4)));
+            final UdpStunClient client = UdpStunClient.forRepository();
+            client.connect();
+            StunServerRepository.setStunServers(Arrays.asList(address));
+            assertEquals(1, client.getStunServers().size());
+            assertEquals(address, 
+                client.getStunServers().get(0).getAddress());
+            final InetSocketAddress srflx = client.getServerReflexiveAddress();
+            assertEquals(client.getHostAddress().getPort(), srflx.getPort());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for the background STUN server name resolver.
+ */
+public class StunServerResolverTest {
+
+    @After
+    public void tearDown() {
+        StunServerResolver.clear();
+    }
+
+    @Test
+    public void testLiteralsPassThrough() {
+        final InetSocketAddress literal = 
+            InetSocketAddress.createUnresolved("127.0.0.1", 3478);
+        assertSame(literal, StunServerResolver.getResolved(literal));
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        final InetSocketAddress unresolved = 
+            InetSocketAddress.createUnresolved("localhost", 3478);
+        StunServerResolver.prewarm(Arrays.asList(unresolved))
+            .get(10, TimeUnit.SECONDS);
+        final InetSocketAddress resolved = 
+            StunServerResolver.getResolved(unresolved);
+        assertFalse(resolved.isUnresolved());
+        assertTrue(resolved.getAddress().isLoopbackAddress());
+        assertEquals(3478, resolved.getPort());
+    }
+
+    @Test
+    public void testResolveAll() throws Exception {
+        final InetSocketAddress unresolved = 
+            InetSocketAddress.createUnresolved("localhost", 3478);
+        final List<InetSocketAddress> all = StunServerResolver
+            .resolveAllAsync(unresolved).get(10, TimeUnit.SECONDS);
+        assertFalse(all.isEmpty());
+        for (final InetSocketAddress address : all) {
+            assertTrue(address.getAddress().isLoopbackAddress());
+            assertEquals(3478, address.getPort());
+
+            // Each address keeps its own family rather than becoming the
+            // one address we cache for the name.
+            assertSame(address, StunServerResolver.getResolved(address));
+            assertEquals(address, 
+                RankedStunServer.forAddress(address).getAddress());
+        }
+    }
+
+    @Test
+    public void testUnresolvableFailsLikeATimeout() throws Exception {
+        final InetSocketAddress unresolvable = 
+            InetSocketAddress.createUnresolved("stun.invalid", 3478);
+        final UdpStunClient client = new UdpStunClient(
+            new InetSocketAddress("127.0.0.1", 3478));
+        client.connect();
+        final StunMessage response = client.writeAsync(new BindingRequest(), 
+            unresolvable).get(10, TimeUnit.SECONDS);
+        assertTrue(response instanceof NullStunMessage);
+        client.close();
+    }
+
+    @Test
+    public void testConnectToUnresolvedServer() throws Exception {
+        final UdpStunClient client = new UdpStunClient(
+            InetSocketAddress.createUnresolved("stun.invalid", 3478));
+        try {
+            client.connect();
+            fail("Should not connect to an unresolved server");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testWriteWaitsForResolution() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress address = server.start();
+        try {
+            final UdpStunClient client = new UdpStunClient(address);
+            client.connect();
+            final StunMessage response = client.writeAsync(
+                new BindingRequest(), InetSocketAddress.createUnresolved(
+                    "localhost", address.getPort())).get(10, TimeUnit.SECONDS);
+            assertTrue(response instanceof BindingSuccessResponse);
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
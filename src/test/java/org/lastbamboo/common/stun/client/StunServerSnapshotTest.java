@@ -0,0 +1,162 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for saving and restoring what we've learned about STUN servers.
+ */
+public class StunServerSnapshotTest {
+
+    @Rule
+    public final TemporaryFolder m_folder = new TemporaryFolder();
+
+    private InetSocketAddress m_good;
+
+    private InetSocketAddress m_bad;
+
+    private InetSocketAddress m_named;
+
+    private InetSocketAddress m_namedResolved;
+
+    private File m_file;
+
+    @Before
+    public void setUp() throws Exception {
+        clear();
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        m_good = new InetSocketAddress(loopback, 40001);
+        m_bad = new InetSocketAddress(loopback, 40002);
+        m_named = InetSocketAddress.createUnresolved("stun.example.invalid",
+            3478);
+        m_namedResolved = new InetSocketAddress(
+            InetAddress.getByName("127.0.0.2"), 3478);
+        m_file = new File(m_folder.getRoot(), "stun.snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        StunServerSnapshot.disable();
+        clear();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        learn();
+        assertEquals(3, StunServerSnapshot.save(m_file));
+        final double goodCost = RankedStunServer.forAddress(m_good).getCost();
+        clear();
+
+        assertEquals(3, StunServerSnapshot.load(m_file));
+        final RankedStunServer good = RankedStunServer.forAddress(m_good);
+        final RankedStunServer bad = RankedStunServer.forAddress(m_bad);
+        assertEquals(goodCost, good.getCost(), 0.1);
+        assertTrue(bad.isDemoted());
+        assertTrue(bad.getLastFailure() > 0L);
+        assertEquals(1, RttEstimator.forServer(m_good).getSamples());
+        assertEquals(30.0, RttEstimator.forServer(m_good).getSmoothedRtt(),
+            0.001);
+
+        // We don't need to wait on DNS for names we've resolved before.
+        assertEquals(m_namedResolved,
+            RankedStunServer.forAddress(m_named).getAddress());
+
+        // New clients go straight to the server that worked last time.
+        final UdpStunClient client = new UdpStunClient(m_bad, m_good);
+        assertEquals(good, client.getStunServers().get(0));
+    }
+
+    @Test
+    public void testKeepsLiveState() throws Exception {
+        learn();
+        StunServerSnapshot.save(m_file);
+        clear();
+
+        RankedStunServer.forAddress(m_bad).onSuccess(10L);
+        assertEquals(2, StunServerSnapshot.load(m_file));
+        assertFalse(RankedStunServer.forAddress(m_bad).isDemoted());
+    }
+
+    @Test
+    public void testIgnoresBadFiles() throws Exception {
+        assertEquals(0, StunServerSnapshot.load(m_file));
+
+        learn();
+        StunServerSnapshot.save(m_file);
+        clear();
+
+        // A truncated file restores nothing at all.
+        final RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        assertEquals(0, StunServerSnapshot.load(m_file));
+        assertEquals(0, RankedStunServer.forAddress(m_good).getSamples());
+
+        final DataOutputStream out =
+            new DataOutputStream(new FileOutputStream(m_file));
+        out.writeInt(0x53545353);
+        out.writeShort(99);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(0);
+        out.close();
+        assertEquals(0, StunServerSnapshot.load(m_file));
+
+        final FileOutputStream garbage = new FileOutputStream(m_file);
+        garbage.write("not a snapshot".getBytes("UTF-8"));
+        garbage.close();
+        assertEquals(0, StunServerSnapshot.load(m_file));
+    }
+
+    @Test
+    public void testEnable() throws Exception {
+        learn();
+        StunServerSnapshot.save(m_file);
+        clear();
+
+        StunServerSnapshot.enable(m_file, 1000L);
+        assertTrue(RankedStunServer.forAddress(m_bad).isDemoted());
+        assertTrue(m_file.delete());
+        Thread.sleep(1500L);
+        assertTrue(m_file.exists());
+        StunServerSnapshot.disable();
+
+        // We never leave temporary files behind.
+        assertEquals(0, m_folder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".tmp");
+            }
+        }).length);
+    }
+
+    private void learn() throws Exception {
+        final RankedStunServer good = RankedStunServer.forAddress(m_good);
+        good.onSuccess(30L);
+        good.getRttEstimator().addSample(30L);
+        final RankedStunServer bad = RankedStunServer.forAddress(m_bad);
+        for (int i = 0; i < 5; i++) {
+            bad.onFailure();
+        }
+        StunServerResolver.seed(m_named, m_namedResolved);
+        RankedStunServer.forAddress(m_named);
+    }
+
+    private static void clear() {
+        RankedStunServer.clear();
+        RttEstimator.clear();
+        StunServerResolver.clear();
+    }
+}
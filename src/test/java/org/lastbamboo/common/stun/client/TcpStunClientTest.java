@@ -0,0 +1,155 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for STUN over TCP and falling back to it when UDP doesn't get
+ * through.
+ */
+public class TcpStunClientTest {
+
+    private LoopbackStunServer m_server;
+
+    private InetSocketAddress m_address;
+
+    @Before
+    public void setUp() throws Exception {
+        StunTransportSelector.clear();
+        m_server = new LoopbackStunServer();
+        m_address = m_server.start();
+        m_server.startTcp(m_address);
+    }
+
+    @After
+    public void tearDown() {
+        m_server.stop();
+        StunTransportSelector.clear();
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        m_server.setLatency(100L);
+        final TcpStunClient client = new TcpStunClient(m_address);
+        client.connect();
+        try {
+            final List<BindingCheck> checks = new ArrayList<BindingCheck>();
+            for (int i = 0; i < 20; i++) {
+                checks.add(new BindingCheck(new BindingRequest(), m_address));
+            }
+            final long start = System.currentTimeMillis();
+            final List<CompletableFuture<StunMessage>> futures =
+                client.writeBatch(checks);
+            for (int i = 0; i < checks.size(); i++) {
+                final StunMessage response = futures.get(i).get();
+                assertTrue(response instanceof BindingSuccessResponse);
+                assertEquals(checks.get(i).getRequest().getTransactionId(),
+                    response.getTransactionId());
+            }
+
+            // Run one after the other these would take two seconds.
+            assertTrue(System.currentTimeMillis() - start < 1000L);
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testServerDown() throws Exception {
+        final ServerSocket socket = new ServerSocket(0, 1,
+            InetAddress.getByName("127.0.0.1"));
+        final int port = socket.getLocalPort();
+        socket.close();
+        final InetSocketAddress down =
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+        final TcpStunClient client = new TcpStunClient(down);
+        try {
+            final long start = System.currentTimeMillis();
+            assertTrue(client.write(new BindingRequest(), down)
+                instanceof NullStunMessage);
+
+            // We back off rather than hammering a server that's down.
+            assertTrue(client.write(new BindingRequest(), down)
+                instanceof NullStunMessage);
+            assertTrue(System.currentTimeMillis() - start <
+                StunClientConfig.getTcpTimeout());
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        m_server.setLossRate(1.0);
+        final SharedUdpStunTransport transport = new SharedUdpStunTransport();
+        final TcpStunClient tcp = new TcpStunClient(m_address);
+        final UdpStunClient udp = new UdpStunClient(transport, m_address);
+        udp.setTcpFallback(tcp);
+        udp.connect();
+        try {
+            assertFalse(StunTransportSelector.useTcp(m_address));
+            final InetSocketAddress mapped = udp.getServerReflexiveAddress();
+            assertEquals(InetAddress.getByName("127.0.0.1"),
+                mapped.getAddress());
+            udp.getServerReflexiveAddress();
+
+            // Once we've seen UDP time out we go straight to TCP.
+            final long deadline = System.currentTimeMillis() + 1000L +
+                UdpStunTransaction.getMaxDuration(
+                    RttEstimator.forServer(m_address).getRto());
+            while (!StunTransportSelector.useTcp(m_address) &&
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(StunTransportSelector.useTcp(m_address));
+            final long start = System.currentTimeMillis();
+            udp.getServerReflexiveAddress();
+            assertTrue(System.currentTimeMillis() - start <
+                StunClientConfig.getTcpFallbackDelay());
+        } finally {
+            transport.close();
+            tcp.close();
+        }
+    }
+
+    @Test
+    public void testSlowUdpIsNotAFailure() throws Exception {
+        // Holding back every UDP answer for an extra 100ms lets TCP win, 
+        // but UDP still gets through.
+        m_server.setLatency(100L);
+        m_server.setReorderRate(1.0);
+        StunClientConfig.setTcpFallbackDelay(20L);
+        final SharedUdpStunTransport transport = new SharedUdpStunTransport();
+        final TcpStunClient tcp = new TcpStunClient(m_address);
+        final UdpStunClient udp = new UdpStunClient(transport, m_address);
+        udp.setTcpFallback(tcp);
+        udp.connect();
+        try {
+            for (int i = 0; i < 3; i++) {
+                udp.getServerReflexiveAddress();
+            }
+            Thread.sleep(500);
+            assertFalse(StunTransportSelector.useTcp(m_address));
+        } finally {
+            StunClientConfig.setTcpFallbackDelay(500L);
+            transport.close();
+            tcp.close();
+        }
+    }
+}